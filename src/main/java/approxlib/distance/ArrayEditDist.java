@@ -0,0 +1,268 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package approxlib.distance;
+
+import java.util.Arrays;
+
+import approxlib.tree.LblTree;
+
+/**
+ * The same tree edit distance and alignment as {@link EditDist} (same costs,
+ * same tie breaking), computed on post-order int arrays.
+ *
+ * Trees are read once into a {@link Tree}, which can be cached and shared
+ * between threads (the LblTree is not modified). The memo matrices are flat
+ * arrays that grow as needed and are reused by later calls, so one
+ * ArrayEditDist should be kept per thread. There is no edit script; use
+ * EditDist for that.
+ */
+public class ArrayEditDist extends EditBasedDist {
+
+	static final int NONE = Integer.MIN_VALUE;
+
+	/**
+	 * A tree in post-order, nodes numbered from 1 (0 is the empty forest).
+	 */
+	public static class Tree {
+
+		final int n; // number of nodes + 1
+		final int leaves;
+		final String[] lbl;
+		final String[] lemma;
+		final String[] pos;
+		final String[] rel;
+		final boolean[] stopWord;
+		final int[] l; // post-order number of the left-most leaf descendant
+		final int[] kr; // keyroots, ascending (kr[0] is unused)
+		final int[] wordIdx; // LblTree.getIdxInWordOrder
+		final int minWordIdx, maxWordIdx;
+		final boolean isDep; // see EditDist.isDep
+
+		public Tree(LblTree t) {
+			n = t.getNodeCount() + 1;
+			leaves = t.getLeafCount();
+			lbl = new String[n];
+			lemma = new String[n];
+			pos = new String[n];
+			rel = new String[n];
+			stopWord = new boolean[n];
+			l = new int[n];
+			kr = new int[leaves + 1];
+			wordIdx = new int[n];
+			lbl[0] = "";
+			fill(t, 1);
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			for (int i = 1; i < n; i++) {
+				min = Math.min(min, wordIdx[i]);
+				max = Math.max(max, wordIdx[i]);
+				String[] fields = lbl[i].split("\\/");
+				if (fields.length == 3 || fields.length == 4) {
+					lemma[i] = fields[fields.length - 3];
+					pos[i] = fields[fields.length - 2];
+					rel[i] = fields[fields.length - 1];
+				} else {
+					// the root (EditDist fails on any other label; compare it whole)
+					lemma[i] = fields.length == 1 ? fields[0] : lbl[i];
+					pos[i] = "";
+					rel[i] = "";
+				}
+				stopWord[i] = EditDist.stopWordPosTags.contains(pos[i]);
+			}
+			minWordIdx = min;
+			maxWordIdx = max;
+			isDep = lbl[1].split("\\/").length >= 3;
+
+			boolean[] visited = new boolean[n];
+			int k = kr.length - 1;
+			for (int i = n - 1; i >= 0; i--) {
+				if (!visited[l[i]]) {
+					kr[k] = i;
+					visited[l[i]] = true;
+					k--;
+				}
+			}
+		}
+
+		// numbers the subtree at node from first on, returns node's number
+		private int fill(LblTree node, int first) {
+			int i = first;
+			for (int c = 0; c < node.getChildCount(); c++)
+				i = fill((LblTree)node.getChildAt(c), i) + 1;
+			lbl[i] = node.getLabel();
+			wordIdx[i] = node.getIdxInWordOrder();
+			// the first node of a subtree in post-order is its left-most leaf
+			l[i] = first;
+			return i;
+		}
+
+		public int getNodeCount() { return n - 1; }
+	}
+
+	boolean higherCostForStopWordsAlign = true;
+
+	Tree t1, t2;
+	int n2; // row length of the matrices below
+
+	// (i, j) is at i * n2 + j
+	double[] forestdist = new double[0];
+	double[] treedist = new double[0];
+	boolean[] sameLemma = new boolean[0]; // EditDist.getDel/getIns(i, j) are infinite
+	double[] wUpd = new double[0]; // EditDist.getUpdate(i, j)
+
+	// the last (i1, j1) chosen by an update, as in EditDist.align1to2
+	int[] align1to2 = new int[0];
+	int[] byWord = new int[0];
+
+	public ArrayEditDist(boolean normalized) {
+		this(1, 1, 1, normalized);
+	}
+
+	public ArrayEditDist(double ins, double del, double update, boolean normalized) {
+		super(ins, del, update, normalized);
+	}
+
+	@Override
+	public double nonNormalizedTreeDist(LblTree t1, LblTree t2) {
+		return nonNormalizedTreeDist(new Tree(t1), new Tree(t2));
+	}
+
+	public double treeDist(Tree t1, Tree t2) {
+		if (this.isNormalized())
+			this.dist = nonNormalizedTreeDist(t1, t2) / (t1.getNodeCount() + t2.getNodeCount());
+		else
+			this.dist = nonNormalizedTreeDist(t1, t2);
+		return this.dist;
+	}
+
+	public double nonNormalizedTreeDist(Tree t1, Tree t2) {
+		this.t1 = t1;
+		this.t2 = t2;
+		int n1 = t1.n;
+		n2 = t2.n;
+		int cells = n1 * n2;
+		if (forestdist.length < cells) {
+			int cap = Math.max(cells, 2 * forestdist.length);
+			forestdist = new double[cap];
+			treedist = new double[cap];
+			sameLemma = new boolean[cap];
+			wUpd = new double[cap];
+		}
+		if (align1to2.length < n1)
+			align1to2 = new int[Math.max(n1, 2 * align1to2.length)];
+		Arrays.fill(align1to2, 0, n1, 0);
+
+		boolean isDep = t1.isDep;
+		double u = super.getUpdate();
+		for (int i = 1; i < n1; i++) {
+			for (int j = 1; j < n2; j++) {
+				int ij = i * n2 + j;
+				sameLemma[ij] = isDep && t1.lemma[i].equals(t2.lemma[j]);
+				if (!isDep) {
+					wUpd[ij] = t1.lbl[i].equals(t2.lbl[j]) && !higherCostForStopWordsAlign ? 0.0 : u;
+				} else if (sameLemma[ij]) {
+					if (t1.lbl[i].equals(t2.lbl[j]) && !higherCostForStopWordsAlign)
+						wUpd[ij] = 0.0;
+					else if (higherCostForStopWordsAlign && t1.stopWord[i] && t2.stopWord[j])
+						wUpd[ij] = 2.5*u;
+					else
+						wUpd[ij] = (t1.pos[i].equals(t2.pos[j])?0:u) + (t1.rel[i].equals(t2.rel[j])?0:u);
+				} else {
+					wUpd[ij] = t1.lbl[i].equals(t2.lbl[j]) && !higherCostForStopWordsAlign ? 0.0 : Double.MAX_VALUE;
+				}
+			}
+		}
+		// EditDist.getDel and getIns, unless the lemmas match
+		double del = isDep ? super.getDel()*3.0 : super.getDel();
+		double ins = isDep ? super.getIns()*3 : super.getIns();
+
+		for (int i = 1; i < t1.kr.length; i++)
+			for (int j = 1; j < t2.kr.length; j++)
+				treeEditDist(t1.kr[i], t2.kr[j], del, ins);
+		return treedist[(n1 - 1) * n2 + n2 - 1];
+	}
+
+	private void treeEditDist(int i, int j, double del, double ins) {
+		final int[] l1 = t1.l, l2 = t2.l;
+		final double[] fd = forestdist, td = treedist;
+		final int n2 = this.n2;
+		final int li = l1[i], lj = l2[j];
+		int r = (li - 1) * n2;
+		fd[r + lj - 1] = 0;
+		for (int j1 = lj; j1 <= j; j1++)
+			fd[r + j1] = fd[r + j1 - 1] + ins;
+		for (int i1 = li; i1 <= i; i1++) {
+			int row = i1 * n2, prev = row - n2;
+			fd[row + lj - 1] = fd[prev + lj - 1] + del;
+			boolean treeRow = l1[i1] == li;
+			int lr = (l1[i1] - 1) * n2;
+			for (int j1 = lj; j1 <= j; j1++) {
+				int ij = row + j1;
+				boolean same = sameLemma[ij];
+				double min = Double.MAX_VALUE;
+				double cDel = fd[prev + j1] + (same ? Double.MAX_VALUE : del);
+				double cIns = fd[ij - 1] + (same ? Double.MAX_VALUE : ins);
+				double cUpd;
+				boolean tree = treeRow && l2[j1] == lj;
+				if (tree)
+					cUpd = fd[prev + j1 - 1] + wUpd[ij];
+				else
+					cUpd = fd[lr + l2[j1] - 1] + td[ij];
+				// same order as EditDist: ties go to delete, then insert
+				if (cDel < min)
+					min = cDel;
+				if (cIns < min)
+					min = cIns;
+				if (cUpd < min) {
+					min = cUpd;
+					align1to2[i1] = j1;
+				}
+				fd[ij] = min;
+				if (tree)
+					td[ij] = min;
+			}
+		}
+	}
+
+	/**
+	 * The alignment in word order (see {@link EditDist#getAlignInWordOrder1to2()}),
+	 * as {indices in tree 1, indices in tree 2}. If two nodes of tree 1 have the
+	 * same word index, the one later in post-order wins.
+	 */
+	public int[][] getAlignInWordOrder1to2() {
+		int offset = -t1.minWordIdx;
+		int width = t1.maxWordIdx + offset + 1;
+		if (byWord.length < width)
+			byWord = new int[Math.max(width, 2 * byWord.length)];
+		Arrays.fill(byWord, 0, width, NONE);
+		int count = 0;
+		for (int i = 1; i < t1.n; i++) {
+			if (align1to2[i] != 0) {
+				int w = t1.wordIdx[i] + offset;
+				if (byWord[w] == NONE)
+					count++;
+				byWord[w] = t2.wordIdx[align1to2[i]];
+			}
+		}
+		int[] from = new int[count];
+		int[] to = new int[count];
+		int k = 0;
+		for (int w = 0; w < width; w++) {
+			if (byWord[w] != NONE) {
+				from[k] = w - offset;
+				to[k] = byWord[w];
+				k++;
+			}
+		}
+		return new int[][] {from, to};
+	}
+
+	/**
+	 * Post-order alignment from tree 1 to tree 2, 0 if a node was not aligned.
+	 * Only valid until the next call to treeDist.
+	 */
+	public int[] getAlign1to2() { return align1to2; }
+}
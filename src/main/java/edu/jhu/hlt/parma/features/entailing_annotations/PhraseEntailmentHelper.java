@@ -7,6 +7,7 @@
 package edu.jhu.hlt.parma.features.entailing_annotations;
 
 import edu.jhu.hlt.parma.util.ParmaConfig;
+import edu.jhu.hlt.parma.util.ResourcePack;
 
 import java.util.*;
 import java.util.logging.Logger;
@@ -37,10 +38,22 @@ public class PhraseEntailmentHelper {
 	 * Parses the default files, as determined by the parameters in the config 
 	 * file named by FEATURES_ENTAILING_PHRASE_DATAPATHS and 
 	 * FEATURES_ENTAILING_PHRASE_IGNORE_HEADERS
-	 *
+	 * (or reads them from the ResourcePack, if there is one with phrase entailments in it)
 	 *
 	 */
 	public static PhraseEntailments parseDefaultFiles() {
+		ResourcePack pack = ResourcePack.shared();
+		if(PhraseEntailments.inPack(pack)) {
+			logger.info("using phrase entailments from " + pack.file().getPath());
+			return new PhraseEntailments(pack);
+		}
+		return parseDefaultTextFiles();
+	}
+
+	/**
+	 * the same as parseDefaultFiles, but always reads the text files (ignoring any pack)
+	 */
+	public static PhraseEntailments parseDefaultTextFiles() {
 		logger.info("using default data files");
 		String locations, headerIgnores;
 		try {
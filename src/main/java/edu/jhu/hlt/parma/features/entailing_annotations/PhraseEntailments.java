@@ -22,12 +22,21 @@ package edu.jhu.hlt.parma.features.entailing_annotations;
  * should be false.
  *
  */
+import edu.jhu.hlt.parma.util.PackedStrings;
+import edu.jhu.hlt.parma.util.ResourcePack;
+import edu.jhu.hlt.parma.util.ResourcePackWriter;
+
 import java.util.*;
 
 public class PhraseEntailments {
 
+	public static final String PACK_PREFIX = "phrases.";
+
 	private HashMap<String,HashMap<String,Double>> entailed, notEntailed;
 
+	// when read from a ResourcePack: sorted "p1\tp2" pairs (confidences are not kept)
+	private PackedStrings packedEntailed, packedNotEntailed;
+
 	/**
 	 * Constructs a PhraseEntailments object based on two maps of entailments
 	 */
@@ -40,10 +49,37 @@ public class PhraseEntailments {
 		System.out.println("notEntailed size" + notEntailed.size());
 	}
 
+	/**
+	 * Reads entailments written by writeTo, see ResourcePackBuilder
+	 */
+	public PhraseEntailments(ResourcePack pack) {
+		this.packedEntailed = pack.strings(PACK_PREFIX + "entailed");
+		this.packedNotEntailed = pack.strings(PACK_PREFIX + "notEntailed");
+	}
+
+	public static boolean inPack(ResourcePack pack) {
+		return pack != null && pack.has(PACK_PREFIX + "entailed");
+	}
+
+	public void writeTo(ResourcePackWriter w) {
+		w.strings(PACK_PREFIX + "entailed", pairs(entailed));
+		w.strings(PACK_PREFIX + "notEntailed", pairs(notEntailed));
+	}
+
+	private static String[] pairs(HashMap<String,HashMap<String,Double>> m) {
+		List<String> pairs = new ArrayList<String>();
+		for(Map.Entry<String,HashMap<String,Double>> e : m.entrySet())
+			for(String p2 : e.getValue().keySet())
+				pairs.add(e.getKey() + "\t" + p2);
+		return ResourcePack.sort(pairs.toArray(new String[0]));
+	}
+
 	/**
 	 * @return p1 entails p2 or there is no know mapping in entailed for p1.
 	 */
 	public boolean entailed(String p1, String p2) {
+		if(packedEntailed != null)
+			return packedEntailed.contains(p1 + "\t" + p2);
 		if(entailed.get(p1) != null) 
 			return entailed.get(p1).containsKey(p2);
 		return false;
@@ -53,6 +89,8 @@ public class PhraseEntailments {
 	 * @return p1 does not entail p2 OR there is no known mapping in notEntailed for p1.
 	 */
 	public boolean notEntailed(String p1, String p2) {
+		if(packedNotEntailed != null)
+			return packedNotEntailed.contains(p1 + "\t" + p2);
 		if(notEntailed.get(p1) != null)
 			return notEntailed.get(p1).containsKey(p2);
 		return false;
@@ -6,9 +6,13 @@
 
 package edu.jhu.hlt.parma.features.framenet;
 
+import edu.jhu.hlt.parma.util.PackedMultiMap;
 import edu.jhu.hlt.parma.util.ParmaConfig;
+import edu.jhu.hlt.parma.util.ResourcePack;
+import edu.jhu.hlt.parma.util.ResourcePackWriter;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class FrameNet implements Serializable {
@@ -38,9 +42,14 @@ public class FrameNet implements Serializable {
 
 	  public static FrameNet getInstance() {
 		  if(singleton == null) {
-			  try { singleton = new FrameNet(); }
-			  catch (IOException e){
-				  throw new RuntimeException(e);
+			  ResourcePack pack = ResourcePack.sharedWith(PACK_PREFIX + "predicateFrames.keys");
+			  if(pack != null)
+				  singleton = new FrameNet(pack);
+			  else {
+				  try { singleton = new FrameNet(); }
+				  catch (IOException e){
+					  throw new RuntimeException(e);
+				  }
 			  }
 		  }
 		  return singleton;
@@ -62,6 +71,7 @@ public class FrameNet implements Serializable {
 				  frameToPerspectiveChildrenPath);
 
 		  loadData(predToFramesPath, frameToPredsPath, /*frameToRolesPath, predToValencesPath*/ frameToParentsPath, frameToChildrenPath, frameToPerspectiveParentsPath, frameToPerspectiveChildrenPath);
+		  buildIndex();
 	  }
 
 	  private void loadData(String predToFramePath, String frameToPredsPath,
@@ -126,12 +136,14 @@ public class FrameNet implements Serializable {
 	  }
 
 	  public boolean sharedFrame(String first, String second){
-		  Set<String> frames = predicatesToFrames.get(first);
-		  if (frames != null) {
-			  for (String frame : frames){
-				  if ((framesToPredicates.get(frame) != null) && framesToPredicates.get(frame).contains(second))
-					  return true;
-			  }
+		  int[] a = framesOf(first);
+		  int[] b = framesWith(second);
+		  if(a == null || b == null) return false;
+		  int i = 0, j = 0;
+		  while(i < a.length && j < b.length) {
+			  if(a[i] == b[j]) return true;
+			  if(a[i] < b[j]) i++;
+			  else j++;
 		  }
 		  return false;
 	  }
@@ -227,36 +239,160 @@ public class FrameNet implements Serializable {
 		  return getDistance(first, second, maxDistance, TYPE_MIXED);
 	  }
 
-	  public int getDistance(String first, String second, int maxDistance, String type){
-		  assert(first != null);
-		  assert(second != null);
-		  Set<String> visitedFrameSet = new HashSet<String>();
-		  Queue<StringIntPair> queue = new LinkedList<StringIntPair>();
-		  Set<String> potentialFrames = predicatesToFrames.get(first);
-		  if(potentialFrames == null) return maxDistance + 1;
-		  for (String frame : potentialFrames) {
-			  queue.add(new StringIntPair(frame, 1));
+	  private static final String[] TYPES = new String[] {
+		  TYPE_PARENT, TYPE_CHILD, TYPE_PERSPECTIVE_PARENT, TYPE_PERSPECTIVE_CHILD, TYPE_MIXED };
+	  private static final byte UNREACHABLE = Byte.MAX_VALUE;
+
+	  // the frame graph is small and fixed, so every query is answered from tables built once:
+	  // frames get ids, predicates map to sorted frame ids, and for every type,
+	  // frameDistances[type][from * numFrames + to] is the number of edges from one frame to another
+	  private HashMap<String,Integer> frameIds;
+	  private int numFrames;
+	  // when read from a ResourcePack, the packed versions are set and the others are null
+	  private HashMap<String,int[]> predicateFrames;		// from predicatesToFrames
+	  private HashMap<String,int[]> framesWithPredicate;	// inverse of framesToPredicates
+	  private transient PackedMultiMap packedPredicateFrames, packedFramesWithPredicate;
+	  private transient ByteBuffer[] frameDistances;
+
+	  public static final String PACK_PREFIX = "framenet.";
+
+	  private FrameNet(ResourcePack pack) {
+		  System.out.println("loading framenet tables from " + pack.file().getPath());
+		  packedPredicateFrames = pack.multiMap(PACK_PREFIX + "predicateFrames");
+		  packedFramesWithPredicate = pack.multiMap(PACK_PREFIX + "framesWithPredicate");
+		  frameDistances = new ByteBuffer[TYPES.length];
+		  for(int t = 0; t < TYPES.length; t++)
+			  frameDistances[t] = pack.bytes(PACK_PREFIX + "distances." + TYPES[t]);
+		  numFrames = (int) Math.round(Math.sqrt(frameDistances[0].limit()));
+	  }
+
+	  /**
+	   * reads FrameNet from the text files in parma.config and writes its tables to a pack
+	   */
+	  public static void writeTo(ResourcePackWriter w) throws IOException {
+		  FrameNet fn = new FrameNet();
+		  w.multiMap(PACK_PREFIX + "predicateFrames", fn.predicateFrames);
+		  w.multiMap(PACK_PREFIX + "framesWithPredicate", fn.framesWithPredicate);
+		  for(int t = 0; t < TYPES.length; t++)
+			  w.bytes(PACK_PREFIX + "distances." + TYPES[t], fn.frameDistances[t].array());
+	  }
+
+	  private int[] framesOf(String predicate) {
+		  if(packedPredicateFrames != null) return packedPredicateFrames.get(predicate);
+		  return predicateFrames.get(predicate);
+	  }
+
+	  private int[] framesWith(String predicate) {
+		  if(packedFramesWithPredicate != null) return packedFramesWithPredicate.get(predicate);
+		  return framesWithPredicate.get(predicate);
+	  }
+
+	  private void buildIndex() {
+		  frameIds = new HashMap<String,Integer>();
+		  List<String> frames = new ArrayList<String>();
+		  List<Map<String,Set<String>>> maps = Arrays.<Map<String,Set<String>>>asList(framesToPredicates,
+			  framesToParents, framesToChildren, framesToPerspectiveParents, framesToPerspectiveChildren);
+		  for(Map<String,Set<String>> m : maps) {
+			  for(Map.Entry<String,Set<String>> e : m.entrySet()) {
+				  frameId(e.getKey(), frames);
+				  if(m != framesToPredicates)
+					  for(String f : e.getValue()) frameId(f, frames);
+			  }
+		  }
+		  for(Set<String> fs : predicatesToFrames.values())
+			  for(String f : fs) frameId(f, frames);
+		  numFrames = frames.size();
+
+		  predicateFrames = new HashMap<String,int[]>();
+		  for(Map.Entry<String,Set<String>> e : predicatesToFrames.entrySet())
+			  predicateFrames.put(e.getKey(), sortedIds(e.getValue()));
+		  HashMap<String,Set<String>> inverse = new HashMap<String,Set<String>>();
+		  for(Map.Entry<String,Set<String>> e : framesToPredicates.entrySet()) {
+			  for(String pred : e.getValue()) {
+				  if(inverse.get(pred) == null)
+					  inverse.put(pred, new HashSet<String>());
+				  inverse.get(pred).add(e.getKey());
+			  }
 		  }
-		  while(!queue.isEmpty() && queue.peek().i < maxDistance){
-			  StringIntPair sip = queue.remove();
-			  if (!visitedFrameSet.contains(sip.s)){
-				  Set<String> neighbors = framesToPredicates.get(sip.s);
-				  if (neighbors != null) {
-					  for (String neighbor : neighbors) {
-						  if (neighbor.equals(second)){
-							  return sip.i;
+		  framesWithPredicate = new HashMap<String,int[]>();
+		  for(Map.Entry<String,Set<String>> e : inverse.entrySet())
+			  framesWithPredicate.put(e.getKey(), sortedIds(e.getValue()));
+
+		  frameDistances = new ByteBuffer[TYPES.length];
+		  int[] queue = new int[numFrames];
+		  for(int t = 0; t < TYPES.length; t++) {
+			  int[][] adj = new int[numFrames][];
+			  for(int f = 0; f < numFrames; f++)
+				  adj[f] = sortedIds(nextFrame(frames.get(f), TYPES[t]));
+			  byte[] dist = new byte[numFrames * numFrames];
+			  Arrays.fill(dist, UNREACHABLE);
+			  for(int src = 0; src < numFrames; src++) {
+				  int base = src * numFrames;
+				  dist[base + src] = 0;
+				  queue[0] = src;
+				  int head = 0, tail = 1;
+				  while(head < tail) {
+					  int f = queue[head++];
+					  int d = dist[base + f] + 1;
+					  if(d >= UNREACHABLE) break;
+					  for(int g : adj[f]) {
+						  if(dist[base + g] == UNREACHABLE) {
+							  dist[base + g] = (byte) d;
+							  queue[tail++] = g;
 						  }
 					  }
 				  }
-				  visitedFrameSet.add(sip.s);	
-				  if (sip.i < maxDistance) {
-					  for (String frame : nextFrame(sip.s, type)) {
-						  queue.add(new StringIntPair(frame, sip.i+1));
-					  }
-				  }
 			  }
+			  frameDistances[t] = ByteBuffer.wrap(dist);
+		  }
+	  }
+
+	  private int frameId(String frame, List<String> frames) {
+		  Integer id = frameIds.get(frame);
+		  if(id == null) {
+			  id = frames.size();
+			  frameIds.put(frame, id);
+			  frames.add(frame);
+		  }
+		  return id;
+	  }
+
+	  private int[] sortedIds(Set<String> frames) {
+		  int[] ids = new int[frames.size()];
+		  int i = 0;
+		  for(String f : frames) ids[i++] = frameIds.get(f);
+		  Arrays.sort(ids);
+		  return ids;
+	  }
+
+	  private static int typeIndex(String type) {
+		  for(int t = 0; t < TYPES.length; t++)
+			  if(TYPES[t].equals(type)) return t;
+		  throw new RuntimeException("unknown frame relation: " + type);
+	  }
+
+	  /**
+	   * 1 + the fewest edges (of the given type) from a frame of first to a frame
+	   * containing second, if that is less than maxDistance, otherwise maxDistance + 1
+	   */
+	  public int getDistance(String first, String second, int maxDistance, String type){
+		  assert(first != null);
+		  assert(second != null);
+		  int[] from = framesOf(first);
+		  int[] to = framesWith(second);
+		  if(from == null || to == null) return maxDistance + 1;
+		  ByteBuffer dist = frameDistances[typeIndex(type)];
+		  int best = UNREACHABLE;
+		  for(int f : from) {
+			  int base = f * numFrames;
+			  for(int g : to)
+				  if(dist.get(base + g) < best) best = dist.get(base + g);
 		  }
-		  return maxDistance + 1;
+		  // distances are bytes, so paths of UNREACHABLE or more edges count as none
+		  // (the frame graph is nowhere near that deep)
+		  if(best == UNREACHABLE) return maxDistance + 1;
+		  int d = best + 1;
+		  return d < maxDistance ? d : maxDistance + 1;
 	  }
 
 	  private Set<String> nextFrame(String frame, String type) {
@@ -285,13 +421,4 @@ public class FrameNet implements Serializable {
 		  }
 		  return connected;
 	  }
-
-	  private class StringIntPair{
-		  public String s;
-		  public int i;
-		  public StringIntPair(String s, int i) {
-			  this.s = s;
-			  this.i = i;
-		  }
-	  }
 }
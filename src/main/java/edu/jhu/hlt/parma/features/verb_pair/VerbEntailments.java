@@ -6,6 +6,10 @@
 
 package edu.jhu.hlt.parma.features.verb_pair;
 
+import edu.jhu.hlt.parma.util.PackedStrings;
+import edu.jhu.hlt.parma.util.ResourcePack;
+import edu.jhu.hlt.parma.util.ResourcePackWriter;
+
 import java.util.*;
 
 /**
@@ -25,8 +29,13 @@ import java.util.*;
  */
 public class VerbEntailments {
 
+	public static final String PACK_PREFIX = "verbs.";
+
 	private HashMap<String,HashSet<String>> entailed, notEntailed;
 
+	// when read from a ResourcePack: sorted "v1\tv2" pairs
+	private PackedStrings packedEntailed, packedNotEntailed;
+
 	/**
 	 * Constructs a VerbEntailments object based on two maps of entailments
 	 */
@@ -36,10 +45,37 @@ public class VerbEntailments {
 		this.notEntailed = notEntailed;
 	}
 
+	/**
+	 * Reads entailments written by writeTo, see ResourcePackBuilder
+	 */
+	public VerbEntailments(ResourcePack pack) {
+		this.packedEntailed = pack.strings(PACK_PREFIX + "entailed");
+		this.packedNotEntailed = pack.strings(PACK_PREFIX + "notEntailed");
+	}
+
+	public static boolean inPack(ResourcePack pack) {
+		return pack != null && pack.has(PACK_PREFIX + "entailed");
+	}
+
+	public void writeTo(ResourcePackWriter w) {
+		w.strings(PACK_PREFIX + "entailed", pairs(entailed));
+		w.strings(PACK_PREFIX + "notEntailed", pairs(notEntailed));
+	}
+
+	private static String[] pairs(HashMap<String,HashSet<String>> m) {
+		List<String> pairs = new ArrayList<String>();
+		for(Map.Entry<String,HashSet<String>> e : m.entrySet())
+			for(String v2 : e.getValue())
+				pairs.add(e.getKey() + "\t" + v2);
+		return ResourcePack.sort(pairs.toArray(new String[0]));
+	}
+
 	/**
 	 * @return v1 entails v2 or there is no know mapping in entailed for v1.
 	 */
 	public boolean entailed(String v1, String v2) {
+		if(packedEntailed != null)
+			return packedEntailed.contains(v1 + "\t" + v2);
 		if(entailed.get(v1) != null) 
 			return entailed.get(v1).contains(v2);
 		return false;
@@ -49,6 +85,8 @@ public class VerbEntailments {
 	 * @return v1 does not entail v2 OR there is no known mapping in notEntailed for v1.
 	 */
 	public boolean notEntailed(String v1, String v2) {
+		if(packedNotEntailed != null)
+			return packedNotEntailed.contains(v1 + "\t" + v2);
 		if(notEntailed.get(v1) != null)
 			return notEntailed.get(v1).contains(v2);
 		return false;
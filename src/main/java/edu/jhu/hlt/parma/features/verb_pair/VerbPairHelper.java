@@ -7,6 +7,7 @@
 package edu.jhu.hlt.parma.features.verb_pair;
 
 import edu.jhu.hlt.parma.util.ParmaConfig;
+import edu.jhu.hlt.parma.util.ResourcePack;
 
 import java.util.*;
 import java.io.*;
@@ -35,9 +36,22 @@ public class VerbPairHelper {
 	/**
 	 * Constructs a VerbEntailments object from the entailments defined by the value of
 	 * FEATURES_VE_ANNOTATED_DATAPATH as defined in parma.config
+	 * (or from the ResourcePack, if there is one with verb entailments in it)
 	 *
 	 */
 	public static VerbEntailments constructEntailments() {
+		ResourcePack pack = ResourcePack.shared();
+		if(VerbEntailments.inPack(pack)) {
+			logger.info("using verb entailments from " + pack.file().getPath());
+			return new VerbEntailments(pack);
+		}
+		return constructEntailmentsFromText();
+	}
+
+	/**
+	 * the same as constructEntailments, but always reads the text file (ignoring any pack)
+	 */
+	public static VerbEntailments constructEntailmentsFromText() {
 		logger.info("Using default data file from config");
 		String location;
 		try {
@@ -6,7 +6,10 @@
 
 package edu.jhu.hlt.parma.features.wordnet;
 
+import edu.jhu.hlt.parma.util.BoundedCache;
+import edu.jhu.hlt.parma.util.Caches;
 import edu.jhu.hlt.parma.util.ParmaConfig;
+import edu.jhu.hlt.parma.util.ResourcePack;
 
 import edu.mit.jwi.*;
 import edu.mit.jwi.data.*;
@@ -21,8 +24,10 @@ public class WordNet implements Serializable {
 	private static final Logger logger = Logger.getLogger(WordNet.class.getName());
 	private static WordNet singleton = new WordNet();
 	public static final String FEATURES_WORDNET_DATAPATH = "features.wordnet.datapath";
+	public static final String FEATURES_WORDNET_GRAPH = "features.wordnet.graph";
 
 	private transient IRAMDictionary dict;
+	private transient WordNetGraph graph;	// null means search over strings (computeDistance)
 	private boolean setup = false;
 	private int maxDistance = 2;
 
@@ -34,21 +39,53 @@ public class WordNet implements Serializable {
 	public void setup(){
 		if(setup) return;
 		try {
-			File location = ParmaConfig.getDirectory(FEATURES_WORDNET_DATAPATH);
-			logger.info("loading wordnet data from " + location.getPath());
-			loadDictionary(location.getPath());
+			ResourcePack pack = ResourcePack.shared();
+			if(WordNetGraph.inPack(pack)) {
+				// the dictionary is only loaded if something asks for word sets (getSynonyms etc)
+				logger.info("using wordnet graph from " + pack.file().getPath());
+				graph = new WordNetGraph(pack);
+			} else {
+				dictionary();
+				if(ParmaConfig.getBoolean(FEATURES_WORDNET_GRAPH, true)) {
+					long start = System.currentTimeMillis();
+					graph = new WordNetGraph(dict);
+					logger.info(String.format("built wordnet graph with %d words and %d synsets in %.1f seconds",
+						graph.numWords(), graph.numSynsets(), (System.currentTimeMillis() - start) / 1000d));
+				}
+			}
 			setup = true;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private synchronized IRAMDictionary dictionary() {
+		if(dict == null) {
+			try {
+				File location = ParmaConfig.getDirectory(FEATURES_WORDNET_DATAPATH);
+				logger.info("loading wordnet data from " + location.getPath());
+				loadDictionary(location.getPath());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return dict;
+	}
+
 	private void loadDictionary(String filePath) throws IOException {
 		File wnDir = new File(filePath);
 		dict = new RAMDictionary(wnDir, ILoadPolicy.IMMEDIATE_LOAD);
     	dict.open();
 	}
 
+	/**
+	 * builds the graph from the dictionary in features.wordnet.datapath (ignoring any pack)
+	 */
+	public static WordNetGraph buildGraph() {
+		WordNet wn = new WordNet();
+		return new WordNetGraph(wn.dictionary());
+	}
+
 	/*
  	* Get the synonym distance between two strings. Direct synonyms will return of distance of 1. 
  	* If no synonym path is found, it will return 0.	
@@ -120,13 +157,13 @@ public class WordNet implements Serializable {
 	// test it, put into features, benchmark it
 
 
-	public AllPairsShortestPath synSD = new AllPairsShortestPath(maxDistance, new CanSupplyEdges() {
+	public AllPairsShortestPath synSD = new AllPairsShortestPath("synonym", maxDistance, new CanSupplyEdges() {
 		public Collection<String> outEdges(String word) {
 			return getSynonyms(word);
 		}
 	});
 
-	public AllPairsShortestPath meronymSD = new AllPairsShortestPath(maxDistance, new CanSupplyEdges() {
+	public AllPairsShortestPath meronymSD = new AllPairsShortestPath("meronym", maxDistance, new CanSupplyEdges() {
 		public Collection<String> outEdges(String word) {
 			return getMeronyms(word);
 		}
@@ -135,23 +172,26 @@ public class WordNet implements Serializable {
 	static interface CanSupplyEdges { public Collection<String> outEdges(String cur); }
 
 	public static class AllPairsShortestPath {
-		private Map<String, Map<String, Integer>> knownShortestPaths;
-		private Map<String, Collection<String>> adjacency;
+		// keyed on "source\tdest", bounded (see cache.wordnet.shortestPaths.* in parma.config)
+		private BoundedCache<String, Integer> knownShortestPaths;
+		private BoundedCache<String, Collection<String>> adjacency;
 		private CanSupplyEdges edgeGetter;
 		private int maxDistance;
 
-		public AllPairsShortestPath(int maxDistance, CanSupplyEdges edgeGetter) {
+		public AllPairsShortestPath(String relation, int maxDistance, CanSupplyEdges edgeGetter) {
 			this.maxDistance = maxDistance;
-			knownShortestPaths = new HashMap<String, Map<String, Integer>>();
-			adjacency = new HashMap<String, Collection<String>>();
+			knownShortestPaths = Caches.getCache("wordnet.shortestPaths." + relation, 500000);
+			adjacency = Caches.getCache("wordnet.adjacency." + relation, 100000);
 			this.edgeGetter = edgeGetter;
 		}
 
 		private Collection<String> leaving(String node) {
 			Collection<String> l = adjacency.get(node);
 			if(l == null) {
+				long start = System.nanoTime();
 				l = edgeGetter.outEdges(node);
 				if(l == null) l = Collections.<String>emptyList();
+				adjacency.recordLoad(System.nanoTime() - start);
 				adjacency.put(node, l);
 			}
 			return l;
@@ -187,21 +227,11 @@ public class WordNet implements Serializable {
 		}
 
 		private void setShortestKnownPath(String source, String dest, int dist) {
-			Map<String, Integer> m = knownShortestPaths.get(source);
-			if(m == null) {
-				m = new HashMap<String, Integer>();
-				knownShortestPaths.put(source, m);
-			}
-			Integer old = m.put(dest, dist);
-			assert old == null || old > dist;
+			knownShortestPaths.put(source + "\t" + dest, dist);
 		}
 
 		private Integer cache(String source, String dest) {
-			Integer d = null;
-			Map<String, Integer> m = knownShortestPaths.get(source);
-			if(m != null)
-				d = m.get(dest);
-			return d;
+			return knownShortestPaths.get(source + "\t" + dest);
 		}
 	}
 
@@ -212,8 +242,29 @@ public class WordNet implements Serializable {
 	/*
  	* Performs a breadth first search to find the shortest path, if it exists 
  	*/
+	// keyed on methods, maxDistance, first, second
+	private transient BoundedCache<String, Integer> distanceCache;
+
 	private int getDistance(String first, String second, int maxDistance, String[] methods) {
+		if(distanceCache == null)
+			distanceCache = Caches.getCache("wordnet.distance", 200000);
+		StringBuilder sb = new StringBuilder();
+		for(String m : methods) sb.append(m).append(',');
+		String key = sb.append('\t').append(maxDistance).append('\t').append(first).append('\t').append(second).toString();
+		Integer d = distanceCache.get(key);
+		if(d == null) {
+			long start = System.nanoTime();
+			d = computeDistance(first, second, maxDistance, methods);
+			distanceCache.recordLoad(System.nanoTime() - start);
+			distanceCache.put(key, d);
+		}
+		return d;
+	}
+
+	private int computeDistance(String first, String second, int maxDistance, String[] methods) {
 		assert setup;
+		if(graph != null)
+			return graph.distance(first, second, maxDistance, relationMask(methods));
 		if (first.equalsIgnoreCase(second))
 			return 1;		
 		Set<String> visitedSet = new HashSet<String>();
@@ -244,6 +295,19 @@ public class WordNet implements Serializable {
 		return maxDistance + 1;
 	}
 
+	private static int relationMask(String[] methods) {
+		int mask = 0;
+		for(String method : methods) {
+			if(method.equals("getSynonyms")) mask |= WordNetGraph.SYNONYM;
+			else if(method.equals("getHypernyms")) mask |= WordNetGraph.HYPERNYM;
+			else if(method.equals("getHyponyms")) mask |= WordNetGraph.HYPONYM;
+			else if(method.equals("getMeronyms")) mask |= WordNetGraph.MERONYM;
+			else if(method.equals("getHolonyms")) mask |= WordNetGraph.HOLONYM;
+			else throw new RuntimeException("wut: " + method);
+		}
+		return mask;
+	}
+
 	private HashSet<String> staticDispatch(String method, String word) {
 		if(method.equals("getSynonyms"))
 			return getSynonyms(word);
@@ -302,7 +366,7 @@ public class WordNet implements Serializable {
 		for (ISynset synset : synsets) {
 			List<ISynsetID> synsetIds = synset.getRelatedSynsets(pointer);	
 			for (ISynsetID sid : synsetIds) {
-				for (IWord w : dict.getSynset(sid).getWords()){
+				for (IWord w : dictionary().getSynset(sid).getWords()){
 					set.add(formatString(w.getLemma()));
 				}
 			}
@@ -315,12 +379,12 @@ public class WordNet implements Serializable {
 		IIndexWord idxWord;
 		List<IWordID> wordIDs;
 		for (POS pos : POS.values()){
-			idxWord = dict.getIndexWord(input, pos);
+			idxWord = dictionary().getIndexWord(input, pos);
 			if (idxWord != null) {
 				wordIDs = idxWord.getWordIDs();
 				IWord word;
 				for (IWordID wordID : wordIDs){
-					word = dict.getWord(wordID);
+					word = dictionary().getWord(wordID);
 					synsets.add(word.getSynset());
 				}
 			}
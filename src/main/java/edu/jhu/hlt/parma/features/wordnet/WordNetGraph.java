@@ -0,0 +1,476 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features.wordnet;
+
+import edu.jhu.hlt.parma.util.PackedStrings;
+import edu.jhu.hlt.parma.util.ResourcePack;
+import edu.jhu.hlt.parma.util.ResourcePackWriter;
+import edu.mit.jwi.IDictionary;
+import edu.mit.jwi.item.*;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * WordNet compiled down to int ids: words (lowercased lemmas, '_' replaced with ' '),
+ * synsets, word -> synsets and synset -> words, and for each relation a synset -> synset
+ * adjacency list (and its reverse) in CSR form (offsets + targets).
+ *
+ * distance() gives the same answers as WordNet.getDistance (a BFS over words where the
+ * neighbors of a word are the words in related synsets), but searches from both ends,
+ * uses ids instead of strings, and allocates nothing per query (scratch space is per thread).
+ * like WordNet.getDistance, looking up a word ignores case, but the second word must equal
+ * a lemma (with '_' replaced by ' ') exactly, and a lemma is a new word even if another casing
+ * of it was reached sooner, so the graph also keeps lemma -> synsets and synset -> lemmas.
+ *
+ * the arrays are either on the heap (built from a JWI dictionary) or mapped from a
+ * ResourcePack (see writeTo), word ids are the same in both: the sorted order of the words.
+ */
+public class WordNetGraph {
+
+	// relations, use these as a bit mask
+	public static final int SYNONYM = 1;
+	public static final int HYPERNYM = 2;
+	public static final int HYPONYM = 4;
+	public static final int MERONYM = 8;
+	public static final int HOLONYM = 16;
+	private static final int NUM_RELATIONS = 4;	// not counting SYNONYM, which is implicit
+	private static final Pointer[][] POINTERS = new Pointer[][] {
+		{ Pointer.HYPERNYM },
+		{ Pointer.HYPONYM },
+		{ Pointer.MERONYM_MEMBER, Pointer.MERONYM_PART, Pointer.MERONYM_SUBSTANCE },
+		{ Pointer.HOLONYM_MEMBER, Pointer.HOLONYM_PART, Pointer.HOLONYM_SUBSTANCE }
+	};
+
+	public static final String PACK_PREFIX = "wordnet.";
+
+	private final HashMap<String, Integer> wordIds;	// null if read from a pack
+	private final PackedStrings packedWords;			// null if built on the heap
+	private final int numWords, numSynsets;
+	private final IntBuffer wordSynStart, wordSyns;		// word -> synsets
+	private final IntBuffer synWordStart, synWords;		// synset -> words
+	private final IntBuffer[] relStart, relTargets;		// [relation] synset -> synsets
+	private final IntBuffer[] revStart, revTargets;		// [relation] synset -> synsets pointing at it
+	private final PackedStrings lemmas;					// lemmas as they are (not lowercased)
+	private final IntBuffer lemmaSynStart, lemmaSyns;	// lemma -> synsets
+	private final IntBuffer synLemmaStart, synLemmas;	// synset -> lemmas
+
+	public static String key(String word) {
+		return word.toLowerCase().replace('_', ' ').trim();
+	}
+
+	/** how WordNet.getDistance compares the second word to neighbors */
+	public static String lemma(String word) {
+		return word.replace('_', ' ');
+	}
+
+	/**
+	 * reads every synset out of a JWI dictionary (use one that is in RAM, this touches everything)
+	 */
+	public WordNetGraph(IDictionary dict) {
+		HashMap<ISynsetID, Integer> synIds = new HashMap<ISynsetID, Integer>();
+		List<ISynset> synsets = new ArrayList<ISynset>();
+		for(POS pos : POS.values()) {
+			Iterator<ISynset> iter = dict.getSynsetIterator(pos);
+			while(iter.hasNext()) {
+				ISynset s = iter.next();
+				synIds.put(s.getID(), synsets.size());
+				synsets.add(s);
+			}
+		}
+		numSynsets = synsets.size();
+
+		// word ids are their sorted order (which is how a pack finds them)
+		Set<String> words = new HashSet<String>();
+		for(ISynset s : synsets)
+			for(IWord w : s.getWords())
+				words.add(key(w.getLemma()));
+		String[] sorted = ResourcePack.sort(words.toArray(new String[0]));
+		wordIds = new HashMap<String, Integer>();
+		for(int i = 0; i < sorted.length; i++)
+			wordIds.put(sorted[i], i);
+		packedWords = null;
+		numWords = sorted.length;
+
+		// synset -> words
+		IntList sw = new IntList();
+		int[] swStart = new int[numSynsets + 1];
+		for(int s = 0; s < numSynsets; s++) {
+			swStart[s] = sw.size;
+			for(IWord w : synsets.get(s).getWords())
+				sw.addUnique(wordIds.get(key(w.getLemma())), swStart[s]);
+		}
+		swStart[numSynsets] = sw.size;
+		int[] swTargets = sw.toArray();
+		synWordStart = IntBuffer.wrap(swStart);
+		synWords = IntBuffer.wrap(swTargets);
+
+		// word -> synsets (transpose)
+		int[][] ws = transpose(swStart, swTargets, numWords);
+		wordSynStart = IntBuffer.wrap(ws[0]);
+		wordSyns = IntBuffer.wrap(ws[1]);
+
+		// lemma -> synsets, in the same way
+		Set<String> ls = new HashSet<String>();
+		for(ISynset s : synsets)
+			for(IWord w : s.getWords())
+				ls.add(lemma(w.getLemma()));
+		String[] sortedLemmas = ResourcePack.sort(ls.toArray(new String[0]));
+		lemmas = PackedStrings.apply(sortedLemmas);
+		IntList sl = new IntList();
+		int[] slStart = new int[numSynsets + 1];
+		for(int s = 0; s < numSynsets; s++) {
+			slStart[s] = sl.size;
+			for(IWord w : synsets.get(s).getWords())
+				sl.addUnique(lemmas.indexOf(lemma(w.getLemma())), slStart[s]);
+		}
+		slStart[numSynsets] = sl.size;
+		int[] slTargets = sl.toArray();
+		synLemmaStart = IntBuffer.wrap(slStart);
+		synLemmas = IntBuffer.wrap(slTargets);
+		int[][] lsyn = transpose(slStart, slTargets, sortedLemmas.length);
+		lemmaSynStart = IntBuffer.wrap(lsyn[0]);
+		lemmaSyns = IntBuffer.wrap(lsyn[1]);
+
+		// relations
+		relStart = new IntBuffer[NUM_RELATIONS];
+		relTargets = new IntBuffer[NUM_RELATIONS];
+		revStart = new IntBuffer[NUM_RELATIONS];
+		revTargets = new IntBuffer[NUM_RELATIONS];
+		for(int r = 0; r < NUM_RELATIONS; r++) {
+			IntList targets = new IntList();
+			int[] start = new int[numSynsets + 1];
+			for(int s = 0; s < numSynsets; s++) {
+				start[s] = targets.size;
+				for(Pointer p : POINTERS[r])
+					for(ISynsetID t : synsets.get(s).getRelatedSynsets(p))
+						targets.addUnique(synIds.get(t), start[s]);
+			}
+			start[numSynsets] = targets.size;
+			int[] tg = targets.toArray();
+			int[][] rev = transpose(start, tg, numSynsets);
+			relStart[r] = IntBuffer.wrap(start);
+			relTargets[r] = IntBuffer.wrap(tg);
+			revStart[r] = IntBuffer.wrap(rev[0]);
+			revTargets[r] = IntBuffer.wrap(rev[1]);
+		}
+	}
+
+	/**
+	 * maps a graph that was written with writeTo, nothing is read until it is needed
+	 */
+	public WordNetGraph(ResourcePack pack) {
+		wordIds = null;
+		packedWords = pack.strings(PACK_PREFIX + "words");
+		numWords = packedWords.size();
+		wordSynStart = pack.ints(PACK_PREFIX + "wordSynStart");
+		wordSyns = pack.ints(PACK_PREFIX + "wordSyns");
+		synWordStart = pack.ints(PACK_PREFIX + "synWordStart");
+		synWords = pack.ints(PACK_PREFIX + "synWords");
+		numSynsets = synWordStart.limit() - 1;
+		if(!pack.has(PACK_PREFIX + "synLemmas"))
+			throw new RuntimeException("this resource pack's wordnet graph has no lemmas, rebuild it: " + pack.file().getPath());
+		lemmas = pack.strings(PACK_PREFIX + "lemmas");
+		lemmaSynStart = pack.ints(PACK_PREFIX + "lemmaSynStart");
+		lemmaSyns = pack.ints(PACK_PREFIX + "lemmaSyns");
+		synLemmaStart = pack.ints(PACK_PREFIX + "synLemmaStart");
+		synLemmas = pack.ints(PACK_PREFIX + "synLemmas");
+		relStart = new IntBuffer[NUM_RELATIONS];
+		relTargets = new IntBuffer[NUM_RELATIONS];
+		revStart = new IntBuffer[NUM_RELATIONS];
+		revTargets = new IntBuffer[NUM_RELATIONS];
+		for(int r = 0; r < NUM_RELATIONS; r++) {
+			relStart[r] = pack.ints(PACK_PREFIX + "relStart." + r);
+			relTargets[r] = pack.ints(PACK_PREFIX + "relTargets." + r);
+			revStart[r] = pack.ints(PACK_PREFIX + "revStart." + r);
+			revTargets[r] = pack.ints(PACK_PREFIX + "revTargets." + r);
+		}
+	}
+
+	public static boolean inPack(ResourcePack pack) {
+		return pack != null && pack.has(PACK_PREFIX + "words");
+	}
+
+	/** only for graphs built on the heap */
+	public void writeTo(ResourcePackWriter w) {
+		if(wordIds == null)
+			throw new RuntimeException("this graph was read from a pack");
+		String[] words = new String[numWords];
+		for(Map.Entry<String, Integer> e : wordIds.entrySet())
+			words[e.getValue()] = e.getKey();
+		w.strings(PACK_PREFIX + "words", words);
+		w.ints(PACK_PREFIX + "wordSynStart", wordSynStart.array());
+		w.ints(PACK_PREFIX + "wordSyns", wordSyns.array());
+		w.ints(PACK_PREFIX + "synWordStart", synWordStart.array());
+		w.ints(PACK_PREFIX + "synWords", synWords.array());
+		String[] ls = new String[lemmas.size()];
+		for(int i = 0; i < ls.length; i++)
+			ls[i] = lemmas.get(i);
+		w.strings(PACK_PREFIX + "lemmas", ls);
+		w.ints(PACK_PREFIX + "lemmaSynStart", lemmaSynStart.array());
+		w.ints(PACK_PREFIX + "lemmaSyns", lemmaSyns.array());
+		w.ints(PACK_PREFIX + "synLemmaStart", synLemmaStart.array());
+		w.ints(PACK_PREFIX + "synLemmas", synLemmas.array());
+		for(int r = 0; r < NUM_RELATIONS; r++) {
+			w.ints(PACK_PREFIX + "relStart." + r, relStart[r].array());
+			w.ints(PACK_PREFIX + "relTargets." + r, relTargets[r].array());
+			w.ints(PACK_PREFIX + "revStart." + r, revStart[r].array());
+			w.ints(PACK_PREFIX + "revTargets." + r, revTargets[r].array());
+		}
+	}
+
+	private static int[][] transpose(int[] start, int[] targets, int numTargets) {
+		int[] counts = new int[numTargets + 1];
+		for(int t : targets) counts[t + 1]++;
+		for(int i = 0; i < numTargets; i++) counts[i + 1] += counts[i];
+		int[] tStart = counts.clone();
+		int[] tTargets = new int[targets.length];
+		int[] fill = counts;	// reuse as the write position
+		for(int s = 0; s + 1 < start.length; s++)
+			for(int k = start[s]; k < start[s + 1]; k++)
+				tTargets[fill[targets[k]]++] = s;
+		return new int[][] { tStart, tTargets };
+	}
+
+	public int numWords() { return numWords; }
+	public int numSynsets() { return numSynsets; }
+
+	/** -1 if this word is not in WordNet */
+	public int wordId(String word) {
+		if(packedWords != null)
+			return packedWords.indexOf(key(word));
+		Integer id = wordIds.get(key(word));
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * see WordNet.getDistance: the number of edges from first to second if that is
+	 * less than maxDistance, otherwise maxDistance if first has any word maxDistance-1
+	 * edges away, otherwise maxDistance+1.
+	 * relations is a mask of SYNONYM, HYPERNYM, etc.
+	 */
+	public int distance(String first, String second, int maxDistance, int relations) {
+		if(first.equalsIgnoreCase(second))
+			return 1;
+		if(maxDistance < 2)
+			return maxDistance;
+		int src = wordId(first);
+		if(src < 0) return maxDistance + 1;
+		Scratch sc = scratch.get();
+		sc.reset(numWords, numSynsets);
+		// second is only found through synsets with a lemma that is exactly second (case, spaces and all)
+		int lem = lemmas.indexOf(second);
+		int d = -1;
+		if(lem >= 0) {
+			sc.markTargets(lemmaSyns, lemmaSynStart.get(lem), lemmaSynStart.get(lem + 1));
+			d = bidirectional(src, lemmaSynStart.get(lem), lemmaSynStart.get(lem + 1), maxDistance - 1, relations, sc);
+		}
+		if(d >= 0) return d;
+		sc.reset(numWords, numSynsets);
+		return reaches(src, lemmas.indexOf(first), maxDistance - 1, relations, sc) ? maxDistance : maxDistance + 1;
+	}
+
+	/**
+	 * shortest number of edges from src to second if it is at most maxEdges, else -1.
+	 * the backward search starts from the target synsets lemmaSyns[from, until) rather than
+	 * a word, so the word second lowercases to is an ordinary word on both sides
+	 */
+	private int bidirectional(int src, int from, int until, int maxEdges, int relations, Scratch sc) {
+		Side f = sc.forward, b = sc.backward;
+		f.start(src);
+		b.startEmpty();
+		// words one edge from a target
+		int best = Integer.MAX_VALUE;
+		for(int k = from; k < until; k++)
+			best = Math.min(best, emitInto(lemmaSyns.get(k), b, f, 1, relations, false, sc));
+		b.level = 1;
+		if(best < Integer.MAX_VALUE)
+			return best <= maxEdges ? best : -1;
+		while(f.level + b.level < maxEdges && !f.exhausted() && !b.exhausted()) {
+			Side grow = f.frontierSize() <= b.frontierSize() ? f : b;
+			Side other = grow == f ? b : f;
+			best = expand(grow, other, relations, grow == f, sc);
+			if(best < Integer.MAX_VALUE)
+				return best <= maxEdges ? best : -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * expands every word in grow's frontier by one edge,
+	 * returns the length of the shortest path through a word other has seen
+	 * (or, going forward, into a target synset), or MAX_VALUE
+	 */
+	private int expand(Side grow, Side other, int relations, boolean forward, Scratch sc) {
+		int best = Integer.MAX_VALUE;
+		int from = grow.frontierStart, until = grow.tail;
+		int nextLevel = grow.level + 1;
+		for(int qi = from; qi < until; qi++) {
+			int w = grow.queue[qi];
+			for(int k = wordSynStart.get(w), end = wordSynStart.get(w + 1); k < end; k++)
+				best = Math.min(best, emitInto(wordSyns.get(k), grow, other, nextLevel, relations, forward, sc));
+		}
+		grow.frontierStart = until;
+		grow.level = nextLevel;
+		return best;
+	}
+
+	/** emits synset s and every synset one relation away from it (against the relations if !forward) */
+	private int emitInto(int s, Side grow, Side other, int level, int relations, boolean forward, Scratch sc) {
+		int best = Integer.MAX_VALUE;
+		if((relations & SYNONYM) != 0)
+			best = Math.min(best, emit(s, grow, other, level, forward, sc));
+		for(int r = 0; r < NUM_RELATIONS; r++) {
+			if((relations & (HYPERNYM << r)) == 0) continue;
+			IntBuffer st = forward ? relStart[r] : revStart[r];
+			IntBuffer tg = forward ? relTargets[r] : revTargets[r];
+			for(int j = st.get(s), jEnd = st.get(s + 1); j < jEnd; j++)
+				best = Math.min(best, emit(tg.get(j), grow, other, level, forward, sc));
+		}
+		return best;
+	}
+
+	/** adds every word in synset s to grow at level, returns the best meeting with other */
+	private int emit(int s, Side grow, Side other, int level, boolean forward, Scratch sc) {
+		if(grow.synMark[s] == grow.stamp) return Integer.MAX_VALUE;
+		grow.synMark[s] = grow.stamp;
+		grow.synLevel[s] = level;
+		grow.synQueue[grow.synTail++] = s;
+		int best = forward && sc.isTarget(s) ? level : Integer.MAX_VALUE;
+		for(int k = synWordStart.get(s), end = synWordStart.get(s + 1); k < end; k++) {
+			int w = synWords.get(k);
+			if(grow.mark[w] == grow.stamp) continue;
+			if(other.mark[w] == other.stamp)
+				best = Math.min(best, level + other.dist[w]);
+			grow.mark[w] = grow.stamp;
+			grow.dist[w] = level;
+			grow.queue[grow.tail++] = w;
+		}
+		return best;
+	}
+
+	/**
+	 * is there a word exactly edges away from src. as in WordNet.getDistance, where the
+	 * BFS is over lemmas, a lemma counts even if another casing of it is closer
+	 * (firstLem is first's lemma, or -1, which is never counted)
+	 */
+	private boolean reaches(int src, int firstLem, int edges, int relations, Scratch sc) {
+		Side f = sc.forward, b = sc.backward;
+		f.start(src);
+		b.startEmpty();	// nothing marked on the other side
+		int lastLevel = 0;
+		while(f.level < edges) {
+			if(f.exhausted()) return false;
+			lastLevel = f.synTail;
+			expand(f, b, relations, true, sc);
+		}
+		if(!f.exhausted()) return true;
+		// synsets first reached at this level may still have lemmas that weren't reached before
+		for(int i = lastLevel; i < f.synTail; i++) {
+			int s = f.synQueue[i];
+			for(int k = synLemmaStart.get(s), end = synLemmaStart.get(s + 1); k < end; k++) {
+				int x = synLemmas.get(k);
+				if(x != firstLem && !reachedBefore(f, x, edges))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** was any synset with lemma x reached in fewer than level edges */
+	private boolean reachedBefore(Side f, int x, int level) {
+		for(int k = lemmaSynStart.get(x), end = lemmaSynStart.get(x + 1); k < end; k++) {
+			int t = lemmaSyns.get(k);
+			if(f.synMark[t] == f.stamp && f.synLevel[t] < level)
+				return true;
+		}
+		return false;
+	}
+
+	/** one direction of a BFS, marks are valid when they equal stamp */
+	private static final class Side {
+		int[] mark, dist, synMark, queue;
+		int[] synLevel, synQueue;	// synsets in the order they were reached
+		int stamp, level, frontierStart, tail, synTail;
+		void ensure(int numWords, int numSynsets) {
+			if(mark == null || mark.length < numWords) {
+				mark = new int[numWords];
+				dist = new int[numWords];
+				queue = new int[numWords];
+				stamp = 0;
+			}
+			if(synMark == null || synMark.length < numSynsets) {
+				synMark = new int[numSynsets];
+				synLevel = new int[numSynsets];
+				synQueue = new int[numSynsets];
+			}
+		}
+		void start(int w) {
+			startEmpty();
+			mark[w] = stamp;
+			dist[w] = 0;
+			queue[tail++] = w;
+		}
+		/** starts with nothing marked, the caller fills in the first level */
+		void startEmpty() {
+			stamp++;
+			if(stamp == Integer.MAX_VALUE) {
+				Arrays.fill(mark, 0);
+				Arrays.fill(synMark, 0);
+				stamp = 1;
+			}
+			frontierStart = 0;
+			tail = 0;
+			synTail = 0;
+			level = 0;
+		}
+		boolean exhausted() { return frontierStart == tail; }
+		int frontierSize() { return tail - frontierStart; }
+	}
+
+	private static final class Scratch {
+		final Side forward = new Side(), backward = new Side();
+		int[] targetMark;
+		int targetStamp;
+		void reset(int numWords, int numSynsets) {
+			forward.ensure(numWords, numSynsets);
+			backward.ensure(numWords, numSynsets);
+			if(targetMark == null || targetMark.length < numSynsets) {
+				targetMark = new int[numSynsets];
+				targetStamp = 0;
+			}
+		}
+		/** the synsets in syns[from, until) become the targets */
+		void markTargets(IntBuffer syns, int from, int until) {
+			targetStamp++;
+			if(targetStamp == Integer.MAX_VALUE) {
+				Arrays.fill(targetMark, 0);
+				targetStamp = 1;
+			}
+			for(int k = from; k < until; k++)
+				targetMark[syns.get(k)] = targetStamp;
+		}
+		boolean isTarget(int s) { return targetMark[s] == targetStamp; }
+	}
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override protected Scratch initialValue() { return new Scratch(); }
+	};
+
+	private static final class IntList {
+		int[] items = new int[1024];
+		int size = 0;
+		/** adds x unless it is already in items[from, size) */
+		void addUnique(int x, int from) {
+			for(int i = from; i < size; i++)
+				if(items[i] == x) return;
+			if(size == items.length) items = Arrays.copyOf(items, size * 2);
+			items[size++] = x;
+		}
+		int[] toArray() { return Arrays.copyOf(items, size); }
+	}
+}
@@ -26,8 +26,13 @@ import java.io.FileReader;
 import java.io.BufferedWriter;
 import java.io.BufferedReader;
 import java.io.Serializable;
+import java.io.File;
+import java.nio.IntBuffer;
 
 import edu.jhu.hlt.parma.util.Alphabet;
+import edu.jhu.hlt.parma.util.PackedStrings;
+import edu.jhu.hlt.parma.util.ResourcePack;
+import edu.jhu.hlt.parma.util.ResourcePackWriter;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.BiMap;
@@ -55,6 +60,13 @@ public class ArpabetPhoneticDictionary implements PhoneticDictionary, Serializab
     // Alignment to phonemes for each token in the dictionary
     Map<String, Alignment> dict   = HashBiMap.create();
 
+    // Or, if the dictionary was loaded from a ResourcePack, the same thing in CSR form:
+    // word i has graphemes/phones in [packedStart[i], packedStart[i+1])
+    public static final String PACK_PREFIX = "arpabet.";
+    transient PackedStrings packedWords = null;
+    transient IntBuffer packedStart, packedGraphemes, packedPhones;
+    int [] packedPhoneMap; // phone index in the pack -> phone index here
+
     Alphabet<Character> A = null;
 
     public ArpabetPhoneticDictionary(Alphabet<Character> a) {
@@ -160,9 +172,12 @@ public class ArpabetPhoneticDictionary implements PhoneticDictionary, Serializab
         pclassmap.put(phone_index, class_index);
     }
 
-    // Load dictionary entries (including alignments)
+    // Load dictionary entries (including alignments), path may also be a ResourcePack
     public void loadDictionary(String path) {
-
+        if(ResourcePack.isPack(new File(path))) {
+            loadDictionary(new ResourcePack(new File(path)));
+            return;
+        }
         System.err.println("Loading dictionary from: " + path);
 
         assert(A != null);
@@ -238,6 +253,72 @@ public class ArpabetPhoneticDictionary implements PhoneticDictionary, Serializab
         }
     }
 
+    public void loadDictionary(ResourcePack pack) {
+        System.err.println("Loading dictionary from pack: " + pack.file().getPath());
+        String [] phones = pack.text(PACK_PREFIX + "phoneNames").split("\n");
+        packedPhoneMap = new int[phones.length];
+        for(int i=0; i<phones.length; i++) {
+            packedPhoneMap[i] = getPhoneIndex(phones[i]);
+        }
+        packedWords     = pack.strings(PACK_PREFIX + "words");
+        packedStart     = pack.ints(PACK_PREFIX + "start");
+        packedGraphemes = pack.ints(PACK_PREFIX + "graphemes");
+        packedPhones    = pack.ints(PACK_PREFIX + "phones");
+        this.initialized = true;
+    }
+
+    // Writes a dictionary loaded from a text file to a pack, see ResourcePackBuilder
+    public void writeTo(ResourcePackWriter w) {
+        if(packedWords != null) {
+            throw new RuntimeException("this dictionary was read from a pack");
+        }
+        StringBuilder names = new StringBuilder();
+        for(int p=0; p<getNumPhones(); p++) {
+            if(p > 0) names.append('\n');
+            names.append(getPhoneName(p));
+        }
+        String [] words = ResourcePack.sort(dict.keySet().toArray(new String[0]));
+        int [] start = new int[words.length+1];
+        for(int i=0; i<words.length; i++) {
+            start[i+1] = start[i] + dict.get(words[i]).len();
+        }
+        int [] graphemes = new int[start[words.length]];
+        int [] phones = new int[start[words.length]];
+        for(int i=0; i<words.length; i++) {
+            Alignment a = dict.get(words[i]);
+            for(int j=0; j<a.len(); j++) {
+                graphemes[start[i]+j] = a.ch(j) == -1 ? -1 : (int) A.lookupObject(a.ch(j)).charValue();
+                phones[start[i]+j] = a.phone(j);
+            }
+        }
+        w.text(PACK_PREFIX + "phoneNames", names.toString());
+        w.strings(PACK_PREFIX + "words", words);
+        w.ints(PACK_PREFIX + "start", start);
+        w.ints(PACK_PREFIX + "graphemes", graphemes);
+        w.ints(PACK_PREFIX + "phones", phones);
+    }
+
+    // The alignment for an (upper case) token, or null if it isn't in the dictionary
+    private Alignment lookup(String token) {
+        if(packedWords == null) {
+            return dict.get(token);
+        }
+        int i = packedWords.indexOf(token);
+        if(i < 0) return null;
+        int start = packedStart.get(i);
+        int n = packedStart.get(i+1) - start;
+        int [] xs = new int[n];
+        int [] ps = new int[n];
+        int [] cs = new int[n];
+        for(int j=0; j<n; j++) {
+            int g = packedGraphemes.get(start+j);
+            xs[j] = g == -1 ? -1 : A.lookupIndex((char) g);
+            ps[j] = packedPhoneMap[packedPhones.get(start+j)];
+            cs[j] = getIntPhoneClass(ps[j]);
+        }
+        return new Alignment(xs, xs, ps, cs);
+    }
+
     private String stripStress(String phoneme) {
         int len = phoneme.length();
         Character c = phoneme.charAt(len-1);
@@ -292,8 +373,8 @@ public class ArpabetPhoneticDictionary implements PhoneticDictionary, Serializab
             //            System.err.println("Token: " + token);
 
             // Is this token in the phonetic dictionary?
-            if(dict.containsKey(token)) {
-                Alignment ta = dict.get(token);
+            Alignment ta = lookup(token);
+            if(ta != null) {
 
                                // System.err.println(ta.len());
                                // System.err.println(ta.plen());
@@ -11,8 +11,9 @@ package edu.jhu.hlt.parma.inference.transducers;
 
 /**
  * A basic reasonable model of p(output string | input string), trainable with EM.
- * The current implementation doesn't use log probabilities, so it's only appropriate 
- * for short strings.
+ * Training doesn't use log probabilities, so it's only appropriate for short
+ * strings.  Scoring (logp) rescales the forward lattice, or works in log space
+ * when it has to, so it doesn't underflow on long or dissimilar strings.
  * 
  * Does not require any other classes.
  * Currently implements the (ugly) string transducer interface.
@@ -90,7 +91,18 @@ package edu.jhu.hlt.parma.inference.transducers;
 
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.DecimalFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
@@ -135,6 +147,17 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
     // Limits on EM iterations for training.
     final static int MAX_EM_ITER = 50;
     final static int MIN_EM_ITER = 25;
+
+    // The E-step works on chunks of this many training pairs, each counted on its
+    // own and then added to the model in order, so EM gives the same answer no
+    // matter how many threads it runs on.
+    final static int EM_CHUNK = 256;
+
+    // Threads for the E-step and for restarts (not saved with the model).
+    protected transient int numThreads = 1;
+
+    // Restart r > 0 starts from parameters perturbed by a generator seeded with seed + r.
+    protected long seed = 0;
     
     /** Constructor.  Only requires size of input and output alphabets.
      * The initial parameters before training are set to "something reasonable," 
@@ -182,18 +205,75 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
         train(xs,ys,weights,restart);
     }
     
-    public void train(AnnotatedString [] xs, AnnotatedString [] ys, double [] weights, int nrestart) {
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return Math.max(1, numThreads);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Trains by EM.  With nrestart > 1, EM is run that many times (concurrently, on
+     * up to getNumThreads() threads): once from the current parameters and then from
+     * random perturbations of them (see seed), keeping the run with the best
+     * log-likelihood.
+     */
+    public void train(final AnnotatedString [] xs, final AnnotatedString [] ys, final double [] weights, int nrestart) {
         assert(xs.length == ys.length);
         assert(ys.length == weights.length);
         assert(nrestart > 0);
-      
+
+        if(nrestart == 1) {
+            runEM(xs, ys, weights, "");
+            return;
+        }
+        int nthreads = Math.min(nrestart, getNumThreads());
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        try {
+            List<Future<Double>> lls = new ArrayList<Future<Double>>();
+            final List<BackoffConditionalEditModel> runs = new ArrayList<BackoffConditionalEditModel>();
+            for(int r=0; r<nrestart; r++) {
+                final BackoffConditionalEditModel run = copy();
+                final String name = "[restart " + r + "] ";
+                // restarts already keep the threads busy
+                run.setNumThreads(nthreads < getNumThreads() ? getNumThreads() / nthreads : 1);
+                if(r > 0) run.perturb(new MersenneTwisterFast(seed + r));
+                runs.add(run);
+                lls.add(pool.submit(new Callable<Double>() {
+                    public Double call() { return run.runEM(xs, ys, weights, name); }
+                }));
+            }
+            int best = -1;
+            double bestll = Double.NEGATIVE_INFINITY;
+            for(int r=0; r<nrestart; r++) {
+                double ll = getResult(lls.get(r));
+                System.err.println("restart " + r + ": LL=" + ll);
+                if(best < 0 || ll > bestll) {
+                    best = r;
+                    bestll = ll;
+                }
+            }
+            System.err.println("keeping restart " + best);
+            stateModel = runs.get(best).stateModel;
+            editModel = runs.get(best).editModel;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Runs EM until convergence, returning the log-likelihood of the last step. */
+    protected double runEM(AnnotatedString [] xs, AnnotatedString [] ys, double [] weights, String name) {
         boolean converged = false;
         double ll = Double.NEGATIVE_INFINITY, prevll = Double.NEGATIVE_INFINITY;
         int iter = 0;
-        System.err.println("running EM...");
+        System.err.println(name + "running EM...");
         while(!converged && iter<MIN_EM_ITER) {
             ll = em_step(xs,ys,weights);
-            System.err.println("Iter " + iter + ": LL="+ll);
+            System.err.println(name + "Iter " + iter + ": LL="+ll);
             if(1.0 - (ll/prevll) < 0.0001) {
                 converged = true;
             }
@@ -201,7 +281,43 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
             iter++;
             if(iter>MAX_EM_ITER) break;
         }
-    } 
+        return ll;
+    }
+
+    /** A deep copy, by serialization. */
+    public BackoffConditionalEditModel copy() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(this);
+            out.close();
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            BackoffConditionalEditModel m = (BackoffConditionalEditModel) in.readObject();
+            in.close();
+            m.setNumThreads(getNumThreads());
+            return m;
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        } catch(ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Moves the parameters to a random point nearby, for EM restarts. */
+    protected void perturb(MersenneTwisterFast rng) {
+        stateModel.perturb(rng);
+        editModel.perturb(rng);
+    }
+
+    private static <T> T getResult(Future<T> f) {
+        try {
+            return f.get();
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
     public void train(AnnotatedString [] train_xs, AnnotatedString [] train_ys, double [] train_weights,
                       AnnotatedString [] test_xs,  AnnotatedString [] test_ys, double [] test_weights,
@@ -251,10 +367,7 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
     }
     
     public double p(AnnotatedString x, AnnotatedString y) {
-        AnnotatedString [] xs = new AnnotatedString [] { x };
-        AnnotatedString [] ys = new AnnotatedString [] { y };
-        double[] weights = { 1 };
-        return forward_or_em_step(xs,ys,weights,true);
+        return Math.exp(logp(x,y));
     }
 
     public double [] logp(AnnotatedString [] x, AnnotatedString [] y) {
@@ -265,11 +378,20 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
         return lps;
     }
     
+    /** log p(y | x) by the forward algorithm, see forward_logp */
     public double logp(AnnotatedString x, AnnotatedString y) {
-        AnnotatedString [] xs = new AnnotatedString [] { x };
-        AnnotatedString [] ys = new AnnotatedString [] { y };
-        double[] weights = { 1 };
-        return Math.log(forward_or_em_step(xs,ys,weights,true));
+        return forward_logp(x, y, -1, Double.NEGATIVE_INFINITY);
+    }
+
+    /** log p(y | x), possibly approximated or cut short:
+     * - if band >= 0, only paths staying within band cells of the diagonal of the
+     *   lattice (scaled to the lengths of x and y) are counted, which is O(|x| * band)
+     *   and a lower bound on the exact answer.
+     * - if the answer is provably below minLogp, stop and return an upper bound on it
+     *   which is also below minLogp.
+     */
+    public double logp(AnnotatedString x, AnnotatedString y, int band, double minLogp) {
+        return forward_logp(x, y, band, minLogp);
     }
 
     public double calc_ll(AnnotatedString [] xs, AnnotatedString [] ys) {
@@ -331,12 +453,272 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
         return alpha;
     }
     
+    // forward_logp rescales a row of the lattice when its largest entry falls below
+    // RESCALE_BELOW (so every row has an entry >= RESCALE_BELOW, and the common case
+    // is exactly equal to forward_pass).  A row with an entry more than DYNAMIC_RANGE
+    // below its largest might be losing paths to underflow (assuming no edit
+    // probability is below 1e-100), so then forward_logp starts over in log space.
+    final static double RESCALE_BELOW = 1e-100;
+    final static double DYNAMIC_RANGE = 1e-100;
+
+    /** Scratch space for forward_logp, one per thread, grown as needed. */
+    static class Lattice {
+        double[] cur = new double[0];   // alpha[NOEDIT][i][*] then alpha[EDIT][i][*]
+        double[] next = new double[0];  // the same for row i+1
+        int[] ys = new int[0];          // output characters, then EOS or EOS'
+
+        void ensure(int ylen) {
+            if (ys.length < ylen+1) {
+                int n = Math.max(ylen+1, 2*ys.length);
+                ys = new int[n];
+                cur = new double[2*(n+1)];
+                next = new double[2*(n+1)];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Lattice> lattices = new ThreadLocal<Lattice>() {
+        @Override protected Lattice initialValue() { return new Lattice(); }
+    };
+
+    private int[] outputChars(Lattice lat, AnnotatedString x, AnnotatedString y) {
+        int ylen = y.len();
+        lat.ensure(ylen);
+        int[] ys = lat.ys;
+        for (int j=0; j < ylen; ++j) ys[j] = y.glyphAt(j);
+        ys[ylen] = (x==null) ? sizeOutAlph+1 : sizeOutAlph;
+        return ys;
+    }
+
+    /** First cell in row i of the lattice that is within band of the diagonal.
+     * Bands of consecutive rows overlap, so there is always a path through them. */
+    static int bandLo(int i, int xlen, int ylen, int band) {
+        if (band < 0 || xlen == 0) return 0;
+        return (int) Math.max(0, (long) i * ylen / xlen - band);
+    }
+
+    /** Last cell in row i of the lattice that is within band of the diagonal. */
+    static int bandHi(int i, int xlen, int ylen, int band) {
+        if (band < 0 || xlen == 0) return ylen;
+        return (int) Math.min(ylen, ((long) (i+1) * ylen + xlen - 1) / xlen + band);
+    }
+
+    /** Sets cells from..to (inclusive) of both states in a row of width w. */
+    private static void fillRow(double[] row, int w, int from, int to, double v) {
+        java.util.Arrays.fill(row, from, to+1, v);
+        java.util.Arrays.fill(row, w+from, w+to+1, v);
+    }
+
+    /** The same sum as forward_pass, computed for scoring only: keeps two rows of
+     * alpha for the NOEDIT and EDIT states in a per-thread Lattice (the PRE states
+     * are only needed within a cell) and reads characters and probabilities
+     * straight from the arrays rather than through CharPair.  Rows are rescaled
+     * as they get small, and if that isn't enough (see DYNAMIC_RANGE) this falls
+     * back on forward_logp_logspace.
+     *
+     * Every path goes through each row, and from any cell the rest of y is
+     * generated with probability <= 1, so the sum of a row bounds p(y | x).
+     * Once that is below minLogp we stop.  band restricts each row to
+     * bandLo..bandHi, see logp.
+     *
+     * Returns log p(y | x), which is -infinity only if p(y | x) is really 0.
+     */
+    protected double forward_logp(AnnotatedString x, AnnotatedString y, int band, double minLogp) {
+        int xlen = (x==null) ? 0 : x.len();  // length not including EOS or EOS'
+        int ylen = y.len();
+        int w = ylen+2;                       // row width, as in forward_pass
+        Lattice lat = lattices.get();
+        int[] ys = outputChars(lat, x, y);
+
+        double pNN = stateModel.p[NOEDIT][NOEDIT], pNE = stateModel.p[NOEDIT][EDIT];
+        double pEN = stateModel.p[EDIT][NOEDIT],   pEE = stateModel.p[EDIT][EDIT];
+        double[][] pEdit = editModel.pEdit;
+        double[][] pCharSub = editModel.pCharSub;
+        double[] pCharIns = editModel.pCharIns;
+        boolean bounded = minLogp > Double.NEGATIVE_INFINITY;
+
+        double[] cur = lat.cur, next = lat.next;
+        java.util.Arrays.fill(cur, 0, 2*w, 0d);
+        java.util.Arrays.fill(next, 0, 2*w, 0d);
+        cur[0] = 1;  // alpha[NOEDIT][0][0]
+        int curLo = 0, curHi = 0;  // cur is 0 outside of these cells
+        double logScale = 0;
+        for (int i=0; i <= xlen; ++i) {
+            int lo = bandLo(i, xlen, ylen, band), hi = bandHi(i, xlen, ylen, band);
+
+            // everything flowing into row i from row i-1 is in, so it can be rescaled
+            double max = 0, sum = 0;
+            for (int j=lo; j <= hi; ++j) {
+                double n = cur[j], e = cur[w+j];
+                if (n > max) max = n;
+                if (e > max) max = e;
+                sum += n + e;
+            }
+            if (max == 0) return forward_logp_logspace(x, y, band, minLogp);
+            if (bounded && Math.log(sum) + logScale < minLogp)
+                return Math.log(sum) + logScale;
+            if (max < RESCALE_BELOW) {
+                double inv = 1 / max;
+                for (int j=lo; j <= hi; ++j) {
+                    cur[j] *= inv;
+                    cur[w+j] *= inv;
+                }
+                logScale += Math.log(max);
+                max = 1;
+            }
+
+            int cx = (x==null) ? sizeInAlph+1 : (i >= xlen) ? sizeInAlph : x.glyphAt(i);
+            double pCopy = pEdit[COPY][cx], pSub = pEdit[SUB][cx];
+            double pIns = pEdit[INS][cx], pDel = pEdit[DEL][cx];
+            for (int j=lo; j <= hi; ++j) {
+                int cy = ys[j];
+                boolean equal = (x==null || i >= xlen) ? j >= ylen : (j < ylen && cx==cy);
+                double preNoEdit = cur[j] * pNN + cur[w+j] * pNE;
+                double preEdit   = cur[j] * pEN + cur[w+j] * pEE;
+                if (equal) {
+                    next[j+1]   += preNoEdit * 1;
+                    next[w+j+1] += preEdit * pCopy;
+                }
+                next[w+j+1] += preEdit * (pSub * pCharSub[cy][cx]);
+                cur[w+j+1]  += preEdit * (pIns * pCharIns[cy]);
+                next[w+j]   += preEdit * pDel;
+            }
+
+            // row i is done (insertions only make entries bigger, so max still holds)
+            double floor = max * DYNAMIC_RANGE;
+            for (int j=lo; j <= hi; ++j) {
+                if ((cur[j] > 0 && cur[j] < floor) || (cur[w+j] > 0 && cur[w+j] < floor))
+                    return forward_logp_logspace(x, y, band, minLogp);
+            }
+
+            // cur becomes row i+2
+            fillRow(cur, w, Math.min(curLo, lo), Math.max(curHi, hi+1), 0d);
+            curLo = lo;
+            curHi = hi+1;
+            double[] t = cur; cur = next; next = t;
+        }
+        double z = cur[ylen+1];  // alpha[NOEDIT][xlen+1][ylen+1]
+        if (z == 0) return forward_logp_logspace(x, y, band, minLogp);
+        return Math.log(z) + logScale;
+    }
+
+    /** log(exp(a) + exp(b)), skipping the exp and log when one is too small to matter */
+    static double logAdd(double a, double b) {
+        if (a < b) { double t = a; a = b; b = t; }
+        if (b == Double.NEGATIVE_INFINITY || b - a < -40) return a;
+        return a + Math.log1p(Math.exp(b - a));
+    }
+
+    /** forward_logp for long or very dissimilar strings, which keeps the lattice
+     * in log space (a few times slower, but never underflows).
+     */
+    protected double forward_logp_logspace(AnnotatedString x, AnnotatedString y, int band, double minLogp) {
+        int xlen = (x==null) ? 0 : x.len();
+        int ylen = y.len();
+        int w = ylen+2;
+        Lattice lat = lattices.get();
+        int[] ys = outputChars(lat, x, y);
+
+        double lNN = Math.log(stateModel.p[NOEDIT][NOEDIT]), lNE = Math.log(stateModel.p[NOEDIT][EDIT]);
+        double lEN = Math.log(stateModel.p[EDIT][NOEDIT]),   lEE = Math.log(stateModel.p[EDIT][EDIT]);
+        EditModel.LogTables logs = editModel.logTables();
+        double[][] lCharSub = logs.charSub;
+        double[] lCharIns = logs.charIns;
+        boolean bounded = minLogp > Double.NEGATIVE_INFINITY;
+
+        double[] cur = lat.cur, next = lat.next;
+        java.util.Arrays.fill(cur, 0, 2*w, Double.NEGATIVE_INFINITY);
+        java.util.Arrays.fill(next, 0, 2*w, Double.NEGATIVE_INFINITY);
+        cur[0] = 0;
+        int curLo = 0, curHi = 0;
+        for (int i=0; i <= xlen; ++i) {
+            int lo = bandLo(i, xlen, ylen, band), hi = bandHi(i, xlen, ylen, band);
+            if (bounded) {
+                double sum = Double.NEGATIVE_INFINITY;
+                for (int j=lo; j <= hi; ++j)
+                    sum = logAdd(sum, logAdd(cur[j], cur[w+j]));
+                if (sum < minLogp) return sum;
+            }
+
+            int cx = (x==null) ? sizeInAlph+1 : (i >= xlen) ? sizeInAlph : x.glyphAt(i);
+            double lCopy = logs.edit[COPY][cx], lSub = logs.edit[SUB][cx];
+            double lIns = logs.edit[INS][cx], lDel = logs.edit[DEL][cx];
+            for (int j=lo; j <= hi; ++j) {
+                double preNoEdit = logAdd(cur[j] + lNN, cur[w+j] + lNE);
+                double preEdit   = logAdd(cur[j] + lEN, cur[w+j] + lEE);
+                if (preNoEdit == Double.NEGATIVE_INFINITY && preEdit == Double.NEGATIVE_INFINITY)
+                    continue;
+                int cy = ys[j];
+                boolean equal = (x==null || i >= xlen) ? j >= ylen : (j < ylen && cx==cy);
+                if (equal) {
+                    next[j+1]   = logAdd(next[j+1], preNoEdit);
+                    next[w+j+1] = logAdd(next[w+j+1], preEdit + lCopy);
+                }
+                next[w+j+1] = logAdd(next[w+j+1], preEdit + (lSub + lCharSub[cy][cx]));
+                cur[w+j+1]  = logAdd(cur[w+j+1], preEdit + (lIns + lCharIns[cy]));
+                next[w+j]   = logAdd(next[w+j], preEdit + lDel);
+            }
+            fillRow(cur, w, Math.min(curLo, lo), Math.max(curHi, hi+1), Double.NEGATIVE_INFINITY);
+            curLo = lo;
+            curHi = hi+1;
+            double[] t = cur; cur = next; next = t;
+        }
+        return cur[ylen+1];
+    }
+
     // Internal workhorse.  If justz is true, then only return z from the forward algorithm
     // on the first pair.  Otherwise do an EM step and return the corpus log-probability.
-    protected double forward_or_em_step(AnnotatedString [] xs, AnnotatedString [] ys, double [] weights, boolean justz) {
-        double corpus_logprob = 0;   
-        
-        for (int k=0; k < weights.length; ++k) {  // consider each training pair in turn
+    // The E-step is split into chunks of EM_CHUNK pairs, which run on getNumThreads()
+    // threads, and whose counts are added to the model in order.
+    protected double forward_or_em_step(final AnnotatedString [] xs, final AnnotatedString [] ys, final double [] weights, boolean justz) {
+        if (justz) {
+            double [][][] alpha = forward_pass(xs[0],ys[0]);
+            int xlen = (xs[0]==null) ? 0 : xs[0].len();
+            return alpha[NOEDIT][xlen+1][ys[0].len()+1];
+        }
+
+        double corpus_logprob = 0;
+        int nchunks = (weights.length + EM_CHUNK - 1) / EM_CHUNK;
+        if (getNumThreads() == 1 || nchunks == 1) {
+            for (int c=0; c < nchunks; ++c) {
+                Counts counts = expected_counts(xs, ys, weights, c*EM_CHUNK, Math.min(weights.length, (c+1)*EM_CHUNK));
+                counts.addTo(stateModel, editModel);
+                corpus_logprob += counts.logprob;
+            }
+        } else {
+            // keep a few chunks per thread in flight, add them up in order as they finish
+            ExecutorService pool = Executors.newFixedThreadPool(getNumThreads());
+            try {
+                ArrayDeque<Future<Counts>> pending = new ArrayDeque<Future<Counts>>();
+                int next = 0;
+                while (next < nchunks || !pending.isEmpty()) {
+                    while (next < nchunks && pending.size() < 2*getNumThreads()) {
+                        final int from = next*EM_CHUNK, to = Math.min(weights.length, (next+1)*EM_CHUNK);
+                        pending.add(pool.submit(new Callable<Counts>() {
+                            public Counts call() { return expected_counts(xs, ys, weights, from, to); }
+                        }));
+                        next++;
+                    }
+                    Counts counts = getResult(pending.poll());
+                    counts.addTo(stateModel, editModel);
+                    corpus_logprob += counts.logprob;
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        stateModel.reestimate();
+        editModel.reestimate();
+        return corpus_logprob;
+    }
+
+    /** The E-step for training pairs from until to (exclusive): forward-backward on
+     * each pair, with the expected counts of states and edits going into a new
+     * Counts rather than the models, so chunks can run at the same time.
+     */
+    protected Counts expected_counts(AnnotatedString [] xs, AnnotatedString [] ys, double [] weights, int from, int to) {
+        Counts counts = new Counts(sizeInAlph, sizeOutAlph);
+        for (int k=from; k < to; ++k) {  // consider each training pair in turn
             double weight = weights[k];           // weight of this training pair
             AnnotatedString x = xs[k];         // input string; could be null
             AnnotatedString y = ys[k];         // output string
@@ -360,7 +742,6 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
             double [][][] alpha = forward_pass(x,y);
             
             z = alpha[NOEDIT][xlen+1][ylen+1];    // sum of all paths
-            if (justz) return z;                  // bail out!
             
             // assert (z != 0) : "Model was unable to explain a pair of training inputs (forward algorithm found probability 0)";
             // We should be able to keep going in this case by ignoring this example.
@@ -370,7 +751,7 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
                 continue;
             }
             
-            corpus_logprob += Math.log(z);              // accumulate log-probability of corpus so we can return it at the end
+            counts.logprob += Math.log(z);              // accumulate log-probability of corpus so we can return it at the end
             double scale = weight / z;                  // used for training below
             
             // backward pass and accumulate into forward-backward counts.
@@ -391,39 +772,37 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
                     if (cp.equal) {
                         beta[PRENOEDIT][i][j] += 1 * beta[NOEDIT][i+1][j+1]; 
                         beta[PREEDIT  ][i][j] += editModel.p(-1,COPY, cp.x) * beta[EDIT][i+1][j+1]; 
-                        editModel.count(-1,COPY,cp.x, 
-                                        alpha[PREEDIT][i][j] * editModel.p(-1,COPY, cp.x) * beta[EDIT][i+1][j+1] * scale);
+                        counts.edit(-1,COPY,cp.x, 
+                                    alpha[PREEDIT][i][j] * editModel.p(-1,COPY, cp.x) * beta[EDIT][i+1][j+1] * scale);
                     }
                     beta[PREEDIT][i][j] += editModel.p(cp.y,SUB, cp.x) * beta[EDIT][i+1][j+1];
                     beta[PREEDIT][i][j] += editModel.p(cp.y,INS, cp.x) * beta[EDIT][i  ][j+1];
                     beta[PREEDIT][i][j] += editModel.p(-1,  DEL, cp.x)     * beta[EDIT][i+1][j  ];
-                    editModel.count(cp.y,SUB,cp.x, 
-                                    alpha[PREEDIT][i][j] * editModel.p(cp.y,SUB, cp.x) * beta[EDIT][i+1][j+1] * scale);
-                    editModel.count(cp.y,INS,cp.x,
-                                    alpha[PREEDIT][i][j] * editModel.p(cp.y,INS, cp.x) * beta[EDIT][i  ][j+1] * scale);
-                    editModel.count(-1,DEL,cp.x,
-                                    alpha[PREEDIT][i][j] * editModel.p(-1,DEL, cp.x)     * beta[EDIT][i+1][j  ] * scale);
+                    counts.edit(cp.y,SUB,cp.x, 
+                                alpha[PREEDIT][i][j] * editModel.p(cp.y,SUB, cp.x) * beta[EDIT][i+1][j+1] * scale);
+                    counts.edit(cp.y,INS,cp.x,
+                                alpha[PREEDIT][i][j] * editModel.p(cp.y,INS, cp.x) * beta[EDIT][i  ][j+1] * scale);
+                    counts.edit(-1,DEL,cp.x,
+                                alpha[PREEDIT][i][j] * editModel.p(-1,DEL, cp.x)     * beta[EDIT][i+1][j  ] * scale);
                     
                     beta[NOEDIT][i][j] += stateModel.p(NOEDIT, NOEDIT) * beta[PRENOEDIT][i][j];
                     beta[EDIT][i][j]   += stateModel.p(NOEDIT, EDIT)   * beta[PRENOEDIT][i][j];
                     beta[NOEDIT][i][j] += stateModel.p(  EDIT, NOEDIT) * beta[PREEDIT  ][i][j];
                     beta[EDIT][i][j]   += stateModel.p(  EDIT, EDIT)   * beta[PREEDIT  ][i][j];
-                    stateModel.count(NOEDIT,NOEDIT,
-                                     alpha[NOEDIT][i][j] * stateModel.p(NOEDIT, NOEDIT) * beta[PRENOEDIT][i][j] * scale);
-                    stateModel.count(NOEDIT,EDIT,
-                                     alpha[EDIT  ][i][j] * stateModel.p(NOEDIT, EDIT)   * beta[PRENOEDIT][i][j] * scale);
-                    stateModel.count(  EDIT,NOEDIT,
-                                       alpha[NOEDIT][i][j] * stateModel.p(  EDIT, NOEDIT) * beta[PREEDIT  ][i][j] * scale);
-                    stateModel.count(  EDIT,EDIT,
-                                       alpha[EDIT  ][i][j] * stateModel.p(  EDIT, EDIT)   * beta[PREEDIT  ][i][j] * scale);
+                    counts.state(NOEDIT,NOEDIT,
+                                 alpha[NOEDIT][i][j] * stateModel.p(NOEDIT, NOEDIT) * beta[PRENOEDIT][i][j] * scale);
+                    counts.state(NOEDIT,EDIT,
+                                 alpha[EDIT  ][i][j] * stateModel.p(NOEDIT, EDIT)   * beta[PRENOEDIT][i][j] * scale);
+                    counts.state(  EDIT,NOEDIT,
+                                   alpha[NOEDIT][i][j] * stateModel.p(  EDIT, NOEDIT) * beta[PREEDIT  ][i][j] * scale);
+                    counts.state(  EDIT,EDIT,
+                                   alpha[EDIT  ][i][j] * stateModel.p(  EDIT, EDIT)   * beta[PREEDIT  ][i][j] * scale);
                 }
             }
             z_reverse = beta[NOEDIT][0][0];
             assert (Math.abs(z - z_reverse) < 1e-8) : "Forward probability != backward probability ("+z+" != "+z_reverse+")";
         }
-        stateModel.reestimate();
-        editModel.reestimate();
-        return corpus_logprob;
+        return counts;
     }
 
     public AnnotatedString sample(AnnotatedString input) {
@@ -458,6 +837,52 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
         }
     }
     
+    /** Expected counts from some of the training pairs, in the same layout as the
+     * counts in StateModel and EditModel, see expected_counts.
+     */
+    public static class Counts {
+        final double[][] state = new double[2][2];  // state[newState][oldState]
+        final double[][] edit;                      // edit[op][chx]
+        final double[]   charIns;                   // charIns[chy]
+        final double[][] charSub;                   // charSub[chy][chx]
+        double logprob;                             // log-probability of the pairs counted
+
+        public Counts(int sizeInAlph, int sizeOutAlph) {
+            edit = new double[4][sizeInAlph+2];
+            charIns = new double[sizeOutAlph+2];
+            charSub = new double[sizeOutAlph+2][sizeInAlph+2];
+        }
+
+        /** Same as StateModel.count */
+        public void state(int newState, int oldState, double weight) {
+            state[newState][oldState] += weight;
+        }
+
+        /** Same as EditModel.count */
+        public void edit(int chy, int op, int chx, double weight) {
+            edit[op][chx] += weight;
+            if (op==INS)
+                charIns[chy] += weight;
+            else if (op==SUB)
+                charSub[chy][chx] += weight;
+        }
+
+        /** Adds these counts to the ones the models will reestimate from. */
+        public void addTo(StateModel sm, EditModel em) {
+            for (int n=0;n<2;++n)
+                for (int o=0;o<2;++o)
+                    sm.c[n][o] += state[n][o];
+            for (int op=0;op<4;++op)
+                for (int chx=0;chx<edit[op].length;++chx)
+                    em.cEdit[op][chx] += edit[op][chx];
+            for (int chy=0;chy<charIns.length;++chy) {
+                em.cCharIns[chy] += charIns[chy];
+                for (int chx=0;chx<charSub[chy].length;++chx)
+                    em.cCharSub[chy][chx] += charSub[chy][chx];
+            }
+        }
+    }
+
     /** Simple model of the probability of transitioning between
      * EDIT and NOEDIT regions.
      */
@@ -483,6 +908,16 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
             c[newState][oldState] += weight;
         }
         
+        /** Scales each transition probability by a random factor in [0.5, 1.5) and renormalizes. */
+        public void perturb(MersenneTwisterFast rng) {
+            for (int oldState=0;oldState<2;++oldState) {
+                double noedit = p[NOEDIT][oldState] * (0.5 + rng.nextDouble());
+                double edit   = p[EDIT  ][oldState] * (0.5 + rng.nextDouble());
+                p[NOEDIT][oldState] = noedit / (noedit + edit);
+                p[EDIT  ][oldState] = edit   / (noedit + edit);
+            }
+        }
+
         /** Update probabilities from counts using MLE estimate (slightly smoothed back
          * to previous estimate, to avoid division by 0 if we've seen no counts). */
         public void reestimate() {
@@ -566,6 +1001,42 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
             cCharBackoffDenom = 0;
         }
         
+        /** logs of the edit probabilities, for scoring in log space */
+        static class LogTables {
+            final double[][] edit;     // log pEdit[op][chx]
+            final double[] charIns;    // log pCharIns[chy]
+            final double[][] charSub;  // log pCharSub[chy][chx]
+
+            LogTables(EditModel m) {
+                edit = log(m.pEdit);
+                charIns = log(m.pCharIns);
+                charSub = log(m.pCharSub);
+            }
+
+            static double[] log(double[] p) {
+                double[] l = new double[p.length];
+                for (int k=0; k < p.length; ++k) l[k] = Math.log(p[k]);
+                return l;
+            }
+
+            static double[][] log(double[][] p) {
+                double[][] l = new double[p.length][];
+                for (int k=0; k < p.length; ++k) l[k] = log(p[k]);
+                return l;
+            }
+        }
+
+        private transient volatile LogTables logTables;  // made when first needed, dropped by reestimate
+
+        LogTables logTables() {
+            LogTables l = logTables;
+            if (l == null) {
+                l = new LogTables(this);
+                logTables = l;
+            }
+            return l;
+        }
+
         /** p(chy,op | chx).  
          * chy is ignored unless the op is INS or SUB;
          * caller conventionally specifies chy as -1 in this case.
@@ -584,6 +1055,28 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
             }
         }
         
+        /** Scales each p(op | chx), and the backoff p(op), by a random factor in
+         * [0.5, 1.5) and renormalizes.  The character distributions are left alone. */
+        public void perturb(MersenneTwisterFast rng) {
+            perturbOps(pEditBackoff, rng);
+            for (int chx=0;chx<sizeInAlph;++chx) {   // EOS and EOS' must be INS
+                double[] ops = new double[4];
+                for (int op=0;op<4;++op) ops[op] = pEdit[op][chx];
+                perturbOps(ops, rng);
+                for (int op=0;op<4;++op) pEdit[op][chx] = ops[op];
+            }
+            logTables = null;
+        }
+
+        private static void perturbOps(double[] ops, MersenneTwisterFast rng) {
+            double sum = 0;
+            for (int op=0;op<ops.length;++op) {
+                ops[op] *= 0.5 + rng.nextDouble();
+                sum += ops[op];
+            }
+            for (int op=0;op<ops.length;++op) ops[op] /= sum;
+        }
+
         /** Count an observed edit for the next call to reestimate().
          * weight is the number of times to count it. */
         public void count(int chy, int op, int chx, double weight) {
@@ -657,6 +1150,7 @@ public class BackoffConditionalEditModel implements StringEditModel, Serializabl
                 //                System.err.println(sum);
             }	
             
+            logTables = null;
             resetCounts();  // get ready to accept new training
         }
     }
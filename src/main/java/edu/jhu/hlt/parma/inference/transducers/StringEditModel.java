@@ -18,6 +18,8 @@ public interface StringEditModel {
     public Alphabet<Character> getAlphabet();
 
     public double logp(AnnotatedString input, AnnotatedString output);
+    /** band < 0 means exact, minLogp is where to give up (see BackoffConditionalEditModel) */
+    public double logp(AnnotatedString input, AnnotatedString output, int band, double minLogp);
     public double [] logp(AnnotatedString [] inputs, AnnotatedString [] outputs);
     public double calc_ll(AnnotatedString [] inputs, AnnotatedString [] outputs, double [] weights);
     public double calc_ll(AnnotatedString [] inputs, AnnotatedString [] outputs);
@@ -26,5 +28,7 @@ public interface StringEditModel {
 
     public void train(AnnotatedString [] train_inputs, AnnotatedString [] train_outputs,
                       AnnotatedString [] test_inputs,  AnnotatedString [] test_outputs);
+    public void train(AnnotatedString [] train_inputs, AnnotatedString [] train_outputs,
+                      AnnotatedString [] test_inputs,  AnnotatedString [] test_outputs, int nrestart);
     public AnnotatedString sample(AnnotatedString input);
 }
\ No newline at end of file
@@ -215,6 +215,12 @@ public class StringEditModelTrainer {
             else if(type.equals("backoff")) {
                 BackoffConditionalEditModel backoff = new BackoffConditionalEditModel(A.size(), A.size());
                 backoff.setAlphabet(A);
+                if(cmd.hasOption("threads")) {
+                    backoff.setNumThreads(Integer.parseInt(cmd.getOptionValue("threads")));
+                }
+                if(cmd.hasOption("seed")) {
+                    backoff.setSeed(Long.parseLong(cmd.getOptionValue("seed")));
+                }
                 model = backoff;
             }
             else {
@@ -222,7 +228,15 @@ public class StringEditModelTrainer {
                 System.exit(1);
             }
             // Train the model
-            model.train(train[0], train[1], dev[0], dev[1]);
+            int nrestart = 1;
+            if(cmd.hasOption("restarts")) {
+                nrestart = Integer.parseInt(cmd.getOptionValue("restarts"));
+            }
+            if(nrestart > 1) {
+                model.train(train[0], train[1], dev[0], dev[1], nrestart);
+            } else {
+                model.train(train[0], train[1], dev[0], dev[1]);
+            }
         }
 
         // Stop the alphabet growth
@@ -250,6 +264,8 @@ public class StringEditModelTrainer {
         options.addOption("u","dump",true,"Path to dump all name tokens (to create a phonetic dictionary).");
         options.addOption("a","dict",true,"Path to phonetic dictionary.");
         options.addOption("p","threads",true,"Number of threads to use.");
+        options.addOption("x","restarts",true,"Number of EM restarts, run at the same time (the best on training data is kept, dev data is not used).");
+        options.addOption("g","seed",true,"Random seed for EM restarts.");
         options.addOption("e","everything",false,"If all the aliases are used for each entity (or just one at random).");
         options.addOption("s","sample",false,"Run some sampling tests.");
 
@@ -45,6 +45,7 @@ object PipelineRunner {
 class Pipeline[F <: FeatureRepresentation] extends Logging {
 	
 	val modelSerializeKey = "diagnostics.serialize.model"
+	val featureMatrixKey = "experiments.features.matrix"
 	
 	def getExperiments: Seq[Experiment[InferenceEngine[F]]] = {
 		ParmaConfig.getStrings(ParmaConfig.EXPERIMENTS).map(expName => {
@@ -80,6 +81,7 @@ class Pipeline[F <: FeatureRepresentation] extends Logging {
 		}
 		Profiler.endTask("total")
 		Profiler.writeoutTimes
+		Caches.report.foreach(s => log("[cache] " + s))
 		System.exit(if(success) 0 else -1)
 	}
 	
@@ -106,48 +108,68 @@ class Pipeline[F <: FeatureRepresentation] extends Logging {
 		if(domains.size > 1)
 			throw new RuntimeException("implement me")
 		
-		// compute features and keep them for the rest of the experiment
-		Profiler.startTask("computeFeatures")
-		log("about to compute features on all the data (this may take a while)...")
-		val featureDumpDir = ParmaConfig.getDirectory("diagnostics.features.serialize", null)
-		var pCount = 0
-		def promote(da: DocAlignment) = {
-			//Profiler.startTask("computeFeaturesForOneAlignment")
-			val start = System.currentTimeMillis
-			val dawf = engine.computeFeatures(da)
-			//val t = Profiler.endTask("computeFeaturesForOneAlignment") / 1000d
-			val t = (System.currentTimeMillis - start)/1000d
-			println("[computeFeatures in Pipeline] " + Describe.memoryUsage(timestamp=true) + ", " +
-				pCount + " / " + data.totalSize + ", took " + t + " seconds")
-			pCount += 1
-			// TODO retur to this, need to serialize a whole crapload of stuff in a dawf
-			// maybe force feature representations or inference engines to implement (de)serialize
-			//if(featureDumpDir != null) {
-			//	val f = new File(featureDumpDir, da.id + ".fv.gz")
-			//	FeatureVectorIO.toFile(fv, f)
-			//}
-			dawf
-		}
-		val featurizedData = data.map(promote, "_wFeatures", verbose=true)
-		val featureComputeTime = Profiler.endTask("computeFeatures") / 1000d
-		log("done! took %.1f seconds".format(featureComputeTime))
-		//data = null; System.gc
-		
-
-		// slice and dice the data however you want (given that the features are already computed)
+		// slice and dice the data however you want, train and evaluate on each split
 		val losses = new ArrayBuffer[Double]
 		val results = new HashMap[String, Seq[Double]]
-		CosineVsF1.open
-		implicit def fda2da(fda: DocAlignmentWithFeatures[F]): DocAlignment = fda.alignment
-		for((split, splitNum) <- experiment.evaluationSplits(featurizedData).zipWithIndex) {
-			println("#train = " + split.train.size)
-			println("#dev = " + split.dev.size)
-			println("#test = " + split.test.size)
-			val (l, r) = runOnCorpus(engine, experiment, split)
-			losses += l
-			for((k,v) <- r)
+		def record(lr: (Double, HashMap[String, Double])) {
+			losses += lr._1
+			for((k,v) <- lr._2)
 				results(k) = results.getOrElse(k, Seq()) :+ v
 		}
+		CosineVsF1.open
+		val matrixDir = ParmaConfig.getDirectory(featureMatrixKey, null)
+		if(matrixDir != null) {
+			// features go to memory-mapped files, one split at a time
+			val ham = engine match {
+				case h: HierarchicalAlignmentModule => h
+				case _ => throw new RuntimeException("%s only works with HierarchicalAlignmentModule, not %s"
+					.format(featureMatrixKey, engine.getClass.getName))
+			}
+			val rawData: Corpus[DocAlignment] = data
+			for(split <- experiment.evaluationSplits(rawData)) {
+				println("#train = " + split.train.size)
+				println("#dev = " + split.dev.size)
+				println("#test = " + split.test.size)
+				record(runOnFeatureMatrices(ham, experiment, split, matrixDir))
+			}
+		}
+		else {
+			// compute features and keep them for the rest of the experiment
+			Profiler.startTask("computeFeatures")
+			log("about to compute features on all the data (this may take a while)...")
+			val featureDumpDir = ParmaConfig.getDirectory("diagnostics.features.serialize", null)
+			var pCount = 0
+			def promote(da: DocAlignment) = {
+				//Profiler.startTask("computeFeaturesForOneAlignment")
+				val start = System.currentTimeMillis
+				val dawf = engine.computeFeatures(da)
+				//val t = Profiler.endTask("computeFeaturesForOneAlignment") / 1000d
+				val t = (System.currentTimeMillis - start)/1000d
+				println("[computeFeatures in Pipeline] " + Describe.memoryUsage(timestamp=true) + ", " +
+					pCount + " / " + data.totalSize + ", took " + t + " seconds")
+				pCount += 1
+				// TODO retur to this, need to serialize a whole crapload of stuff in a dawf
+				// maybe force feature representations or inference engines to implement (de)serialize
+				//if(featureDumpDir != null) {
+				//	val f = new File(featureDumpDir, da.id + ".fv.gz")
+				//	FeatureVectorIO.toFile(fv, f)
+				//}
+				dawf
+			}
+			val featurizedData = data.map(promote, "_wFeatures", verbose=true)
+			val featureComputeTime = Profiler.endTask("computeFeatures") / 1000d
+			log("done! took %.1f seconds".format(featureComputeTime))
+			//data = null; System.gc
+		
+
+			implicit def fda2da(fda: DocAlignmentWithFeatures[F]): DocAlignment = fda.alignment
+			for((split, splitNum) <- experiment.evaluationSplits(featurizedData).zipWithIndex) {
+				println("#train = " + split.train.size)
+				println("#dev = " + split.dev.size)
+				println("#test = " + split.test.size)
+				record(runOnCorpus(engine, experiment, split))
+			}
+		}
 		CosineVsF1.close
 
 
@@ -218,24 +240,80 @@ class Pipeline[F <: FeatureRepresentation] extends Logging {
 			
 			for((dawf, inst) <- corpus.test.zip(instances))
 				FeatureDiagnostics.writeoutAlignmentFeatures(inst, dawf.features)
-			MTurkUtils.dumpAlignments(predictions, corpus.id)
-			CosineVsF1.analyze(instances, corpus.id)
-			CosineBySentenceVsF1.analyze(instances, corpus.id)
-			
-			val results = new HashMap[String, Double]	// run evaluation functions specified by experiment
-			for(func <- experiment.evaluationFunctions) {
-				val (name, score) = func(instances)
-				results.put(name, score)
-				log("experiment=%s, corpus=%s, %s=%.3f".format(experiment.name, corpus.id, name, score))
-			}
-			
-			val loss = experiment.loss(instances)
-			log("experiment=%s, corpus=%s, loss=%.3f".format(experiment.name, corpus.id, loss))
-			GeneralDiagnostics.outputPredictions(instances)
-			engine.writeoutParameters(experiment.name + "-on-"+corpus.id)
-			Profiler.endTask("evaluation")
-			(loss, results)
+			evaluate(engine, experiment, corpus.id, predictions, instances)
+		}
+	}
+
+	/**
+	 * same as runOnCorpus, but each part of the split is featurized one document pair
+	 * at a time into a memory-mapped FeatureMatrix in dir (see HAM.writeFeatureMatrix),
+	 * so the features never have to fit on the heap. features are computed once per
+	 * split rather than once per experiment, and alignment features are not written out.
+	 */
+	def runOnFeatureMatrices(ham: HierarchicalAlignmentModule,
+			experiment: Experiment[InferenceEngine[F]],
+			corpus: Corpus[DocAlignment], dir: File): (Double, HashMap[String, Double]) = {
+
+		def featurize(part: String, examples: Seq[DocAlignment]): FeatureMatrix = {
+			val f = new File(dir, corpus.id + "." + part + ".features")
+			log("runOnFeatureMatrices writing features for %d %s examples to %s".format(examples.size, part, f.getPath))
+			val m = Profiler.time("computeFeatures", Unit => ham.writeFeatureMatrix(f, examples.iterator))
+			log("wrote " + m)
+			m
+		}
+
+		log("runOnFeatureMatrices about to train on %d examples...".format(corpus.train.size))
+		val train = featurize("train", corpus.train)
+		Profiler.time("train", Unit => ham.train(train))
+		train.close
+		if(corpus.dev.size > 0) {
+			log("runOnFeatureMatrices about to devTune on %d examples...".format(corpus.dev.size))
+			val dev = featurize("dev", corpus.dev)
+			Profiler.time("devTune", Unit => ham.postTrainCalibrate(dev, corpus.dev.toIndexedSeq, experiment.loss _))
+			dev.close
+		}
+
+		Profiler.startTask("evaluation")
+		if(corpus.test.size == 0) {
+			warning("no test examples were give, nothing to evaluate on")
+			(0d, new HashMap[String, Double])
 		}
+		else {
+			log("runOnFeatureMatrices about to test")
+			val test = featurize("test", corpus.test)
+			val predictions = corpus.test.zipWithIndex.map(da_d =>
+				ham.align(test, da_d._2, da_d._1.report, da_d._1.passage))
+			test.close
+			val instances = corpus.test.zip(predictions).map(gold_hyp =>
+				new Instance(gold_hyp._2, gold_hyp._1))
+			evaluate(ham, experiment, corpus.id, predictions, instances)
+		}
+	}
+
+	/**
+	 * diagnostics and evaluation on test predictions, ends the "evaluation" task
+	 * and returns loss given by experiment.loss
+	 */
+	private def evaluate(engine: InferenceEngine[_],
+			experiment: Experiment[InferenceEngine[F]], corpusId: String,
+			predictions: Seq[DocAlignment], instances: Seq[Instance[DocAlignment]]): (Double, HashMap[String, Double]) = {
+		MTurkUtils.dumpAlignments(predictions, corpusId)
+		CosineVsF1.analyze(instances, corpusId)
+		CosineBySentenceVsF1.analyze(instances, corpusId)
+		
+		val results = new HashMap[String, Double]	// run evaluation functions specified by experiment
+		for(func <- experiment.evaluationFunctions) {
+			val (name, score) = func(instances)
+			results.put(name, score)
+			log("experiment=%s, corpus=%s, %s=%.3f".format(experiment.name, corpusId, name, score))
+		}
+		
+		val loss = experiment.loss(instances)
+		log("experiment=%s, corpus=%s, loss=%.3f".format(experiment.name, corpusId, loss))
+		GeneralDiagnostics.outputPredictions(instances)
+		engine.writeoutParameters(experiment.name + "-on-" + corpusId)
+		Profiler.endTask("evaluation")
+		(loss, results)
 	}
 	
 }
@@ -48,6 +48,12 @@ trait AlignmentSimilarity extends Serializable {
 	def featureName(index: Int): String =
 		featureIndexer.lookupObject(index)
 
+	/**
+	 * collision statistics if featureIndexer is hashing
+	 * (see features.hashing.buckets in parma.config)
+	 */
+	def hashingStats: Option[String] = featureIndexer.hashingStats
+
 	/**
 	 * call this function for the value of a binary feature function
 	 * this value may change, e.g. to [-1, 1] or const * [0, 1], in the
@@ -68,6 +74,14 @@ trait AlignmentSimilarity extends Serializable {
 	
 	def cleanup {}
 
+	/**
+	 * called once per document pair, before featurize is called on
+	 * each of its alignments. features that query an external resource
+	 * (e.g. redis) can gather every query they are about to make here
+	 * and send them in one batch.
+	 */
+	def prefetch(alignments: Seq[Alignment], report: Document, passage: Document) {}
+
 	/**
 	 * see FeatureIndexer for details on how to add to SVec,
 	 * (use this.featureIndexer to do so)
@@ -81,4 +95,23 @@ trait AlignmentSimilarity extends Serializable {
 	}
 }
 
+/**
+ * holds whatever a feature computed in prefetch for one document pair,
+ * so that featurize can check it is looking at the same pair
+ */
+class Prefetched[T] {
+	private[this] var report: Document = null
+	private[this] var passage: Document = null
+	private[this] var value: Option[T] = None
+
+	def set(report: Document, passage: Document, value: T) {
+		this.report = report
+		this.passage = passage
+		this.value = Some(value)
+	}
+
+	def get(report: Document, passage: Document): Option[T] =
+		if((this.report eq report) && (this.passage eq passage)) value
+		else None
+}
 
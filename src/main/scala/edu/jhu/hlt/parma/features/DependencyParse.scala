@@ -50,10 +50,10 @@ class DependencyParse extends AlignmentSimilarity {
 		val govPairs = Profiler.time("union-gov-crossprod", Unit => for(rg <- rGoverns; pg <- pGoverns) yield (rg, pg))
 		val gSynHyp = Profiler.time("union-gov-map", Unit => govPairs.map(rp => wordSim(rp._1.dep.getWord, rp._2.dep.getWord)))
 		if(gSynHyp.size > 0) {
-			featureIndexer.addUnstable("gov-wn-syn-min" + gSynHyp.map(_._1).min.toString, bool2value(true))
-			featureIndexer.addUnstable("gov-wn-hyp-min" + gSynHyp.map(_._2).min.toString, bool2value(true))
-			featureIndexer.addUnstable("gov-fn-child-min" + gSynHyp.map(_._3).min.toString, bool2value(true))
-			featureIndexer.addUnstable("gov-fn-perspChild-min" + gSynHyp.map(_._4).min.toString, bool2value(true))
+			featureIndexer.addUnstable("gov-wn-syn-min", gSynHyp.map(_._1).min, bool2value(true))
+			featureIndexer.addUnstable("gov-wn-hyp-min", gSynHyp.map(_._2).min, bool2value(true))
+			featureIndexer.addUnstable("gov-fn-child-min", gSynHyp.map(_._3).min, bool2value(true))
+			featureIndexer.addUnstable("gov-fn-perspChild-min", gSynHyp.map(_._4).min, bool2value(true))
 		}
 		else featureIndexer.addUnstable("gov-empty", bool2value(true))
 
@@ -62,10 +62,10 @@ class DependencyParse extends AlignmentSimilarity {
 		val depPairs = Profiler.time("union-dep-crossprod", Unit => for(rd <- rDepends; pd <- pDepends) yield (rd, pd))
 		val dSynHyp = Profiler.time("union-dep-map", Unit => depPairs.map(rp => wordSim(rp._1.gov.getWord, rp._2.gov.getWord)))
 		if(dSynHyp.size > 0) {
-			featureIndexer.addUnstable("dep-syn-wn-min" + dSynHyp.map(_._1).min.toString, bool2value(true))
-			featureIndexer.addUnstable("dep-hyp-wn-min" + dSynHyp.map(_._2).min.toString, bool2value(true))
-			featureIndexer.addUnstable("dep-fn-child-min" + dSynHyp.map(_._3).min.toString, bool2value(true))
-			featureIndexer.addUnstable("dep-fn-perspChild-min" + dSynHyp.map(_._4).min.toString, bool2value(true))
+			featureIndexer.addUnstable("dep-syn-wn-min", dSynHyp.map(_._1).min, bool2value(true))
+			featureIndexer.addUnstable("dep-hyp-wn-min", dSynHyp.map(_._2).min, bool2value(true))
+			featureIndexer.addUnstable("dep-fn-child-min", dSynHyp.map(_._3).min, bool2value(true))
+			featureIndexer.addUnstable("dep-fn-perspChild-min", dSynHyp.map(_._4).min, bool2value(true))
 		}
 		else featureIndexer.addUnstable("dep-empty", bool2value(true))
 
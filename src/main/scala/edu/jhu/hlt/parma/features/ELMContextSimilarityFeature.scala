@@ -12,8 +12,6 @@ import edu.jhu.hlt.parma.types._
 import edu.jhu.hlt.parma.util._
 import edu.jhu.hlt.parma.math.Stats
 import edu.jhu.hlt.parma.inference.transducers.UnigramLM
-import no.uib.cipr.matrix.VectorEntry
-import no.uib.cipr.matrix.sparse.SparseVector
 import scala.util.control.Breaks._
 import scala.collection.JavaConversions._
 import scala.collection.mutable.HashMap
@@ -75,51 +73,60 @@ class ELMContextSimilarityFeature extends AlignmentSimilarity {
   private[this] val binarizer = new FixedWidthBinarizer(5, false, 0d, 1d)
   override def featurize(sv: SVec, a: Alignment, report: Document, passage: Document) {
     
-    var context1 = getNormalizedMeasure(getMentionContextVector(report))
-    var context2 = getNormalizedMeasure(getMentionContextVector(passage))
+    val context1 = getMentionContext(report)
+    val context2 = getMentionContext(passage)
     
-    val d = Stats.JSDistance(context1, context2)
+    val d = Stats.JSDistance(context1.indices, context1.values, context1.size,
+                             context2.indices, context2.values, context2.size)
 	assert(d <= 1 && d >= 0, "fix binarizer: "+ d)
     
 	featureIndexer.start(sv)
     featureIndexer.addStable("context-lm-jensen-shannon-distance", d, binarizer)
 	featureIndexer.commit
   }
-  
-  def getMentionContextVector(doc: Document) : SparseVector = {
-    var tokens = doc.allTokens.map(_.getWord)
-    var v = new SparseVector(Int.MaxValue)
 
-	if(fast) {
-		tokens.foreach(t => v.add(tokenMap(t), 1.0))	// TODO this sparse vector is garbage! optimize this
-	} else {
-		for(t <- tokens) {
-		  val index = tokenMap(t)
-		  assert(index >= 0)
-		  v.add(index, 1.0)
-		}
-	}
+  /**
+   * a document's smoothed token distribution (see normalize),
+   * with indices sorted so it can go straight into Stats' sparse kernels
+   */
+  class Context(val indices: Array[Int], val values: Array[Double], val size: Int)
 
-    return v
-  }
+  def getMentionContext(doc: Document) : Context = {
+    val tokens = doc.allTokens
+    val ids = new Array[Int](tokens.size)
+    var n = 0
+    for(t <- tokens) {
+      ids(n) = tokenMap(t.getWord)
+      n += 1
+    }
+    java.util.Arrays.sort(ids)
 
-  def getNormalizedMeasure(sv: SparseVector) : SparseVector = {
-//    var cDist = new SparseVector(Integer.MAX_VALUE)
-    var cDist = new SparseVector(Int.MaxValue)
-    cDist.add(sv)
-    normalize(cDist)
-    return cDist
+    // runs of the same index become (index, count), in place
+    val counts = new Array[Double](n)
+    var size = 0
+    var i = 0
+    while(i < n) {
+      if(size > 0 && ids(size - 1) == ids(i)) counts(size - 1) += 1d
+      else {
+        ids(size) = ids(i)
+        counts(size) = 1d
+        size += 1
+      }
+      i += 1
+    }
+    normalize(ids, counts, size, n)
+    new Context(ids, counts, size)
   }
 
-  def normalize(sv: SparseVector) {
-    val N = Stats.vsum(sv)
-    for(ve <- sv) {
+  def normalize(indices: Array[Int], values: Array[Double], size: Int, N: Double) {
+    var i = 0
+    while(i < size) {
       // Bayesian estimate per Manning (2008)
-        var p_t_e = (ve.get() + (priorWt * priorLM(ve.index()))) / (N + priorWt)
-      
-        if(p_t_e == 0.0)
-	      throw new RuntimeException(String.format("%s: Underflow detected! %s",this.getClass().getName(),ve.toString()));
-      sv.set(ve.index(), p_t_e)
+      val p_t_e = (values(i) + (priorWt * priorLM(indices(i)))) / (N + priorWt)
+      if(p_t_e == 0.0)
+        throw new RuntimeException("%s: Underflow detected! %d".format(this.getClass.getName, indices(i)))
+      values(i) = p_t_e
+      i += 1
     }
   }
 }
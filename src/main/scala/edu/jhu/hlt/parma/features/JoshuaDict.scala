@@ -9,7 +9,7 @@ package edu.jhu.hlt.parma.features
 import edu.jhu.hlt.parma.feature_interfaces._
 import edu.jhu.hlt.parma.types._
 import edu.jhu.hlt.parma.inference.CanonicalMentionFinder
-import edu.jhu.hlt.parma.util.Describe
+import edu.jhu.hlt.parma.util.{Describe, ParmaConfig, FileUtils, Caches}
 import scala.collection.JavaConversions._
 import redis.clients.jedis._
 
@@ -34,12 +34,15 @@ class JoshuaDict extends AlignmentSimilarity {
 		redis
 	}
 
+	def joshuaKeys = RedisBloomFilter.shared
+
+	// keyed on (language, lowercased word), see cache.joshua.translate.* in parma.config
 	@transient
-	lazy val joshuaKeys = RedisBloomFilter.initialize(true)
+	private lazy val translations = Caches.get[(QueryLanguage.Value, String), Array[String]]("joshua.translate", 100000)
 
 	def translate(word: String, ql: QueryLanguage.Value): Array[String] = {
 		val w = word.toLowerCase
-		pipeRedis(Seq(w), ql)(w).map(_.rhs).toSet.toArray
+		translations.getOrElseUpdate((ql, w), pipeRedis(Seq(w), ql)(w).map(_.rhs).toSet.toArray)
 	}
 
 	def translate(word: String): Array[String] = {
@@ -48,10 +51,19 @@ class JoshuaDict extends AlignmentSimilarity {
 
 	def translate(words: Array[String], ql: QueryLanguage.Value): Array[Array[String]] = {
 		val ws = words.map(_.toLowerCase)
-		val joshuamap = pipeRedis(ws, ql)
-		ws.map{ word =>
-			joshuamap(word).map(_.rhs).toSet.toArray
-		}.toArray
+		val cached = ws.map(w => translations.get((ql, w)))
+		val misses = ws.zip(cached).filter(_._2 == null).map(_._1).distinct
+		if(misses.isEmpty) cached
+		else {
+			val start = System.nanoTime
+			val joshuamap = pipeRedis(misses, ql)
+			translations.recordLoad(System.nanoTime - start)
+			for(w <- misses)
+				translations.put((ql, w), joshuamap(w).map(_.rhs).toSet.toArray)
+			ws.zip(cached).map{ case (word, c) =>
+				if(c != null) c else joshuamap(word).map(_.rhs).toSet.toArray
+			}.toArray
+		}
 	}
 
 	def translate(words: Array[String]): Array[Array[String]] = {
@@ -59,11 +71,7 @@ class JoshuaDict extends AlignmentSimilarity {
 	}
 
 	def pipeRedis(keys: Iterable[String], ql: QueryLanguage.Value): JoshuaMap = {
-		val dbNumber = ql match {
-			case QueryLanguage.English => 2
-			case QueryLanguage.Spanish => 3
-		}
-    jedis.select(dbNumber)
+		jedis.select(JoshuaDictSetup.db(ql))
 		val pipe = jedis.pipelined
 		keys.foreach {w => if (joshuaKeys.in(w)) pipe.lrange(w, 0, 5)}
 		val results = pipe.syncAndReturnAll.map{ res =>
@@ -129,6 +137,25 @@ class JoshuaDict extends AlignmentSimilarity {
 	private[this] val binarizer = new edu.jhu.hlt.parma.util.FixedWidthBinarizer(5, false, -64d, -8d)
 	private[this] val debug = false
 
+	// (english, spanish) translations of every word in the current document pair
+	@transient
+	private lazy val prefetched = new Prefetched[(JoshuaMap, JoshuaMap)]
+
+	/**
+	 * one pipelined batch per language for every sentence featurize will
+	 * see in this document pair (rather than two batches per alignment)
+	 */
+	override def prefetch(alignments: Seq[Alignment], report: Document, passage: Document) {
+		val rWords = new collection.mutable.HashSet[String]
+		val pWords = new collection.mutable.HashSet[String]
+		for(a <- alignments) {
+			val (rcm, pcm) = CanonicalMentionFinder.canonicalMentions(a, report, passage)
+			rWords ++= report.getSentence(rcm).toString.toLowerCase.split(" ")
+			pWords ++= passage.getSentence(pcm).toString.toLowerCase.split(" ")
+		}
+		prefetched.set(report, passage, (pipeRedis(rWords, QueryLanguage.English), pipeRedis(pWords, QueryLanguage.Spanish)))
+	}
+
 
 	override def featurize(sv: SVec, a: Alignment, report: Document, passage: Document) {
 		//report is English, passage is Spanish
@@ -140,8 +167,9 @@ class JoshuaDict extends AlignmentSimilarity {
 		val rs = report.getSentence(rcm).toString.toLowerCase.split(" ")	// report.getMentionTokens(rcm).map(_.getWord)
 		val ps = passage.getSentence(pcm).toString.toLowerCase.split(" ")
 
-		lazy val englishMap = pipeRedis(rs, QueryLanguage.English)
-		lazy val spanishMap = pipeRedis(ps, QueryLanguage.Spanish)
+		val pre = prefetched.get(report, passage)
+		lazy val englishMap = pre.map(_._1).getOrElse(pipeRedis(rs, QueryLanguage.English))
+		lazy val spanishMap = pre.map(_._2).getOrElse(pipeRedis(ps, QueryLanguage.Spanish))
 
 
 		//for(cutoff <- List(5d, 12d, 25d)) {
@@ -179,4 +207,43 @@ class JoshuaDict extends AlignmentSimilarity {
 }
 
 
+/**
+ * loads a Joshua dictionary into redis (db 2 for English, db 3 for Spanish),
+ * where JoshuaDict expects it. input lines are "lhs\trhs\tscore", which is
+ * also what is stored (keyed on the lowercased lhs).
+ */
+object JoshuaDictSetup {
+
+	def db(ql: QueryLanguage.Value): Int = ql match {
+		case QueryLanguage.English => 2
+		case QueryLanguage.Spanish => 3
+	}
+
+	def main(args: Array[String]) {
+		if(args.length != 2) {
+			println("please provide a parma.config file and a language (English or Spanish)")
+			sys.exit(-1)
+		}
+		ParmaConfig.load(args(0))
+		val ql = QueryLanguage.withName(args(1))
+		val joshuaKeys = RedisBloomFilter.builder
+		val f = ParmaConfig.getFile("features.joshua.redis.file." + ql.toString.toLowerCase)
+		val reader = FileUtils.getReader(f)
+		val loader = new RedisBulkLoader(db(ql), parse, joshuaKeys, RedisBulkLoader.progressKeyFor(f))
+		loader.load(reader)
+		reader.close
+		RedisBloomFilter.write(joshuaKeys)
+	}
+
+	def parse(line: String): Option[(String, String)] = {
+		val ar = line.split("\t")
+		if(ar.length < 3) None
+		else {
+			val lhs = ar(0).toLowerCase
+			Some((lhs, List(lhs, ar(1).toLowerCase, ar(2)).mkString("\t")))
+		}
+	}
+}
+
+
 /* vim: set noet : */
@@ -0,0 +1,475 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features
+
+import edu.jhu.hlt.parma.util._
+import edu.jhu.hlt.parma.types.{FeatureMatrix, MappedSection}
+import java.io._
+import java.nio.channels.FileChannel
+import scala.collection.mutable.ArrayBuffer
+import redis.clients.jedis.Jedis
+
+/**
+ * the parts of a PPDB rule that features read, already parsed.
+ * logProbs are in PPDBHit.keys order (these are -log probabilities, as in the PPDB file)
+ */
+class PPDBHit(val lhs: String, val rhs: String, val parent: String, val score: Double, val logProbs: Array[Double]) {
+	def logProb(key: String): Double = logProbs(PPDBHit.keyIndex(key))
+	override def toString: String = "(PPDBHit %s => %s %s score=%.2f)".format(lhs, rhs, parent, score)
+}
+
+object PPDBHit {
+	val keys = IndexedSeq("p(LHS|e)", "p(LHS|f)", "p(e|LHS)", "p(e|f)", "p(e|f,LHS)", "p(f|LHS)", "p(f|e)", "p(f|e,LHS)")
+	val keyIndex: Map[String, Int] = keys.zipWithIndex.toMap
+
+	/**
+	 * -log probability used for a property the rule does not have (str2map drops
+	 * properties it cannot parse), i.e. probability 0; the rule is still a hit
+	 */
+	val missing = Double.PositiveInfinity
+
+	def fromRule(rule: PPDBRule): PPDBHit = {
+		val lp = Array.ofDim[Double](keys.size)
+		for((k, i) <- keys.zipWithIndex) {
+			lp(i) = rule.properties.get(k) match {
+				case Some(v) => java.lang.Double.parseDouble(v)
+				case None => missing
+			}
+		}
+		new PPDBHit(rule.lhs, rule.rhs, rule.parent, rule.score, lp)
+	}
+}
+
+/**
+ * where PPDB rules come from, see RedisPPDB
+ */
+trait PPDBStore {
+	/** all rules that rewrite lhs as rhs */
+	def lookup(lhs: String, rhs: String): IndexedSeq[PPDBHit]
+
+	/**
+	 * lookup for many (lhs, rhs) pairs at once, stores that
+	 * have a per-query round trip should override this to batch them
+	 */
+	def lookupAll(pairs: Iterable[(String, String)]): Map[(String, String), IndexedSeq[PPDBHit]] =
+		pairs.toSet.map((p: (String, String)) => (p, lookup(p._1, p._2))).toMap
+
+	def close
+}
+
+object PPDBStore {
+	val BACKEND = "features.ppdb.backend"	// "redis" or "mmap"
+	val MMAP_FILE = "features.ppdb.mmap.file"
+
+	/**
+	 * only the first maxRHSs+1 rules of an lhs (in PPDB file order) are ever used
+	 * (RedisPPDBStore reads LRANGE lhs 0 maxRHSs, MappedPPDB.build drops the rest)
+	 */
+	val maxRHSs = 1000
+
+	def open: PPDBStore = {
+		val store = ParmaConfig.getString(BACKEND, "redis") match {
+			case "redis" => new RedisPPDBStore
+			case "mmap" => new MappedPPDB(ParmaConfig.getFile(MMAP_FILE))
+			case b => throw new RuntimeException("unknown PPDB backend: " + b)
+		}
+		new CachingPPDBStore(store)
+	}
+}
+
+/**
+ * puts a PPDBStore behind a BoundedCache (see cache.ppdb.* in parma.config),
+ * entries are weighed by the number of rules they hold
+ */
+class CachingPPDBStore(val store: PPDBStore) extends PPDBStore {
+
+	private[this] val cache = Caches.get[(String, String), IndexedSeq[PPDBHit]]("ppdb", 200000,
+		(k: (String, String), v: IndexedSeq[PPDBHit]) => 1L + v.size)
+
+	override def lookup(lhs: String, rhs: String): IndexedSeq[PPDBHit] =
+		cache.getOrElseUpdate((lhs, rhs), store.lookup(lhs, rhs))
+
+	/** only the pairs that aren't cached go to the store */
+	override def lookupAll(pairs: Iterable[(String, String)]): Map[(String, String), IndexedSeq[PPDBHit]] = {
+		val found = new scala.collection.mutable.HashMap[(String, String), IndexedSeq[PPDBHit]]
+		val misses = new ArrayBuffer[(String, String)]
+		for(p <- pairs.toSet[(String, String)]) {
+			val hits = cache.get(p)
+			if(hits == null) misses += p
+			else found(p) = hits
+		}
+		if(misses.nonEmpty) {
+			val start = System.nanoTime
+			val fetched = store.lookupAll(misses)
+			cache.recordLoad(System.nanoTime - start)
+			for((p, hits) <- fetched) {
+				cache.put(p, hits)
+				found(p) = hits
+			}
+		}
+		found.toMap
+	}
+
+	override def close { store.close }
+
+	override def toString: String = "(CachingPPDBStore %s %s)".format(store, cache.stats)
+}
+
+/**
+ * PPDB rules stored in redis as a list of rule strings per lhs
+ * (see RedisPPDBSetup), the first maxRHSs+1 rules for lhs are fetched per lookup
+ */
+class RedisPPDBStore extends PPDBStore {
+	private[this] val jedis = new Jedis(RedisStuff.hostname, RedisStuff.port)
+	if(jedis.ping != "PONG")
+		throw new RuntimeException("cannot connect to redis! " + RedisStuff.toString)
+	jedis.select(1)
+
+	private[this] val ppdbKeys = RedisBloomFilter.shared
+	private[this] val maxRHSs = PPDBStore.maxRHSs
+
+	override def lookup(lhs: String, rhs: String): IndexedSeq[PPDBHit] = {
+		if(!ppdbKeys.in(lhs)) IndexedSeq()
+		else {
+			val hits = new ArrayBuffer[PPDBHit]
+			val values = jedis.lrange(lhs, 0, maxRHSs)
+			val iter = values.iterator
+			while(iter.hasNext) {
+				val ruleStr = iter.next
+				// don't bother parsing rules that don't match
+				if(PPDBRuleIO.rhsOf(ruleStr) == rhs)
+					hits += PPDBHit.fromRule(PPDBRuleIO.str2rule(ruleStr))
+			}
+			hits
+		}
+	}
+
+	/**
+	 * one pipelined LRANGE per distinct lhs, rather than a round trip per pair
+	 */
+	override def lookupAll(pairs: Iterable[(String, String)]): Map[(String, String), IndexedSeq[PPDBHit]] = {
+		val rhsByLhs = pairs.toSet.groupBy((p: (String, String)) => p._1)
+		val lhss = rhsByLhs.keys.filter(ppdbKeys.in).toIndexedSeq
+		val pipe = jedis.pipelined
+		val responses = lhss.map(lhs => pipe.lrange(lhs, 0, maxRHSs))
+		pipe.sync
+		val hits = new scala.collection.mutable.HashMap[(String, String), IndexedSeq[PPDBHit]]
+		for(p <- rhsByLhs.values.flatten)
+			hits(p) = IndexedSeq()
+		for((lhs, resp) <- lhss.zip(responses)) {
+			val rhss = rhsByLhs(lhs).map(_._2)
+			val iter = resp.get.iterator
+			while(iter.hasNext) {
+				val ruleStr = iter.next
+				val rhs = PPDBRuleIO.rhsOf(ruleStr)
+				if(rhss.contains(rhs))
+					hits((lhs, rhs)) = hits((lhs, rhs)) :+ PPDBHit.fromRule(PPDBRuleIO.str2rule(ruleStr))
+			}
+		}
+		hits.toMap
+	}
+
+	override def close { jedis.disconnect }
+}
+
+/**
+ * a read-only, memory-mapped PPDB built offline by MappedPPDB.main.
+ * rules are sorted by (lhs, rhs), so a lookup is a binary search over
+ * keys followed by reading fixed-width records: no network, no parsing.
+ *
+ * file layout (big-endian, every section starts on an 8 byte boundary):
+ *   header: magic, version, numKeys, numRecords, keyBytes, numParents
+ *   keyStarts: long[numKeys+1] (offsets into keys)
+ *   recStarts: long[numKeys+1] (offsets into records, in records)
+ *   keys: UTF-8 "lhs\trhs", sorted as unsigned bytes
+ *   records: (parent int, unused int, score double, logProbs double[8])
+ *   parents: writeUTF strings (POS tags, read onto the heap)
+ */
+class MappedPPDB(val file: File) extends PPDBStore with Logging {
+	import MappedPPDB._
+
+	private[this] val raf = new RandomAccessFile(file, "r")
+	private[this] val channel = raf.getChannel
+
+	val (numKeys, numRecords, keyBytes, numParents) = {
+		val h = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+		if(h.getInt != MAGIC)
+			throw new RuntimeException(file.getPath + " is not a PPDB file")
+		val version = h.getInt
+		if(version != VERSION)
+			throw new RuntimeException("%s has version %d, expected %d".format(file.getPath, version, VERSION))
+		(h.getLong, h.getLong, h.getLong, h.getInt)
+	}
+
+	private[this] val keyStarts = new MappedSection(channel, HEADER_BYTES, (numKeys + 1) * 8)
+	private[this] val recStarts = new MappedSection(channel, keyStarts.end, (numKeys + 1) * 8)
+	private[this] val keys = new MappedSection(channel, recStarts.end, keyBytes)
+	private[this] val records = new MappedSection(channel, keys.end, numRecords * RECORD_BYTES)
+	private[this] val parents: Array[String] = {
+		raf.seek(records.end)
+		Array.fill(numParents)(raf.readUTF)
+	}
+	log("opened %s with %d (lhs,rhs) pairs and %d rules".format(file.getPath, numKeys, numRecords))
+
+	/** compares key k to query as unsigned bytes */
+	private def compareKey(k: Long, query: Array[Byte]): Int = {
+		val start = keyStarts.getLong(k * 8)
+		val len = (keyStarts.getLong((k + 1) * 8) - start).toInt
+		val n = math.min(len, query.length)
+		var i = 0
+		while(i < n) {
+			val c = (keys.getByte(start + i) & 0xff) - (query(i) & 0xff)
+			if(c != 0) return c
+			i += 1
+		}
+		len - query.length
+	}
+
+	/** returns -1 if not found */
+	private def find(query: Array[Byte]): Long = {
+		var lo = 0L
+		var hi = numKeys - 1
+		while(lo <= hi) {
+			val mid = (lo + hi) >>> 1
+			val c = compareKey(mid, query)
+			if(c < 0) lo = mid + 1
+			else if(c > 0) hi = mid - 1
+			else return mid
+		}
+		-1L
+	}
+
+	override def lookup(lhs: String, rhs: String): IndexedSeq[PPDBHit] = {
+		val k = find(key(lhs, rhs))
+		if(k < 0) IndexedSeq()
+		else {
+			val from = recStarts.getLong(k * 8)
+			val until = recStarts.getLong((k + 1) * 8)
+			val hits = new ArrayBuffer[PPDBHit]((until - from).toInt)
+			var r = from
+			while(r < until) {
+				val pos = r * RECORD_BYTES
+				val parent = parents(records.getInt(pos))
+				val score = records.getDouble(pos + 8)
+				val lp = Array.ofDim[Double](NUM_PROBS)
+				var i = 0
+				while(i < NUM_PROBS) {
+					lp(i) = records.getDouble(pos + 16 + 8 * i)
+					i += 1
+				}
+				hits += new PPDBHit(lhs, rhs, parent, score, lp)
+				r += 1
+			}
+			hits
+		}
+	}
+
+	override def close { raf.close }
+
+	override def toString: String = "(MappedPPDB %s keys=%d rules=%d)".format(file.getPath, numKeys, numRecords)
+}
+
+/**
+ * builds a MappedPPDB file from a lexical PPDB file (the same one RedisPPDBSetup loads),
+ * keeping the same rules RedisPPDBStore can see: the first PPDBStore.maxRHSs+1 of each lhs.
+ * rules are sorted externally: runs of BUILD_CHUNK rules (a few hundred bytes each on
+ * the heap) are sorted by lhs and written to temp files next to the output, then merged,
+ * so the heap only ever holds one run.
+ */
+object MappedPPDB {
+	val MAGIC = 0x50504442	// "PPDB"
+	val VERSION = 1
+	val HEADER_BYTES = 64
+	val NUM_PROBS = PPDBHit.keys.size
+	val RECORD_BYTES = 16 + 8 * NUM_PROBS
+	val BUILD_CHUNK = "features.ppdb.mmap.build.chunk"
+
+	def key(lhs: String, rhs: String): Array[Byte] = (lhs + "\t" + rhs).getBytes("UTF-8")
+
+	// key is "lhs\trhs", key(lhsEnd) is the tab
+	private class Entry(val key: Array[Byte], val lhsEnd: Int, val parent: Int, val score: Double, val logProbs: Array[Double]) {
+		def write(o: DataOutputStream) {
+			o.writeInt(key.length)
+			o.write(key)
+			o.writeInt(lhsEnd)
+			o.writeInt(parent)
+			o.writeDouble(score)
+			logProbs.foreach(o.writeDouble)
+		}
+	}
+
+	private def readEntry(in: DataInputStream): Entry = {
+		val key = new Array[Byte](in.readInt)
+		in.readFully(key)
+		val lhsEnd = in.readInt
+		val parent = in.readInt
+		val score = in.readDouble
+		new Entry(key, lhsEnd, parent, score, Array.fill(NUM_PROBS)(in.readDouble))
+	}
+
+	/** compares a(0 until aLen) to b(0 until bLen) as unsigned bytes */
+	private def compareBytes(a: Array[Byte], aLen: Int, b: Array[Byte], bLen: Int): Int = {
+		val n = math.min(aLen, bLen)
+		var i = 0
+		while(i < n) {
+			val c = (a(i) & 0xff) - (b(i) & 0xff)
+			if(c != 0) return c
+			i += 1
+		}
+		aLen - bLen
+	}
+
+	private val unsignedBytes = new java.util.Comparator[Entry] {
+		override def compare(a: Entry, b: Entry): Int = compareBytes(a.key, a.key.length, b.key, b.key.length)
+	}
+
+	// by "lhs\t", lhss have no tabs (see PPDBRuleIO.validToken), so lhs groups come out in key order
+	private val byLhs = new java.util.Comparator[Entry] {
+		override def compare(a: Entry, b: Entry): Int = compareBytes(a.key, a.lhsEnd + 1, b.key, b.lhsEnd + 1)
+	}
+
+	// a sorted run on disk, read one entry at a time
+	private class Run(val file: File, val index: Int, var left: Long) {
+		private[this] val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))
+		var head: Entry = null
+		def advance {
+			if(left == 0) { head = null; in.close; file.delete }
+			else { head = readEntry(in); left -= 1 }
+		}
+		advance
+	}
+
+	def main(args: Array[String]) {
+		if(args.length != 1) {
+			println("please provide a parma.config file")
+			sys.exit(-1)
+		}
+		ParmaConfig.load(args(0))
+		val in = ParmaConfig.getFile("features.ppdb.redis.file.lexical")
+		val out = ParmaConfig.getFile(PPDBStore.MMAP_FILE)
+		build(in, out, ParmaConfig.getInt(BUILD_CHUNK, 1000000))
+	}
+
+	def build(ppdbFile: File, outFile: File, chunk: Int = 1000000) {
+		if(chunk <= 0) throw new RuntimeException("chunk must be positive: " + chunk)
+		val start = System.currentTimeMillis
+		val tmpDir = outFile.getAbsoluteFile.getParentFile
+		def tmp(name: String) = File.createTempFile(outFile.getName + "." + name, ".tmp", tmpDir)
+
+		// 1) sorted runs, by lhs and then file order (the sort is stable)
+		val parentAlph = new Alphabet[String]
+		val runs = new ArrayBuffer[Run]
+		val runFiles = new ArrayBuffer[(File, Long)]
+		val entries = new ArrayBuffer[Entry]
+		def spill {
+			val sorted = entries.toArray
+			entries.clear
+			java.util.Arrays.sort(sorted, byLhs)
+			val f = tmp("run" + runFiles.size)
+			val o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))
+			sorted.foreach(_.write(o))
+			o.close
+			runFiles += ((f, sorted.length.toLong))
+		}
+		var lines = 0L
+		val reader = FileUtils.getReader(ppdbFile)
+		while(reader.ready) {
+			lines += 1
+			val h = PPDBHit.fromRule(PPDBRuleIO.fromPPDBLine(reader.readLine))
+			val k = key(h.lhs, h.rhs)
+			entries += new Entry(k, h.lhs.getBytes("UTF-8").length, parentAlph.lookupIndex(h.parent), h.score, h.logProbs)
+			if(entries.size == chunk) spill
+			if(lines % 500000 == 0)
+				println("[MappedPPDB build] read %d rules in %.1f sec".format(lines, (System.currentTimeMillis - start) / 1000d))
+		}
+		reader.close
+		if(entries.nonEmpty) spill
+
+		// 2) merge the runs (ties go to the earlier run, so each lhs stays in file order),
+		// keep the first maxRHSs+1 rules of each lhs, sort those by key, and write them
+		val sections = Array("keyStarts", "recStarts", "keys", "records", "parents").map(tmp)
+		val outs = sections.map(f => new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16)))
+		val Array(keyStartsOut, recStartsOut, keysOut, recordsOut, parentsOut) = outs
+		var numKeys = 0L
+		var numRecords = 0L
+		var keyBytes = 0L
+		var dropped = 0L
+		val maxRules = PPDBStore.maxRHSs + 1
+		val group = new ArrayBuffer[Entry]
+		def writeGroup {
+			val kept = group.toArray
+			group.clear
+			java.util.Arrays.sort(kept, unsignedBytes)	// stable, so rules keep file order within a key
+			for(i <- 0 until kept.length) {
+				val e = kept(i)
+				if(i == 0 || unsignedBytes.compare(kept(i-1), e) != 0) {
+					keyStartsOut.writeLong(keyBytes)
+					recStartsOut.writeLong(numRecords)
+					keysOut.write(e.key)
+					keyBytes += e.key.length
+					numKeys += 1
+				}
+				recordsOut.writeInt(e.parent)
+				recordsOut.writeInt(0)
+				recordsOut.writeDouble(e.score)
+				e.logProbs.foreach(recordsOut.writeDouble)
+				numRecords += 1
+			}
+		}
+		for(((f, n), i) <- runFiles.zipWithIndex)
+			runs += new Run(f, i, n)
+		val heads = new java.util.PriorityQueue[Run](math.max(1, runs.size), new java.util.Comparator[Run] {
+			override def compare(a: Run, b: Run): Int = {
+				val c = byLhs.compare(a.head, b.head)
+				if(c != 0) c else a.index - b.index
+			}
+		})
+		runs.filter(_.head != null).foreach(heads.add)
+		while(!heads.isEmpty) {
+			val r = heads.poll
+			val e = r.head
+			if(group.nonEmpty && byLhs.compare(group(0), e) != 0) writeGroup
+			if(group.size < maxRules) group += e
+			else dropped += 1
+			r.advance
+			if(r.head != null) heads.add(r)
+		}
+		writeGroup
+		keyStartsOut.writeLong(keyBytes)
+		recStartsOut.writeLong(numRecords)
+		parentAlph.keys.foreach(parentsOut.writeUTF)
+		outs.foreach(_.close)
+
+		// 3) header, then the sections, each starting on an 8 byte boundary
+		val raf = new RandomAccessFile(outFile, "rw")
+		raf.setLength(0)
+		val out = raf.getChannel
+		val header = java.nio.ByteBuffer.allocate(HEADER_BYTES)
+		header.putInt(MAGIC)
+		header.putInt(VERSION)
+		header.putLong(numKeys)
+		header.putLong(numRecords)
+		header.putLong(keyBytes)
+		header.putInt(parentAlph.size)
+		header.rewind
+		out.write(header, 0)
+		var pos = HEADER_BYTES.toLong
+		for(f <- sections) {
+			if(pos > raf.length) raf.setLength(pos)	// padding, transferFrom won't write past the end
+			val in = new FileInputStream(f).getChannel
+			var copied = 0L
+			while(copied < in.size)
+				copied += out.transferFrom(in, pos + copied, in.size - copied)
+			in.close
+			pos = FeatureMatrix.align8(pos + copied)
+			f.delete
+		}
+		raf.close
+		println("[MappedPPDB build] wrote %d rules over %d (lhs,rhs) pairs to %s in %.1f minutes (%d rules past the first %d of their lhs dropped)"
+			.format(numRecords, numKeys, outFile.getPath, (System.currentTimeMillis - start) / (60d * 1000d), dropped, maxRules))
+	}
+}
@@ -9,37 +9,71 @@ package edu.jhu.hlt.parma.features
 import collection.JavaConversions._
 import redis.clients.jedis._
 
-class RedisBloomFilter 
+/**
+ * a Bloom filter over every key in redis (PPDB and Joshua),
+ * so features can skip round trips for keys that aren't there
+ */
 object RedisBloomFilter {
-	import edu.jhu.jerboa.counting.BloomFilter
-	import edu.jhu.jerboa.util.JerboaProperties
-	import edu.jhu.hlt.parma.util.ParmaConfig
-
-	
-	def initialize(fromFile: Boolean = true): BloomFilter = {
-		JerboaProperties.load(ParmaConfig.getPropertiesFileName)
-		@transient
-		lazy val jedis = new Jedis(RedisStuff.hostname, RedisStuff.port)
-		if(jedis.ping != "PONG") {
-			throw new RuntimeException("cannot connect to redis! " + RedisStuff.toString)
+	import edu.jhu.hlt.parma.util._
+
+	val FILE = "features.redis.bloom.file"
+	val KEYS = "features.redis.bloom.keys"
+	val ERROR_RATE = "features.redis.bloom.errorRate"
+
+	//lexical PPDB has 329799 LHSs in db 0 6654262 paraphrases in 1
+	val defaultKeys = 8000000L
+	val defaultErrorRate = 0.00001
+
+	def file = ParmaConfig.getFile(FILE)
+
+	/**
+	 * the one (read-only, memory-mapped) filter that every feature in this JVM shares
+	 */
+	lazy val shared: MappedBloomFilter = {
+		if(!file.isFile)
+			throw new RuntimeException("no Bloom filter at %s, run a loader (e.g. RedisPPDBSetup) or RedisBloomFilter.main first".format(file.getPath))
+		val bf = new MappedBloomFilter(file)
+		println("[RedisBloomFilter] opened " + bf)
+		bf
+	}
+
+	/**
+	 * for loaders: a filter sized by features.redis.bloom.{keys,errorRate},
+	 * starting with every key already in the filter file (if there is one)
+	 */
+	def builder: BloomFilterBuilder = {
+		val n = ParmaConfig.getLong(KEYS, defaultKeys)
+		val p = ParmaConfig.getDouble(ERROR_RATE, defaultErrorRate)
+		val b = BloomFilters.builder(n, p)
+		if(file.isFile) {
+			val old = new MappedBloomFilter(file)
+			b.addAll(old)
+			old.close
 		}
-		//lexical PPDB has 329799 LHSs in db 0 6654262 paraphrases in 1
-		lazy val redisLHS = {jedis.select(0); jedis.dbSize}
-		lazy val redisPairs = {jedis.select(1); jedis.dbSize}
-		lazy val redisEntries = redisLHS + redisPairs // 6984059
-		val errorRate = 0.00001
-		val memory = BloomFilter.memoryNeeded(redisEntries, errorRate) //167738521 ~= 160M
-		val redisKeys = new BloomFilter(memory, redisEntries)
-		if (fromFile) redisKeys.read
-		else 	{
-			//this breaks with large keysets, best to initialize from a file
-			jedis.select(0)
-			jedis.keys("*").foreach(redisKeys.set(_))
-			jedis.select(1)
-			jedis.keys("*").foreach(redisKeys.set(_))
-			redisKeys.write
+		b
+	}
+
+	def write(b: BloomFilterBuilder) { b.write(file) }
+
+	/**
+	 * rebuilds the filter file from the keys in redis (dbs 0-3).
+	 * KEYS * blocks redis and breaks with large keysets, prefer building
+	 * the filter while loading (RedisPPDBSetup, JoshuaDictSetup)
+	 */
+	def main(args: Array[String]) {
+		if(args.length != 1) {
+			println("please provide a parma.config file")
+			sys.exit(-1)
 		}
-		redisKeys
+		ParmaConfig.load(args(0))
+		val jedis = new Jedis(RedisStuff.hostname, RedisStuff.port)
+		if(jedis.ping != "PONG")
+			throw new RuntimeException("cannot connect to redis! " + RedisStuff.toString)
+		val b = BloomFilters.builder(ParmaConfig.getLong(KEYS, defaultKeys), ParmaConfig.getDouble(ERROR_RATE, defaultErrorRate))
+		for(db <- 0 to 3) {
+			jedis.select(db)
+			jedis.keys("*").foreach(b.set)
+		}
+		write(b)
 	}
 }
-
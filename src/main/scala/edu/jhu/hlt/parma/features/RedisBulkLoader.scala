@@ -0,0 +1,200 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features
+
+import edu.jhu.hlt.parma.util._
+import redis.clients.jedis.Jedis
+import java.io._
+import java.util.concurrent._
+import java.util.concurrent.atomic._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * loads a big file of (key, value) pairs into redis lists (RPUSH key value),
+ * e.g. the lexical PPDB (see RedisPPDBSetup) or a Joshua dictionary (see JoshuaDictSetup).
+ *
+ * the file is read in batches of lines, which parse threads turn into (key, value)
+ * pairs. parsed batches are taken back in file order and every pair is sent to
+ * the writer for its key (by hash), so each key's list is in file order, which
+ * readers that only look at the front of a list (lrange(key, 0, n)) depend on.
+ * each writer sends batches of pairs as one pipelined MULTI/EXEC on its own
+ * connection. at most a few batches per thread are in memory/in flight at once.
+ *
+ * the batches are the same every time a file is loaded (for the same threads
+ * and batchSize), and each transaction also records in the hash progressKey
+ * which batch its writer last wrote, so a batch is either in redis and marked
+ * done or neither. a load that dies can be re-run and will skip exactly the
+ * batches that are already in redis; their keys are still added to the Bloom filter.
+ */
+class RedisBulkLoader(
+		val db: Int,
+		val parse: String => Option[(String, String)],
+		val keys: BloomFilterBuilder,
+		val progressKey: String,
+		val threads: Int = ParmaConfig.getInt(RedisBulkLoader.THREADS, 4),
+		val batchSize: Int = ParmaConfig.getInt(RedisBulkLoader.BATCH, 5000))
+		extends Logging {
+
+	private class Batch(val seq: Long, val kvs: Array[(String, String)])
+	private[this] val poison = new Batch(-1, Array())
+
+	private[this] val failure = new AtomicReference[Throwable]
+	private[this] val rulesLoaded = new AtomicLong
+	private[this] val rulesSkipped = new AtomicLong
+
+	// writer i writes every key with shardOf(key) == i
+	private def shardOf(key: String): Int = (key.hashCode & Int.MaxValue) % threads
+	private[this] val writeQueues = Array.fill(threads)(new ArrayBlockingQueue[Batch](2))
+
+	// last batch seq of each writer that a previous run wrote, -1 if none
+	private[this] val written = Array.fill(threads)(-1L)
+
+	/**
+	 * progressKey is a hash of batchSize, threads, and for each writer i,
+	 * "writer<i>" -> seq of the last batch it wrote
+	 */
+	private def readProgress(jedis: Jedis) {
+		val p = jedis.hgetAll(progressKey)
+		if(p.isEmpty) {
+			jedis.hset(progressKey, "batchSize", batchSize.toString)
+			jedis.hset(progressKey, "threads", threads.toString)
+			return
+		}
+		if(p.get("batchSize") != batchSize.toString || p.get("threads") != threads.toString) {
+			throw new RuntimeException("%s was written with batchSize=%s threads=%s, but batchSize=%d threads=%d now"
+				.format(progressKey, p.get("batchSize"), p.get("threads"), batchSize, threads))
+		}
+		var done = 0L
+		for(i <- 0 until threads) {
+			val s = p.get("writer" + i)
+			if(s != null) written(i) = s.toLong
+			done += written(i) + 1
+		}
+		log("resuming from %s: %d batches done".format(progressKey, done))
+	}
+
+	private class Writer(val shard: Int) extends Runnable {
+		override def run {
+			val jedis = new Jedis(RedisStuff.hostname, RedisStuff.port)
+			try {
+				jedis.select(db)
+				val queue = writeQueues(shard)
+				var batch = queue.take
+				while(batch ne poison) {
+					if(batch.seq > written(shard)) {
+						// the lists and the progress marker change together or not at all
+						val pipe = jedis.pipelined
+						pipe.multi
+						batch.kvs.foreach(kv => pipe.rpush(kv._1, kv._2))
+						pipe.hset(progressKey, "writer" + shard, batch.seq.toString)
+						pipe.exec
+						pipe.sync
+						rulesLoaded.addAndGet(batch.kvs.length)
+					} else rulesSkipped.addAndGet(batch.kvs.length)
+					batch.kvs.foreach(kv => keys.set(kv._1))
+					batch = queue.take
+				}
+			} catch {
+				case t: Throwable =>
+					failure.compareAndSet(null, t)
+			} finally {
+				jedis.disconnect
+			}
+		}
+	}
+
+	/**
+	 * returns the number of (key, value) pairs written to redis (not counting
+	 * batches that a previous run already wrote), does not write the Bloom filter
+	 */
+	def load(reader: BufferedReader): Long = {
+		val jedis = new Jedis(RedisStuff.hostname, RedisStuff.port)
+		jedis.select(db)
+		readProgress(jedis)
+		jedis.disconnect
+
+		val start = System.currentTimeMillis
+		val writers = Executors.newFixedThreadPool(threads)
+		for(i <- 0 until threads) writers.execute(new Writer(i))
+		val parsers = Executors.newFixedThreadPool(threads)
+
+		// parsed batches, in file order
+		val parsed = new java.util.ArrayDeque[Future[Array[(String, String)]]]
+		val buffers = Array.fill(threads)(new ArrayBuffer[(String, String)](batchSize))
+		val nextSeq = new Array[Long](threads)
+		def send(shard: Int, b: Batch) {
+			while(!writeQueues(shard).offer(b, 1, TimeUnit.SECONDS))
+				if(failure.get != null) return
+		}
+		def flush(shard: Int) {
+			send(shard, new Batch(nextSeq(shard), buffers(shard).toArray))
+			buffers(shard).clear
+			nextSeq(shard) += 1
+		}
+		def route {
+			val kvs = try { parsed.poll.get }
+				catch { case e: ExecutionException => failure.compareAndSet(null, e.getCause); Array[(String, String)]() }
+			for(kv <- kvs if failure.get == null) {
+				val shard = shardOf(kv._1)
+				buffers(shard) += kv
+				if(buffers(shard).size == batchSize) flush(shard)
+			}
+		}
+		def submit(lines: Array[String]) {
+			if(parsed.size == 2 * threads) route
+			parsed.add(parsers.submit(new Callable[Array[(String, String)]] {
+				override def call = lines.flatMap(l => parse(l))
+			}))
+		}
+
+		var lastReport = start
+		var lastLoaded = 0L
+		val buf = new ArrayBuffer[String](batchSize)
+		var line = reader.readLine
+		while(line != null && failure.get == null) {
+			buf += line
+			if(buf.size == batchSize) {
+				submit(buf.toArray)
+				buf.clear
+			}
+			val now = System.currentTimeMillis
+			if(now - lastReport > 30 * 1000) {
+				val loaded = rulesLoaded.get
+				log("[RedisBulkLoader db=%d] %d rules loaded, %.1f K rules/sec recent, %.1f K rules/sec avg, %d rules skipped"
+					.format(db, loaded, (loaded - lastLoaded).toDouble / (now - lastReport),
+						loaded.toDouble / (now - start), rulesSkipped.get))
+				lastReport = now
+				lastLoaded = loaded
+			}
+			line = reader.readLine
+		}
+		if(buf.nonEmpty && failure.get == null) submit(buf.toArray)
+		while(!parsed.isEmpty && failure.get == null) route
+		for(i <- 0 until threads if buffers(i).nonEmpty && failure.get == null) flush(i)
+		for(i <- 0 until threads) send(i, poison)
+		parsers.shutdownNow
+		if(failure.get == null) writers.shutdown
+		else writers.shutdownNow	// interrupts writers waiting on their queue
+		writers.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+		if(failure.get != null)
+			throw new RuntimeException("load failed, re-run to resume from " + progressKey, failure.get)
+		val loaded = rulesLoaded.get
+		log("[RedisBulkLoader db=%d] done, %d rules loaded in %.1f minutes (%.1f K rules/sec), %d rules skipped"
+			.format(db, loaded, (System.currentTimeMillis - start) / (60d * 1000d),
+				loaded.toDouble / math.max(1L, System.currentTimeMillis - start), rulesSkipped.get))
+		loaded
+	}
+}
+
+object RedisBulkLoader {
+	val THREADS = "features.redis.load.threads"
+	val BATCH = "features.redis.load.batch"
+
+	/** where a load of input keeps its progress (a hash in the db being loaded) */
+	def progressKeyFor(input: File): String = "parma.load:" + input.getName
+}
+
@@ -8,7 +8,7 @@ package edu.jhu.hlt.parma.features
 
 import edu.jhu.hlt.parma.util._
 import edu.jhu.hlt.parma.types._
-import edu.jhu.hlt.parma.feature_interfaces.AlignmentSimilarity
+import edu.jhu.hlt.parma.feature_interfaces.{AlignmentSimilarity, Prefetched}
 import edu.jhu.hlt.parma.inference.CanonicalMentionFinder
 import edu.jhu.hlt.parma.util.SHA1er
 import java.security.MessageDigest
@@ -30,38 +30,60 @@ object RedisStuff {
 
 // client
 class RedisPPDB extends AlignmentSimilarity {
-	import edu.jhu.hlt.parma.features.RedisBloomFilter
 	
+	// redis or a local memory-mapped file, see PPDBStore
 	@transient
-	private var redis: Jedis = null
+	private var ppdb: PPDBStore = null
 	
 	override def name = "RedisPPDB"
 	
 	override def setup(calibrateOn: java.util.Collection[DocAlignment]) {
-		redis = new Jedis(RedisStuff.hostname, RedisStuff.port)
-		if(redis.ping != "PONG")
-			throw new RuntimeException("cannot connect to redis! " + RedisStuff.toString)
-		redis.select(1)
+		ppdb = PPDBStore.open
 	}
 
+	// lookups for the current document pair, see prefetch
+	@transient
+	private lazy val prefetched = new Prefetched[Map[(String, String), IndexedSeq[PPDBHit]]]
+
+	/**
+	 * the (lhs, rhs) pairs that featurize will look up for this alignment
+	 */
+	private def queries(a: Alignment, report: Document, passage: Document): Seq[(String, String)] = {
+		val (rCM, pCM) = CanonicalMentionFinder.canonicalMentions(a, report, passage)
+		val rw = report.getHeadToken(rCM)
+		val pw = passage.getHeadToken(pCM)
+		if(rw == pw) Seq()
+		else {
+			val r = rw.getWord.toLowerCase
+			val p = pw.getWord.toLowerCase
+			Seq((r, p), (p, r))
+		}
+	}
+
+	override def prefetch(alignments: Seq[Alignment], report: Document, passage: Document) {
+		if(ppdb != null)
+			prefetched.set(report, passage, ppdb.lookupAll(alignments.flatMap(a => queries(a, report, passage))))
+	}
+
+	private def lookup(a: String, b: String, report: Document, passage: Document): IndexedSeq[PPDBHit] =
+		prefetched.get(report, passage).flatMap(_.get((a, b))).getOrElse(ppdb.lookup(a, b))
+
 
 	private[this] val binarizer = new FixedWidthBinarizer(8, false, -22d, -2d)
 	private[this] val emptyFeatures = DVec.rep(0d/*binarizer.agnostic*/, 7)
-	private def featuresFromRule(rule: PPDBRule): DVec = {
-		implicit def ppdbweight2double(s: String): Double = {
-			val v = java.lang.Double.parseDouble(s)
+	private[this] val featureProbs = Array("p(LHS|f)", "p(e|LHS)", "p(e|f)", "p(e|f,LHS)", "p(f|LHS)", "p(f|e)", "p(f|e,LHS)")
+		.map(PPDBHit.keyIndex)
+	private[this] val pefIdx = PPDBHit.keyIndex("p(e|f)")
+	private[this] val pfeIdx = PPDBHit.keyIndex("p(f|e)")
+	private def featuresFromRule(rule: PPDBHit): DVec = {
+		val dv = DVec.rep(0d, featureProbs.length)
+		var i = 0
+		while(i < featureProbs.length) {
+			val v = rule.logProbs(featureProbs(i))
 			assert(v >= 0d)
-			math.exp(-v)
+			dv(i) = math.exp(-v)
+			i += 1
 		}
-		val dv = new DVec(
-			rule.properties("p(LHS|f)"),
-			rule.properties("p(e|LHS)"),
-			rule.properties("p(e|f)"),
-			rule.properties("p(e|f,LHS)"),
-			rule.properties("p(f|LHS)"),
-			rule.properties("p(f|e)"),
-			rule.properties("p(f|e,LHS)")
-		)
 		assert(dv.dimension == emptyFeatures.dimension)
 		dv
 	}
@@ -70,43 +92,39 @@ class RedisPPDB extends AlignmentSimilarity {
 	var qAtLeastOneHit = 0
 	var qAtLeastTwoHits = 0
 	val qStep = 5000
-	@transient
-	lazy val ppdbKeys = RedisBloomFilter.initialize(true)
-	private def queryRedis(a: String, b: String, featureName: String, aPOS: String, bPOS: String) {
+	def ppdbKeys = RedisBloomFilter.shared
+
+	// feature names are built once rather than on every query
+	private[this] val cutoffs = (2d to 6d by 0.2d map { x => x*x }).toArray
+	private[this] val cutoffNames = cutoffs.map(c => "hits<%.1f".format(c))
+	private[this] val cutoffPOSNames = cutoffs.map(c => "hits<%.1f-POS".format(c))
+
+	private def queryRedis(a: String, b: String, featureName: String, aPOS: String, bPOS: String, report: Document, passage: Document) {
 		val start = System.currentTimeMillis
-		val key = a// RedisStuff.makeKey(a, b)
-		val maxRHSs = 1000
-		val values = if (!ppdbKeys.in(key)) new java.util.ArrayList()
-								 else redis.lrange(key, 0, maxRHSs)
-		var qi = 0
-		val hits = new ArrayBuffer[PPDBRule]
-		val hitsPOS = new ArrayBuffer[PPDBRule]
+		val hits = lookup(a, b, report, passage)
+		val hitsPOS = new ArrayBuffer[PPDBHit]
 		var sumFeatures: DVec = null
 		var maxFeatures: DVec = null
-		values.foreach(ruleStr => {
-			val rule = PPDBRuleIO.str2rule(ruleStr)
-			if(rule.rhs == b) {
-				if(q % qStep == 0)
-					println("match! q=%d, a=%s, b=%s, rule=%s".format(q, a, b, rule))
-				val features = featuresFromRule(rule)
-				if(sumFeatures == null) {
-					sumFeatures = features.copy
-					maxFeatures = features.copy
-				} else {
-					sumFeatures += features
-					maxFeatures.maxEquals(features)
-				}
-				hits += rule
-				if(rule.parent == aPOS && aPOS == bPOS)
-					hitsPOS += rule
+		hits.foreach(rule => {
+			if(q % qStep == 0)
+				println("match! q=%d, a=%s, b=%s, rule=%s".format(q, a, b, rule))
+			val features = featuresFromRule(rule)
+			if(sumFeatures == null) {
+				sumFeatures = features.copy
+				maxFeatures = features.copy
+			} else {
+				sumFeatures += features
+				maxFeatures.maxEquals(features)
 			}
+			if(rule.parent == aPOS && aPOS == bPOS)
+				hitsPOS += rule
 		})
 		if(sumFeatures == null) sumFeatures = emptyFeatures
 		for(i <- 0 until sumFeatures.dimension)
-			featureIndexer.addUnstable("hits-sum"+i.toString, sumFeatures(i))
+			featureIndexer.addUnstable("hits-sum", i, sumFeatures(i))
 		if(maxFeatures == null) maxFeatures = emptyFeatures
 		for(i <- 0 until maxFeatures.dimension)
-			featureIndexer.addUnstable("hits-max"+i.toString, maxFeatures(i))
+			featureIndexer.addUnstable("hits-max", i, maxFeatures(i))
 
 		featureIndexer.addUnstable("numHits", hits.size.toDouble / 10d)
 		featureIndexer.addUnstable("numHits1", bool2value(hits.size >= 1))
@@ -126,11 +144,12 @@ class RedisPPDB extends AlignmentSimilarity {
 
 
 		// filter based on PPDB score, count how many hits are left
-		for(cutoff <- 2d to 6d by 0.2d map { x => x*x }) {
+		for(ci <- 0 until cutoffs.length) {
+			val cutoff = cutoffs(ci)
 			val c = hits.filter(_.score < cutoff).size
 			val cp = hitsPOS.filter(_.score < cutoff).size
-			featureIndexer.addUnstable("hits<%.1f".format(cutoff), c / 2d)
-			featureIndexer.addUnstable("hits<%.1f-POS".format(cutoff), cp.toDouble)
+			featureIndexer.addUnstable(cutoffNames(ci), c / 2d)
+			featureIndexer.addUnstable(cutoffPOSNames(ci), cp.toDouble)
 		}
 
 
@@ -139,25 +158,25 @@ class RedisPPDB extends AlignmentSimilarity {
 				qAtLeastOneHit += 1
 				if(hits.size > 1)
 					qAtLeastTwoHits += 1
-				val l = hits.minBy(_.properties("p(e|f)").toDouble)
-				val r = hits.minBy(_.properties("p(f|e)").toDouble)
+				val l = hits.minBy(_.logProbs(pefIdx))
+				val r = hits.minBy(_.logProbs(pfeIdx))
 				val ldv = featuresFromRule(l)
 				val rdv = featuresFromRule(r)
 				(DVec.max(ldv, rdv), DVec.sum(ldv, rdv))
 			}
 			else (emptyFeatures, emptyFeatures)
 		for(i <- 0 until f1dv.dimension)
-			featureIndexer.addUnstable("p(e|f)"+i.toString, f1dv(i))
+			featureIndexer.addUnstable("p(e|f)", i, f1dv(i))
 		for(i <- 0 until f2dv.dimension)
-			featureIndexer.addUnstable("p(f|e)"+i.toString, f2dv(i))
+			featureIndexer.addUnstable("p(f|e)", i, f2dv(i))
 
 
 		if(q % qStep == 0) {
 			val free = Runtime.getRuntime.freeMemory / 1024f / 1024f
 			val maxmem = Runtime.getRuntime.maxMemory / 1024f / 1024f
 			println("[RedisPPDB featurize] free=%.1f MB, maxMem=%.1f MB".format(free, maxmem))
-			println("[RedisPPDB featurize] q=%d qAtLeastOneHit=%d, qAtLeastTwoHits=%d, a=%s, b=%s, %d values processed in %d ms"
-				.format(q, qAtLeastOneHit, qAtLeastTwoHits, a, b, values.size, System.currentTimeMillis - start))
+			println("[RedisPPDB featurize] q=%d qAtLeastOneHit=%d, qAtLeastTwoHits=%d, a=%s, b=%s, %d hits processed in %d ms"
+				.format(q, qAtLeastOneHit, qAtLeastTwoHits, a, b, hits.size, System.currentTimeMillis - start))
 		}
 		q += 1
 	}
@@ -177,8 +196,8 @@ class RedisPPDB extends AlignmentSimilarity {
 		val rw = report.getHeadToken(rCM)//.getWord.toLowerCase
 		val pw = passage.getHeadToken(pCM)//.getWord.toLowerCase
 		if(rw != pw) {
-			queryRedis(word(rw), word(pw), "headTok", pos(rw), pos(pw))
-			queryRedis(word(pw), word(rw), "headTok", pos(pw), pos(rw))
+			queryRedis(word(rw), word(pw), "headTok", pos(rw), pos(pw), report, passage)
+			queryRedis(word(pw), word(rw), "headTok", pos(pw), pos(rw), report, passage)
 		}
 
 		// [2] mention head lemma
@@ -240,6 +259,43 @@ object PPDBRuleIO {
 		new PPDBRule(lhs, rhs, parent, score, props)
 	}
 
+	/** the rhs of a rule string, without parsing the whole rule */
+	def rhsOf(redisStr: String): String = {
+		val t1 = redisStr.indexOf('\t')
+		val t2 = redisStr.indexOf('\t', t1 + 1)
+		if(t1 < 0 || t2 < 0) throw new RuntimeException("bad rule string: " + redisStr)
+		redisStr.substring(t1 + 1, t2)
+	}
+
+	/**
+	 * parses a line from a (lexical) PPDB release file:
+	 * score ||| parent ||| lhs ||| rhs ||| properties ||| alignment
+	 */
+	def fromPPDBLine(line: String): PPDBRule = {
+		val ar = line.split(" \\|\\|\\| ")
+		val score = ar(0).toDouble
+		val parent = ar(1).toLowerCase
+		val leftChild = ar(2).toLowerCase
+		val rightChild = ar(3).toLowerCase
+		val properties = str2map(ar(ar.length-2))
+		new PPDBRule(leftChild, rightChild, parent, score, properties)
+	}
+
+	private def str2map(kvs: String): Map[String, String] = {
+		val properties = kvs.split(" ").flatMap(kv => {
+			val x = kv.split("=")
+			if(x.length != 2) {
+				//println("kvs = " + kvs)
+				//throw new RuntimeException("x = [%s]".format(x.mkString(", ")))
+				Seq()
+			}
+			else Seq((x(0), x(1)))
+		}).toMap
+
+		// get rid of trailing 0s
+		properties.mapValues(value => """\.0*$""".r.replaceAllIn(value, ""))
+	}
+
 	def validToken(s: String) = s.indexOf(sep1) < 0 && s.indexOf(sep2) < 0 && s.indexOf(eq) < 0
 
 	private def sortedKVs(rule: PPDBRule): String = rule.properties.map(kv => kv._1 + eq + kv._2).toBuffer.sorted.mkString(sep2)
@@ -274,7 +330,8 @@ class PPDBRule(val lhs: String, val rhs: String, val parent: String, val score:
 
 // code needed to insert into redis
 object RedisPPDBSetup {
-	val ppdbKeys = RedisBloomFilter.initialize(true)
+	// the lexical PPDB lives in redis db 1
+	val db = 1
 
 	def main(args: Array[String]) {
 		if(args.length != 1) {
@@ -282,10 +339,8 @@ object RedisPPDBSetup {
 			sys.exit(-1)
 		}
 		ParmaConfig.load(args(0))
+		val ppdbKeys = RedisBloomFilter.builder
 		println("[redis insert] trying to connect to redis at %s on port %d".format(RedisStuff.hostname, RedisStuff.port))
-		val redis = new Jedis(RedisStuff.hostname, RedisStuff.port)
-		// load redis db 1 instead of db 0
-		redis.select(1)
 		val f = ParmaConfig.getFile("features.ppdb.redis.file.lexical")
 		val reader = FileUtils.getReader(f)
 
@@ -296,63 +351,17 @@ object RedisPPDBSetup {
 		println("for some reason, cannot flush programatically, do so manually")
 
 		println("[redis insert] inserting stuff...")
-		//val pipe = redis.pipelined
-		var i = 0
-		val start = System.currentTimeMillis
-		var last = start
-		while(reader.ready) {
-			val line = reader.readLine
-			val ar = line.split(" \\|\\|\\| ")
-			val score = ar(0).toDouble
-			val parent = ar(1).toLowerCase
-			val leftChild = ar(2).toLowerCase
-			val rightChild = ar(3).toLowerCase
-			val properties = str2map(ar(ar.length-2))
-
-			val key = leftChild //+"|"+ rightChild
-			val value = PPDBRuleIO.rule2str(new PPDBRule(leftChild, rightChild, parent, score, properties))
-			//val value = List(rightChild, properties("p(LHS|e)"), properties("p(LHS|f)"),
-			//				properties("p(e|LHS)"), properties("p(e|f)"), properties("p(e|f,LHS)"),
-			//				properties("p(f|LHS)"), properties("p(f|e)"), properties("p(f|e,LHS)"))
-			//println("key = %s, value = [%s]".format(key, value))
-			//redis.rpush(key, value: _*)
-			redis.rpush(key, value)
-			ppdbKeys.set(key)
-			//pipe.rpush(key, value)
-
-			val step = 15000
-			if(i % step == 0) {
-				val now = System.currentTimeMillis
-				val recent = step.toDouble / (now-last)
-				val avg = i.toDouble / (now-start)
-				println("i=%d, %.1f K lines/sec recent, %.1f K lines/sec avg".format(i, recent, avg))
-				//println("adding(%d) %s => %s (%.1f %.1f K lines/sec recent/avg)".format(i, key, properties, recent, avg))
-				last = now
-			}
-			i += 1
-		}
+		val loader = new RedisBulkLoader(db, parse, ppdbKeys, RedisBulkLoader.progressKeyFor(f))
+		loader.load(reader)
 		reader.close
-		ppdbKeys.write
-		//pipe.exec
-
-		println("done, added %d rules in %.1f minutes".format(i, (System.currentTimeMillis - start)/(60d*1000d)))
+		RedisBloomFilter.write(ppdbKeys)
 	}
 
-	private def str2map(kvs: String): Map[String, String] = {
-		val properties = kvs.split(" ").flatMap(kv => {
-			val x = kv.split("=")
-			if(x.length != 2) {
-				//println("kvs = " + kvs)
-				//throw new RuntimeException("x = [%s]".format(x.mkString(", ")))
-				Seq()
-			}
-			else Seq((x(0), x(1)))
-		}).toMap
-
-		// get rid of trailing 0s
-		properties.mapValues(value => """\.0*$""".r.replaceAllIn(value, ""))
+	/** (lhs, rule string) */
+	def parse(line: String): Option[(String, String)] = {
+		val rule = PPDBRuleIO.fromPPDBLine(line)
+		Some((rule.lhs, PPDBRuleIO.rule2str(rule)))
 	}
-
 }
 
 
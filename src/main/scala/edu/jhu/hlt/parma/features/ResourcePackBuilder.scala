@@ -0,0 +1,83 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features
+
+import edu.jhu.hlt.parma.util._
+import edu.jhu.hlt.parma.features.wordnet.{WordNet, WordNetGraph}
+import edu.jhu.hlt.parma.features.framenet.FrameNet
+import edu.jhu.hlt.parma.features.verb_pair.VerbPairHelper
+import edu.jhu.hlt.parma.features.entailing_annotations.PhraseEntailmentHelper
+import edu.jhu.hlt.parma.inference.transducers.{AnnotatedString, ArpabetPhoneticDictionary}
+import java.io.File
+import java.util.Date
+
+/**
+ * compiles the lexical resources named in parma.config into one ResourcePack,
+ * which every later run opens (see resources.pack) instead of parsing text files.
+ * a resource is included if its data path is set, and the pack says where
+ * everything came from in its "manifest" section.
+ *
+ * usage: ResourcePackBuilder parma.config [output file, default is resources.pack]
+ */
+object ResourcePackBuilder {
+
+	val ARPABET_DICT = "features.arpabet.dict"
+
+	private def configured(key: String) = ParmaConfig.getString(key, null) != null
+
+	def main(args: Array[String]) {
+		if(args.length < 1 || args.length > 2) {
+			println("please provide a parma.config file and optionally an output file")
+			sys.exit(-1)
+		}
+		ParmaConfig.load(args(0))
+		val out = if(args.length == 2) new File(args(1)) else ParmaConfig.getFile(ResourcePack.FILE)
+		val w = new ResourcePackWriter(out)
+		val manifest = new StringBuilder
+		manifest.append("built %s from %s\n".format(new Date, args(0)))
+		def add(name: String, key: String)(write: => Unit) {
+			if(configured(key)) {
+				val source = ParmaConfig.getString(key)
+				println("[ResourcePackBuilder] adding %s from %s".format(name, source))
+				Profiler.time("pack:" + name, Unit => write)
+				manifest.append("%s\t%s\n".format(name, source.split(",").map(s => {
+					val f = new File(s)
+					"%s (%d bytes, modified %s)".format(s, f.length, new Date(f.lastModified))
+				}).mkString(", ")))
+			}
+			else println("[ResourcePackBuilder] skipping %s, %s is not set".format(name, key))
+		}
+
+		add("wordnet", WordNet.FEATURES_WORDNET_DATAPATH) {
+			WordNet.buildGraph.writeTo(w)
+		}
+		add("framenet", FrameNet.FEATURES_FRAMENET_PREDS_TO_FRAMES_DATAPATH) {
+			FrameNet.writeTo(w)
+		}
+		add("verbs", "features.verbentailmentannotated.datapath") {
+			VerbPairHelper.constructEntailmentsFromText.writeTo(w)
+		}
+		add("phrases", "features.phrase.entailments.datapath") {
+			PhraseEntailmentHelper.parseDefaultTextFiles.writeTo(w)
+		}
+		add("arpabet", ARPABET_DICT) {
+			val d = new ArpabetPhoneticDictionary(AnnotatedString.getAlphabet)
+			d.loadDictionary(ParmaConfig.getString(ARPABET_DICT))
+			d.writeTo(w)
+		}
+		add("wikirules", "features.wikirules.terms") {
+			WikiRuleStore.setup(ParmaConfig.getFile("features.wikirules.terms"),
+				ParmaConfig.getFile("features.wikirules.rules"),
+				ParmaConfig.getFile("features.wikirules.ruleCounts"))
+			WikiRuleStore.writeTo(w)
+		}
+		w.text("manifest", manifest.toString)
+		w.close
+		println("[ResourcePackBuilder] wrote " + out.getPath)
+		print(manifest)
+	}
+}
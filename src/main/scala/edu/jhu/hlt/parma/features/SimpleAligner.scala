@@ -38,6 +38,28 @@ class SimpleAligner extends RedisPPDB {
 
 	override def name = "SimpleAligner"
 
+	// joint queries for every sentence pair in the current document pair
+	@transient
+	private lazy val prefetched = new Prefetched[PPDBMap]
+
+	/**
+	 * one pipelined batch for every sentence pair featurize will see
+	 * in this document pair (rather than one batch per alignment)
+	 */
+	override def prefetch(alignments: Seq[Alignment], report: Document, passage: Document) {
+		val queries = new collection.mutable.HashSet[String]
+		val seen = new collection.mutable.HashSet[(Int, Int)]
+		for(a <- alignments) {
+			val (rcm, pcm) = CanonicalMentionFinder.canonicalMentions(a, report, passage)
+			if(seen.add((rcm.getSentenceIdx, pcm.getSentenceIdx))) {
+				val rs = report.getSentence(rcm).toString.toLowerCase.split(" ")
+				val ps = passage.getSentence(pcm).toString.toLowerCase.split(" ")
+				queries ++= jointQueries(rs, ps)
+			}
+		}
+		prefetched.set(report, passage, pipeRedis(queries))
+	}
+
 	def jointQueries(rs: Seq[String], ps: Seq[String]): Seq[String] = {
 		rs.flatMap(r => ps.map(p => r +"|"+ p))
 	}
@@ -147,7 +169,7 @@ class SimpleAligner extends RedisPPDB {
 		val rs = report.getSentence(rcm).toString.toLowerCase.split(" ")	// report.getMentionTokens(rcm).map(_.getWord)
 		val ps = passage.getSentence(pcm).toString.toLowerCase.split(" ")
 
-		lazy val ppdbMap = pipeRedis(jointQueries(rs,ps))
+		lazy val ppdbMap = prefetched.get(report, passage).getOrElse(pipeRedis(jointQueries(rs,ps)))
 
 
 		//for(cutoff <- List(5d, 12d, 25d)) {
@@ -17,11 +17,10 @@ import edu.jhu.hlt.parma.types.Alignment
 import edu.jhu.hlt.parma.types.Token
 import edu.jhu.hlt.parma.types.Sentence
 import edu.jhu.hlt.parma.types.Dependency
+import edu.jhu.hlt.parma.util.Caches
 import approxlib.tree.LblTree
-import approxlib.distance.EditDist
-import approxlib.distance.EditBasedDist
+import approxlib.distance.ArrayEditDist
 import scala.collection.JavaConversions._
-import scala.collection.mutable.HashMap
 
 /**
  * @author Xuchen Yao
@@ -35,31 +34,36 @@ class TEDAlignment extends AlignmentSimilarity {
 	val NumOfAlignInPassageMention = "NumOfTEDAlignInPassageMention"
 	val HeadAlign = "HeadTEDAlignInMentions"
 
-	@transient
-	var pair2edit: HashMap[String, EditDist] = null
+	// dependency trees by (document id, sentence index), and the distance and
+	// word-order alignment of each (report sentence, passage sentence) pair,
+	// so each pair's tree edit distance is computed once
+	@transient private[this] lazy val trees =
+		Caches.get[(String, Int), ArrayEditDist.Tree]("ted.trees", 20000)
+	@transient private[this] lazy val pairs =
+		Caches.get[(String, Int, String, Int), TEDAlignment.Result]("ted.pairs", 100000)
+	// memo matrices are reused between pairs, one set per thread
+	@transient private[this] lazy val editDists = new ThreadLocal[ArrayEditDist] {
+		override def initialValue = new ArrayEditDist(true)
+	}
 
 	override def setup(trainDocs: java.util.Collection[DocAlignment]): Unit = {	}
 
-	override def cleanup(): Unit = { pair2edit.clear }
+	override def cleanup(): Unit = {
+		trees.clear
+		pairs.clear
+	}
 
 	private[this] val distBinarizer = new edu.jhu.hlt.parma.util.FixedWidthBinarizer(5, false, 0d, 5d)
 
 	def makeTreeString(sentence: Sentence) = treeString(buildTree(sentence))
 
 	def buildTree(sentence: Sentence): Map[String, Seq[String]] = {
-		def escape(word: String): String = {
-			word.replaceAll(":", "#colon#").replaceAll("/", "#slash#")
-				.replaceAll("\\{", "#left_curly_brace#").replaceAll("\\}", "#right_curly_brace#")
-		}
 		def loop(deps: Seq[Dependency[Token]], tmap: Map[String, Seq[String]]): Map[String, Seq[String]] = {
 			if (deps.isEmpty) tmap
 			else {
 				val d = deps.head
 				val key = if (d.typ == "root") "-1:aRoot" else d.gov.index+":"+d.gov.getWord
-				val word = escape(d.dep.getWord)
-				val lemma = escape(d.dep.getLemma)
-				val pos = escape(d.dep.getPosTag)
-				val node = d.dep.index +":"+ word +"/"+ lemma +"/"+ pos +"/"+ d.typ
+				val node = d.dep.index + ":" + TEDAlignment.nodeLabel(d)
 				val entry = tmap.getOrElse(key, Seq()) ++ Seq(node)
 				val tmap1 = tmap + (key -> entry)
 				loop(deps.tail, tmap1)
@@ -86,49 +90,70 @@ class TEDAlignment extends AlignmentSimilarity {
 		}
 		"-1:" + nodeString(tree, "-1:aRoot", "") 
 	}
+
+	/**
+	 * the tree makeTreeString describes, built straight from the dependencies:
+	 * each token's children are the dependents it governs, in the order of
+	 * sentence.dependencies.  a token that is already on the path from the
+	 * root is not expanded again, so cyclic (collapsed) parses give a finite tree.
+	 * (the string version looks children up by escaped word, so it dropped the
+	 * children of words with : / { or }, and its cycle check was a substring test)
+	 */
+	def lblTree(sentence: Sentence): LblTree = {
+		val deps = sentence.dependencies
+		val children = new java.util.HashMap[Int, java.util.ArrayList[Dependency[Token]]]
+		def childrenOf(gov: Int) = {
+			var c = children.get(gov)
+			if (c == null) {
+				c = new java.util.ArrayList[Dependency[Token]]
+				children.put(gov, c)
+			}
+			c
+		}
+		for (d <- deps)
+			childrenOf(if (d.typ == "root") -1 else d.gov.index).add(d)
+		val onPath = new java.util.HashSet[Int]
+		def expand(node: LblTree, gov: Int) {
+			val c = children.get(gov)
+			if (c != null && onPath.add(gov)) {
+				for (d <- c) {
+					val child = new LblTree(d.dep.index + ":" + TEDAlignment.nodeLabel(d), -1)
+					node.add(child)
+					expand(child, d.dep.index)
+				}
+				onPath.remove(gov)
+			}
+		}
+		val root = new LblTree("-1:aRoot", -1)
+		expand(root, -1)
+		root
+	}
+
+	private def postOrderTree(doc: Document, sentenceIdx: Int): ArrayEditDist.Tree =
+		trees.getOrElseUpdate((doc.id, sentenceIdx), new ArrayEditDist.Tree(lblTree(doc.getSentence(sentenceIdx))))
     
 	override def featurize(sv: SVec, a: Alignment, report: Document, passage: Document) {
 		val (rcm, pcm) = edu.jhu.hlt.parma.inference.CanonicalMentionFinder.canonicalMentions(a, report, passage)
 
-		val rs = report.getSentence(rcm)
-		val ps = passage.getSentence(pcm)
-
-
-		//println("rs: "+rs)
-		//println(makeTreeString(rs))
-		//println(makeTreeString(ps))
-		val reportTree = makeTreeString(rs)
-		//println("ps: "+ps)
-		val passageTree = makeTreeString(ps)
-
-		val reportLblTree = LblTree.fromString(reportTree)
-		val passageLblTree = LblTree.fromString(passageTree)
-
-		val pairId = report.id + rcm.getSentenceIdx.toString + "->" + 
-			passage.id + pcm.getSentenceIdx.toString 
-
-		val dist = {	
-			if(pair2edit == null)
-				pair2edit = new HashMap[String, EditDist]
-			if (!pair2edit.contains(pairId)) { 
-				val ed = new EditDist(true)
-				ed.treeDist(reportLblTree, passageLblTree)
-				ed.printHumaneEditScript()
-				pair2edit.update(pairId, ed)
-			}
-			pair2edit(pairId)
-		} 
-
-		val tdistance = dist.treeDist(reportLblTree, passageLblTree)
+		val key = (report.id, rcm.getSentenceIdx, passage.id, pcm.getSentenceIdx)
+		val ted = pairs.getOrElseUpdate(key, {
+			val ed = editDists.get
+			val d = ed.treeDist(postOrderTree(report, rcm.getSentenceIdx), postOrderTree(passage, pcm.getSentenceIdx))
+			val align = ed.getAlignInWordOrder1to2
+			new TEDAlignment.Result(d, align(0), align(1))
+		})
+		val tdistance = ted.distance
 
 		var headAlign = 0
 		var alignInBoth = 0
 		var alignInReport = 0
 		var alignInPassage = 0
 		
-		dist.getAlignInWordOrder1to2().entrySet().foreach { entry =>
-			val r = entry.getKey
-			val p = entry.getValue
+		var i = 0
+		while (i < ted.reportIdx.length) {
+			val r = ted.reportIdx(i)
+			val p = ted.passageIdx(i)
+			i += 1
 			if (r >= rcm.getStartTokenIdx && r < rcm.getEndTokenIdx &&
 					p >= pcm.getStartTokenIdx && p < pcm.getEndTokenIdx) {
 				alignInBoth += 1
@@ -157,4 +182,19 @@ class TEDAlignment extends AlignmentSimilarity {
 	}
 }
 
+object TEDAlignment {
+
+	/** a sentence pair's tree edit distance and word-order alignment (report index -> passage index) */
+	class Result(val distance: Double, val reportIdx: Array[Int], val passageIdx: Array[Int])
+
+	private def escape(word: String): String = {
+		word.replaceAll(":", "#colon#").replaceAll("/", "#slash#")
+			.replaceAll("\\{", "#left_curly_brace#").replaceAll("\\}", "#right_curly_brace#")
+	}
+
+	/** word/lemma/pos/relation for the dependent of d */
+	def nodeLabel(d: Dependency[Token]): String =
+		escape(d.dep.getWord) +"/"+ escape(d.dep.getLemma) +"/"+ escape(d.dep.getPosTag) +"/"+ d.typ
+}
+
 /* vim: set noet : */
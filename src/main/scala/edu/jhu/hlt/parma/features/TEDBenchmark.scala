@@ -0,0 +1,92 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features
+
+import edu.jhu.hlt.parma.experiments.Pipeline
+import edu.jhu.hlt.parma.inference.FeatureRepresentation
+import edu.jhu.hlt.parma.types.Sentence
+import edu.jhu.hlt.parma.util.ParmaConfig
+import approxlib.tree.LblTree
+import approxlib.distance.{EditDist, ArrayEditDist}
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * times TEDAlignment's tree edit distance on every (report sentence, passage sentence)
+ * pair in the first experiment's data (see experiments in parma.config):
+ *   1) the old way, EditDist on trees parsed from makeTreeString
+ *   2) EditDist on TEDAlignment.lblTree
+ *   3) ArrayEditDist on post-order trees built once per sentence
+ * and checks that 2 and 3 give the same distances and alignments.
+ *
+ * usage: TEDBenchmark parma.config [max sentence pairs, default 20000]
+ */
+object TEDBenchmark {
+
+	def main(args: Array[String]) {
+		if(args.length < 1 || args.length > 2) {
+			println("please provide a parma.config file and optionally a max number of sentence pairs")
+			sys.exit(-1)
+		}
+		ParmaConfig.load(args(0))
+		val maxPairs = if(args.length == 2) args(1).toInt else 20000
+		val experiment = new Pipeline[FeatureRepresentation].getExperiments.head
+		val data = experiment.rawData
+
+		val ted = new TEDAlignment
+		val sentences = new ArrayBuffer[Sentence]
+		val pairs = new ArrayBuffer[(Int, Int)]
+		for(da <- data.allAlignments if pairs.size < maxPairs) {
+			val r = sentences.size
+			sentences ++= da.report.sentences
+			val p = sentences.size
+			sentences ++= da.passage.sentences
+			for(i <- 0 until da.report.sentences.size; j <- 0 until da.passage.sentences.size)
+				if(pairs.size < maxPairs) pairs += ((r + i, p + j))
+		}
+		println("[TEDBenchmark] %d sentence pairs from %d sentences".format(pairs.size, sentences.size))
+
+		def time[T](name: String)(block: => T): T = {
+			val start = System.currentTimeMillis
+			val t = block
+			println("[TEDBenchmark] %s took %.2f seconds".format(name, (System.currentTimeMillis - start) / 1000d))
+			t
+		}
+
+		time("EditDist on makeTreeString") {
+			val strings = sentences.map(ted.makeTreeString)
+			for((i, j) <- pairs) {
+				val ed = new EditDist(true)
+				ed.treeDist(LblTree.fromString(strings(i)), LblTree.fromString(strings(j)))
+				ed.getAlignInWordOrder1to2
+			}
+		}
+		val trees = sentences.map(ted.lblTree)
+		val expected = time("EditDist on lblTree") {
+			pairs.map(ij => {
+				val ed = new EditDist(true)
+				val d = ed.treeDist(trees(ij._1), trees(ij._2))
+				(d, ed.getAlign1to2)
+			})
+		}
+		val actual = time("ArrayEditDist (including building trees)") {
+			val postOrder = trees.map(t => new ArrayEditDist.Tree(t))
+			val ed = new ArrayEditDist(true)
+			pairs.map(ij => {
+				val d = ed.treeDist(postOrder(ij._1), postOrder(ij._2))
+				(d, java.util.Arrays.copyOf(ed.getAlign1to2, postOrder(ij._1).getNodeCount + 1))
+			})
+		}
+		val mismatches = expected.zip(actual).count(ea => {
+			val (d1, a1) = ea._1
+			val (d2, a2) = ea._2
+			val a2map = a2.indices.filter(a2(_) != 0).map(i => (i, a2(i))).toMap
+			d1 != d2 || a1.toMap.map(kv => (kv._1.intValue, kv._2.intValue)) != a2map
+		})
+		println("[TEDBenchmark] %d of %d pairs differ".format(mismatches, pairs.size))
+	}
+}
@@ -11,9 +11,7 @@ import edu.jhu.hlt.parma.types._
 import edu.jhu.hlt.parma.util._
 import edu.jhu.hlt.parma.feature_interfaces._
 import edu.jhu.hlt.parma.math.Stats
-import edu.jhu.hlt.parma.inference.topics.LDATrainer
-import no.uib.cipr.matrix.VectorEntry
-import no.uib.cipr.matrix.sparse.SparseVector
+import edu.jhu.hlt.parma.inference.topics.{LDATrainer, TopicModel}
 import scala.collection.JavaConversions._
 import java.util.logging.Logger
 import java.io._
@@ -22,18 +20,29 @@ class TopicJSFeaturizer extends AlignmentSimilarity {
 
   val NUM_TOPICS = 32
 
-  var model: Option[LDATrainer] = None
+  // an LDATrainer or OnlineLDATrainer
+  var model: Option[TopicModel] = None
   
   val MODEL_PATH = ParmaConfig.getFile("features.topicJS.lda.model")
 
+  // the model's word indices, needed for a model trained on another corpus
+  val VOCAB_PATH = ParmaConfig.getFile("features.topicJS.lda.vocab", null)
+
   override def setup(docs: java.util.Collection[DocAlignment]) {
 
     if(MODEL_PATH.exists) {
       log.info("reading serialized lda model...")
       val ois = new ObjectInputStream(new FileInputStream(MODEL_PATH))
-      model = Some(ois.readObject.asInstanceOf[LDATrainer])
+      model = Some(ois.readObject.asInstanceOf[TopicModel])
       ois.close
 
+      if(VOCAB_PATH != null) {
+        edu.jhu.hlt.parma.inference.topics.Document.readWordMap(VOCAB_PATH.getPath)
+        edu.jhu.hlt.parma.inference.topics.Document.freezeVocab
+        if(edu.jhu.hlt.parma.inference.topics.Document.getVocabSize != model.get.model.vocab_size)
+          throw new RuntimeException("%s does not match the model's vocabulary".format(VOCAB_PATH.getPath))
+      }
+
       // Sanity checks
       if(model.get.model.num_topics != NUM_TOPICS) {
         log.info("mismatch in number of topics")
@@ -51,6 +60,7 @@ class TopicJSFeaturizer extends AlignmentSimilarity {
 
       // Create the trainer, and run EM
       val trainer = new LDATrainer(NUM_TOPICS, edu.jhu.hlt.parma.inference.topics.Document.getVocabSize, lda_docs)
+      trainer.setNumThreads(ParmaConfig.getInt("features.topicJS.lda.threads", Runtime.getRuntime.availableProcessors))
       trainer.runEM
       model = Some(trainer)
 
@@ -58,7 +68,10 @@ class TopicJSFeaturizer extends AlignmentSimilarity {
       val oos = new ObjectOutputStream(new FileOutputStream(MODEL_PATH))
       oos.writeObject(trainer)
       oos.close
+      if(VOCAB_PATH != null)
+        edu.jhu.hlt.parma.inference.topics.Document.writeWordMap(VOCAB_PATH.getPath)
     }
+    model.get.inferencer.setCheckEvery(ParmaConfig.getInt("features.topicJS.lda.checkEvery", 1))
   }
 
   private[this] val binarizer = new FixedWidthBinarizer(5, false, 0d, 1d)
@@ -72,29 +85,16 @@ class TopicJSFeaturizer extends AlignmentSimilarity {
 
     val report_gamma  = Array.ofDim[Double](NUM_TOPICS)
     val passage_gamma = Array.ofDim[Double](NUM_TOPICS)
-    
-    val l1 = report_doc.length
-    val l2 = passage_doc.length
-    val lmax = if(l1>l2) l1 else l2
 
-    val phi   = Array.ofDim[Double](lmax, NUM_TOPICS)
+    // phi lives in the inferencer's per-thread workspace
+    model.get.inferencer.infer(report_doc, model.get.model, report_gamma)
+    model.get.inferencer.infer(passage_doc, model.get.model, passage_gamma)
 
-    model.get.inferencer.infer(report_doc, model.get.model, report_gamma, phi)
-    model.get.inferencer.infer(passage_doc, model.get.model, passage_gamma, phi)
-
-    val d = Stats.JSDistance( arrayToVector(report_gamma), arrayToVector(passage_gamma) )
+    val d = Stats.JSDistance(report_gamma, passage_gamma)
 	assert(d <= 1d, "go change binarizer: " + d)
 
   	featureIndexer.start(sv)
 	featureIndexer.addStable("context-topic-jensen-shannon-distance", d, binarizer)
 	featureIndexer.commit
   }
-
-  def arrayToVector(a: Array[Double]) : SparseVector = {
-    var v = new SparseVector(Int.MaxValue)
-    for(i <- 0 until a.size) {
-      v.set(i, a(i))
-    }
-    v
-  }
 }
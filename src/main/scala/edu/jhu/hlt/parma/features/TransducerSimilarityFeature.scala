@@ -32,10 +32,10 @@ class TransducerSimilarityFeature extends AlignmentSimilarity {
 	}
 
 	def normalize(logp: Double): Double = {
-		// If there are two long dissimilar strings, the probability will
-		// underflow.
+		// logp doesn't underflow (see BackoffConditionalEditModel.forward_logp),
+		// but it is -infinity if the model gives the pair no probability at all
 		if(logp == Double.NegativeInfinity) {
-			log.warning("underflow in transducer prob calc")
+			log.warning("zero probability in transducer prob calc")
 			-100.0
 		}
 		else if(logp == Double.PositiveInfinity) {
@@ -49,7 +49,13 @@ class TransducerSimilarityFeature extends AlignmentSimilarity {
 		else logp / 50d		// crude attempt to put on scale with other features
 	}
 
-	def score(x_str: String, y_str: String): Double = {
+	def score(x_str: String, y_str: String): Double = score(x_str, y_str, Double.NegativeInfinity)
+
+	/**
+	 * if the score is provably below minLogp/50, some value below that is returned
+	 * instead (only safe when the score goes straight into a binarizer)
+	 */
+	def score(x_str: String, y_str: String, minLogp: Double): Double = {
 		if(!isSetup) {
 			log.warning("ad-hoc set up! no examples")
 			setup(Seq())
@@ -57,8 +63,9 @@ class TransducerSimilarityFeature extends AlignmentSimilarity {
 		val x = new AnnotatedString(x_str)
 		val y = new AnnotatedString(y_str)
 		try {
-			var logp = transducer.get.logp(x,y)
-			var logpb = transducer.get.logp(y,x)
+			// the second direction only matters if it beats the first
+			var logp = transducer.get.logp(x, y, band, minLogp)
+			var logpb = transducer.get.logp(y, x, band, math.max(minLogp, logp))
 			//log.info("x_str="+x_str+" y_str="+y_str+" logp=" + logp + " logpb=" + logpb)
 
 			// nick says that max tends to work better than sum
@@ -74,6 +81,11 @@ class TransducerSimilarityFeature extends AlignmentSimilarity {
 	}
 
 	private[this] val binarizer = new FixedWidthBinarizer(15, false, -40d, -1d)
+
+	// scores below the binarizer's range all go in one bucket, so the transducer can give up on them
+	private[this] val binarizedMinLogp = binarizer.low * 50d
+	// keep only transducer paths this close to the diagonal, -1 for exact scores
+	private[this] val band = ParmaConfig.getInt("features.transducer.band", -1)
 	override def featurize(sv: SVec, a: Alignment, report: Document, passage: Document) {
 
 		assert(isSetup)
@@ -85,6 +97,7 @@ class TransducerSimilarityFeature extends AlignmentSimilarity {
 		val (f1, f2) =
 			if(a.isInstanceOf[ArgCorefAlignment]) {
 				val aca = a.asInstanceOf[ArgCorefAlignment]
+				// exact scores, the average would move if any of these were a bound
 				val ms = aca.reportCoref.flatMap(ra =>
 					aca.passageCoref.map(pa =>
 					score(report.getHeadString(ra), passage.getHeadString(pa))))
@@ -92,7 +105,7 @@ class TransducerSimilarityFeature extends AlignmentSimilarity {
 			}
 			else (binarizer.agnostic, binarizer.agnostic)
 		featureIndexer.start(sv)
-		featureIndexer.addStable("transducer-logp-head-canonical", score(rh, ph), binarizer)
+		featureIndexer.addStable("transducer-logp-head-canonical", score(rh, ph, binarizedMinLogp), binarizer)
 		featureIndexer.addStable("transducer-logp-head-coref-min", f1, binarizer)
 		featureIndexer.addStable("transducer-logp-head-coref-avg", f2, binarizer)
 		featureIndexer.commit
@@ -0,0 +1,77 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features.generic
+
+import edu.jhu.hlt.parma.types._
+import edu.jhu.hlt.parma.util.{BoundedCache, Caches}
+
+/**
+ * how widely a cached pipe value can be reused:
+ *   PerAlignment     for one (Context, Alignment)
+ *   PerDocumentPair  for every alignment in a (Context, Alignment)'s document pair
+ *   PerDocument      for a (Document, _), e.g. a Transform's input
+ *   Global           for any input with the same key
+ */
+object CacheScope extends Enumeration {
+
+	val PerAlignment, PerDocumentPair, PerDocument, Global = Value
+
+	/** identifies the alignment/document pair/document that input belongs to */
+	def tag(scope: Value, input: Any): AnyRef = (scope, input) match {
+		case (Global, _) => None
+		case (PerAlignment, (c: Context, a: Alignment)) => (c.report.id, c.passage.id, a)
+		case (PerDocumentPair, (c: Context, _)) => (c.report.id, c.passage.id)
+		case (PerDocument, (d: Document, _)) => d.id
+		case _ => throw new RuntimeException("%s does not apply to input: %s".format(scope, input))
+	}
+}
+
+/**
+ * a bounded, thread-safe cache of pipe values (see BoundedCache), configured
+ * by "pipe.<name>@<scope>" in parma.config. every ScopedCache has its own
+ * BoundedCache (pipe names are not unique, e.g. IdentAccum and
+ * IdentAccumMaybeEmpty), see Caches.create.
+ *
+ * entries are keyed by their scope's tag as well as their key, so values from
+ * different alignments (or document pairs, or documents) never mix, and nothing
+ * has to be cleared between them (which would not be safe when featurizing in
+ * parallel); entries for scopes that are done are evicted once the cache is full.
+ */
+class ScopedCache[K, V](val name: String, val scope: CacheScope.Value, defaultSize: Long) extends Serializable {
+
+	// registered with Caches on first use, and unregistered (and dropped) by clear
+	@transient @volatile private[this] var cache: BoundedCache[(AnyRef, K), AnyRef] = null
+
+	private def live: BoundedCache[(AnyRef, K), AnyRef] = {
+		val c = cache
+		if(c != null) c
+		else synchronized {
+			if(cache == null)
+				cache = Caches.create[(AnyRef, K), AnyRef]("pipe." + name + "@" + scope, defaultSize)
+			cache
+		}
+	}
+
+	def getOrElseUpdate(input: Any, key: K, compute: => V): V =
+		live.getOrElseUpdate((CacheScope.tag(scope, input), key), compute.asInstanceOf[AnyRef]).asInstanceOf[V]
+
+	/** drops every entry and takes this out of Caches.report until it is used again */
+	def clear {
+		synchronized {
+			if(cache != null) {
+				Caches.remove(cache)
+				cache = null
+			}
+		}
+	}
+
+	def stats: String = {
+		val c = cache
+		if(c == null) "%-24s unused".format("pipe." + name + "@" + scope)
+		else c.stats
+	}
+}
@@ -28,8 +28,8 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 	val quickly = true
 	val caseSensitive = false
 	
-	// TODO need to add a callback to flush these
-	val flushEveryAlignment = new ArrayBuffer[CachingPipe[_,_]]
+	// see cleanup
+	val cachingPipes = new ArrayBuffer[CachingPipe[_,_]]
 
 	// feature functions
 	val ff = new ArrayBuffer[Pipe[(Context, Alignment), DVec]]
@@ -103,10 +103,13 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 		}
 
 		// [*] dependency parse features
-		val depOnCM_allPairs = (canonicalMention >>= dependentTokens >>= allPairs[Token]).withCaching
-		val govCM_allPairs = (canonicalMention >>= governingTokens >>= allPairs[Token]).withCaching
-		//val flushEveryAlignment = Seq(depOnCM_allPairs, govCM_allPairs)
-		flushEveryAlignment ++= Seq(depOnCM_allPairs, govCM_allPairs)
+		// these only depend on the canonical mentions, which many alignments in a document pair share
+		val cmKey = (ca: (Context, Alignment)) => CanonicalMentionFinder.canonicalMentions(ca._2, ca._1)
+		val depOnCM_allPairs = (canonicalMention >>= dependentTokens >>= allPairs[Token])
+			.withCaching(CacheScope.PerDocumentPair, cmKey)
+		val govCM_allPairs = (canonicalMention >>= governingTokens >>= allPairs[Token])
+			.withCaching(CacheScope.PerDocumentPair, cmKey)
+		cachingPipes ++= Seq(depOnCM_allPairs, govCM_allPairs)
 		for(sim <- defaultLexicalSim) {
 			ff += (depOnCM_allPairs >>= lemma >>= lowercase >>= sim.pavg)
 			ff += (depOnCM_allPairs >>= lemma >>= lowercase >>= sim.pmax)
@@ -176,6 +179,13 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 		SimilarityImplementation.setup
 	}
 
+	override def cleanup {
+		cachingPipes.foreach(cp => {
+			log("[ConciseFeatures] " + cp)
+			cp.clear
+		})
+	}
+
 	// TODO remove linear search
 	// low priority because this doesn't happen in the feature computation loop
 	override def featureName(idx: Int): String = {
@@ -197,6 +207,15 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 	private[this] var callsToFeaturize = 0
 	private[this] val ffWidths = new ArrayBuffer[Int]
 
+	// ff merged on their shared prefixes (e.g. canonicalMention >>= headToken >>= lemma),
+	// so that each shared stage is computed once per alignment
+	@transient private[this] lazy val compiled = {
+		val dag = new PipeDAG(ff)
+		log("[ConciseFeatures] %d feature pipes share %d stages (%d if computed separately)"
+			.format(ff.size, dag.numStages, dag.numStagesUnmerged))
+		dag
+	}
+
 	override def featurize(sv: SVec, a: Alignment, report: Document, passage: Document) {
 
 		val debug = false
@@ -206,6 +225,7 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 		callsToFeaturize = callsToFeaturize + 1
 		//println("[concise] after callseToFeaturize = " + callsToFeaturize)
 		val context = new Context(report, passage)
+		val allValues = compiled((context, a))
 		var offset = 0
 	
 		if(debug) println("[concise featurize] start sv = " + Describe.svec(sv))
@@ -214,7 +234,7 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 
 			//if(debug) println("[concise] calling(%d) features(%d) = %s".format(callsToFeaturize, fIdx, f.name))
 			//val values = Profiler.time("CF:" + f.name, Unit => f(context, a))
-			val values = f(context, a)
+			val values = allValues(fIdx)
 
 			// check that the width of the returned features has not changed
 			if(callsToFeaturize == 1) {
@@ -235,16 +255,6 @@ class ConciseFeatures extends AlignmentSimilarity with Logging {
 			//	featureIndexer.addStable(f.name + "-" + vi._1, vi._2))
 		}
 		assert(ffWidths.size > 0)
-
-		// the main reason I added caching was for all-pairs stuff
-		// for just one alignment. If later you think you need to keep
-		// it for other stuff, then remove this, but otherwise i will
-		// flush after every alignment just to keep memory in check
-		flushEveryAlignment.foreach(cp => {
-			//println("\tclearing " + cp)
-			//println("\tafter " + Describe.alignment(a, report, passage))
-			cp.clear
-		})
 		if(debug) println("[concise featurize] end sv = " + Describe.svec(sv))
 	}
 }
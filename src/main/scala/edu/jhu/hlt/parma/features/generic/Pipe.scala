@@ -19,9 +19,27 @@ class Pipe[D, T](val name: String, val func: D => T) extends Serializable {
 
 	var debug = false	// used for printing details on how the function is computed
 
+	// for pipes made by binding, this(d) = stage(conversion(upstream(d)))
+	// (PipeDAG uses this to evaluate shared prefixes of many pipes once)
+	private[generic] var upstream: Pipe[D, _] = null
+	private[generic] var stage: Pipe[_, T] = null
+	private[generic] var conversion: Any => Any = null
+
+	private[generic] def bound[PT, R](newName: String, p: Pipe[PT, R], ev: T => PT, newFunc: D => R): Pipe[D, R] = {
+		val b = new Pipe(newName, newFunc)
+		b.upstream = this
+		b.stage = p
+		b.conversion = ev.asInstanceOf[Any => Any]
+		b
+	}
+
 	// D => T => PT => R
 	def bind[PT, R](p: Pipe[PT, R])(implicit ev: T => PT): Pipe[D, R] =
-		new Pipe(name + "-" + p.name, (d: D) => p(ev(this.apply(d))))
+		bound(name + "-" + p.name, p, ev, (d: D) => p(ev(this.apply(d))))
+
+	// like bind, but the new pipe is called newName
+	def bindAs[PT, R](newName: String, p: Pipe[PT, R])(implicit ev: T => PT): Pipe[D, R] =
+		bound(newName, p, ev, (d: D) => p(ev(this.apply(d))))
 	
 	def debugBind[PT, R](p: Pipe[PT, R])(implicit ev: T => PT): Pipe[D, R] = {
 		val newName = name + "-" + p.name
@@ -48,38 +66,36 @@ class Pipe[D, T](val name: String, val func: D => T) extends Serializable {
 			}
 			out
 		}
-		new Pipe(newName, newFunc)
+		bound(newName, p, ev, newFunc)
 	}
 	
 	def >>=[PT, R](p: Pipe[PT, R])(implicit ev: T => PT): Pipe[D, R] = debugBind(p)(ev)
 	
 	def apply(d: D): T = func(d)
 	
-	def withCaching: CachingPipe[D, T] = new CachingPipe(name, func)
+	def withCaching: CachingPipe[D, T] = withCaching(CacheScope.PerAlignment)
+
+	def withCaching(scope: CacheScope.Value): CachingPipe[D, T] = new CachingPipe(name, func, scope)
+
+	/**
+	 * key says which part of the input the value depends on, e.g. the canonical
+	 * mentions, so that alignments that share it can share the value
+	 */
+	def withCaching(scope: CacheScope.Value, key: D => Any): CachingPipe[D, T] =
+		new CachingPipe(name, func, scope, key)
 }
 
-class CachingPipe[A,B](name: String, func: A => B) extends Pipe(name, func) {
-	private val cache = new java.util.HashMap[A, B]	// i hear java hashmaps are faster!
-	private var (hits, misses) = (0, 0)
-	override def apply(a: A) = {
-		val b = cache.get(a)
-		if(b == null) {
-			misses += 1
-			val bb = func(a)
-			cache.put(a, bb)
-			bb
-		}
-		else {
-			hits += 1
-			b
-		}
-	}
-	override def toString = "(CachingPipe:%s %d memos, %d hits, %d misses)".format(name, cache.size, hits, misses)
-	def clear = {
-		hits = 0
-		misses = 0
-		cache.clear
-	}
+/**
+ * remembers func's values in a ScopedCache (see CacheScope)
+ */
+class CachingPipe[A,B](name: String, func: A => B,
+		val scope: CacheScope.Value = CacheScope.PerAlignment,
+		key: A => Any = (a: A) => a,
+		defaultSize: Long = 10000) extends Pipe(name, func) {
+	private[this] val cache = new ScopedCache[Any, B](name, scope, defaultSize)
+	override def apply(a: A) = cache.getOrElseUpdate(a, key(a), func(a))
+	override def toString = "(CachingPipe:%s)".format(cache.stats)
+	def clear = cache.clear
 }
 
 object GeneralPipeImplementations {
@@ -0,0 +1,87 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.features.generic
+
+import edu.jhu.hlt.parma.types.DVec
+import scala.collection.mutable.{ArrayBuffer, HashMap}
+
+/**
+ * evaluates many pipes on the same input, computing each stage they share once.
+ *
+ * a pipe made with >>= remembers the pipe it was bound to and the stage that
+ * was bound on, so chains like (canonicalMention >>= headToken >>= lemma >>= ...)
+ * can be merged into one tree of stages rooted at the input, with each output
+ * pipe at some node.  two stages are merged if they have the same parent,
+ * name and class, so pipes that compute different things must have different
+ * names (as they already should, for featureName).
+ * pipes that were not made by binding (e.g. Extracts, CachingPipes) are one stage,
+ * and a pipe bound on another bound pipe (sim.pavg) is split into its stages too.
+ */
+class PipeDAG[D, T](outputs: Seq[Pipe[D, T]]) {
+
+	private case class Key(parent: Int, name: String, cls: Class[_], conversion: Any => Any)
+
+	private[this] val index = new HashMap[Key, Int]
+	// node i computes stages(i)(conversions(i)(value of parents(i))),
+	// where parent -1 is the input; parents come before their children
+	private[this] val parents = new ArrayBuffer[Int]
+	private[this] val stages = new ArrayBuffer[Pipe[Any, Any]]
+	private[this] val conversions = new ArrayBuffer[Any => Any]
+	// outputDimension for Similarity stages, checked as in Pipe.debugBind
+	private[this] val simDims = new ArrayBuffer[Int]
+	private[this] var unmerged = 0
+
+	// the node computing p(conversion(value of node parent)); a stage that was
+	// itself made by binding (e.g. sim.pavg) is grafted on as its own chain, so
+	// its prefix (sim) is shared with other pipes that bind on it
+	private def node(p: Pipe[_, _], parent: Int, conversion: Any => Any): Int = {
+		if(p.upstream != null) {
+			val up = node(p.upstream, parent, conversion)
+			return node(p.stage, up, p.conversion match {
+				case _: <:<[_, _] => null	// identity
+				case c => c
+			})
+		}
+		unmerged += 1
+		index.getOrElseUpdate(Key(parent, p.name, p.getClass, conversion), {
+			parents += parent
+			stages += p.asInstanceOf[Pipe[Any, Any]]
+			conversions += conversion
+			simDims += (p match {
+				case sim: Similarity[_] => sim.outputDimension
+				case _ => -1
+			})
+			stages.size - 1
+		})
+	}
+
+	private[this] val outputNodes: Array[Int] = outputs.map(p => node(p, -1, null)).toArray
+
+	/** number of stages evaluated per input */
+	def numStages: Int = stages.size
+
+	/** number of stages that evaluating every output pipe on its own would take */
+	def numStagesUnmerged: Int = unmerged
+
+	/** the outputs of every pipe given to the constructor, in order */
+	def apply(d: D): IndexedSeq[T] = {
+		val n = stages.size
+		val values = new Array[Any](n)
+		var i = 0
+		while(i < n) {
+			val in = if(parents(i) < 0) d else values(parents(i))
+			val out = stages(i)(if(conversions(i) == null) in else conversions(i)(in))
+			if(simDims(i) >= 0) {
+				for(dv <- out.asInstanceOf[Seq[DVec]])
+					assert(dv.dimension == simDims(i), "out=%s p=%s".format(out, stages(i)))
+			}
+			values(i) = out
+			i += 1
+		}
+		outputNodes.map(values(_).asInstanceOf[T])
+	}
+}
@@ -32,40 +32,31 @@ class Similarity[D](name: String, val similarity: (Context, Pair[D]) => DVec, va
 		new Similarity(newName, newFunc, outputDimension)
 	}
 
-	def pmin = new Pipe[(Context, Seq[Pair[D]]), DVec](name + "pmin", (t: (Context, Seq[Pair[D]])) => {
-		val sdv = this.apply(t)
-		if(sdv.size < 1) {
-			//throw new RuntimeException("min not defined over empty sets: " + name)
-			// TODO switch to an agnostic value as in Binarizer
-			DVec.zero(outputDimension)
-		} else {
-			val m = sdv.head.copy
-			for(dv <- sdv.tail) m.minEquals(dv)
-			m
-		}
-	})
-	def pmax = new Pipe[(Context, Seq[Pair[D]]), DVec](name + "pmax", (t: (Context, Seq[Pair[D]])) => {
-		val sdv = this.apply(t)
-		if(sdv.size < 1) {
-			//throw new RuntimeException("max not defined over empty sets: " + name)
-			// TODO switch to an agnostic value as in Binarizer
-			DVec.zero(outputDimension)
-		} else {
-			val m = sdv.head.copy
-			for(dv <- sdv.tail) m.maxEquals(dv)
-			m
-		}
+	// bound to this so that PipeDAG computes the similarities once for all three
+	def pmin = bindAs(name + "pmin", Similarity.pmin(outputDimension))
+	def pmax = bindAs(name + "pmax", Similarity.pmax(outputDimension))
+	def pavg = bindAs(name + "pavg", Similarity.pavg(outputDimension))
+}
+
+object Similarity {
+
+	// pointwise min/max/average of a similarity's outputs, zero if there are none
+	// (the names include dim because it is the size of that zero)
+	def pmin(dim: Int) = pointwise("pmin", dim, (m, sdv) => for(dv <- sdv.tail) m.minEquals(dv))
+	def pmax(dim: Int) = pointwise("pmax", dim, (m, sdv) => for(dv <- sdv.tail) m.maxEquals(dv))
+	def pavg(dim: Int) = pointwise("pavg", dim, (m, sdv) => {
+		for(dv <- sdv.tail) m += dv
+		m *= (1d / sdv.size)
 	})
-	def pavg = new Pipe[(Context, Seq[Pair[D]]), DVec](name + "pavg", (t: (Context, Seq[Pair[D]])) => {
-		val sdv = this.apply(t)
+
+	private def pointwise(name: String, dim: Int, combine: (DVec, Seq[DVec]) => Unit) =
+			new Pipe[Seq[DVec], DVec](name + dim, (sdv: Seq[DVec]) => {
 		if(sdv.size < 1) {
-			//throw new RuntimeException("avg not defined over empty sets: " + name)
 			// TODO switch to an agnostic value as in Binarizer
-			DVec.zero(outputDimension)
+			DVec.zero(dim)
 		} else {
 			val m = sdv.head.copy
-			for(dv <- sdv.tail) m += dv
-			m *= (1d / sdv.size)
+			combine(m, sdv)
 			m
 		}
 	})
@@ -90,29 +81,17 @@ object SimilarityImplementation {
 	}
 	
 	val wikiRules = new Similarity[String]("wikirules", (c: Context, p: Pair[String]) => {
-		val lIntRules = WikiRuleStore.lhsMatches(p.left)
-		val rIntRules = WikiRuleStore.lhsMatches(p.right)
-		val lRules = WikiRuleStore.mergeRules(lIntRules)
-		val rRules = WikiRuleStore.mergeRules(rIntRules)
-
-		// for(rules <- List(int, string))
-		//     left in rules(right)
-		//     right in rules(left)
-		//     intersect rules(left) and rules(right)
 
 		// TODO
 		// don't forget about link types and counts!
 
-		val a = lRules.filter(_.rhs == p.right)
-		val b = rRules.filter(_.rhs == p.left)
-		val asymmetricStr = new DVec(a.size + b.size > 0,
-									a.size + b.size > 1,
-									a.size > 1 && b.size > 1)
-		
-		val intersectStrs = lRules.map(_.rhs).toSet & rRules.map(_.rhs).toSet
-		val symmetricStr = new DVec(intersectStrs.size > 0, intersectStrs.size > 1, intersectStrs.size > 2)
-		
-		asymmetricStr ++ symmetricStr
+		// rules left -> right and right -> left
+		val a = WikiRuleStore.countRules(p.left, p.right)
+		val b = WikiRuleStore.countRules(p.right, p.left)
+		// rhs terms that both left and right have rules to
+		val shared = WikiRuleStore.sharedRhs(p.left, p.right, 3)
+		new DVec(a + b > 0, a + b > 1, a > 1 && b > 1,
+				shared > 0, shared > 1, shared > 2)
 	}, 6)
 	
 	private val _wordnet = new WordNet
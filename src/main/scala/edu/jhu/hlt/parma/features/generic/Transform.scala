@@ -40,6 +40,12 @@ class Transform[A,B](name: String, val transform: (Document, A) => Seq[B])
 		}
 		new Transform(newName, newFunc)
 	}
+
+	/** remembers transform(d, a) for each document (or for every document, if scope is Global) */
+	def withCaching(scope: CacheScope.Value, defaultSize: Long): Transform[A, B] = {
+		val cache = new ScopedCache[A, Seq[B]](name, scope, defaultSize)
+		new Transform(name, (d: Document, a: A) => cache.getOrElseUpdate((d, a), a, transform(d, a)))
+	}
 }
 
 // TODO may want to pull out "filter" like transforms
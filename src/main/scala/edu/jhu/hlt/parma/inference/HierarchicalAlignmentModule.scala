@@ -91,6 +91,13 @@ class HierarchicalAlignmentModule
 	val useHinge = ParmaConfig.getBoolean("inference.ham.useHinge", true)
 	var l2Penalty = ParmaConfig.getDouble("inference.ham.L2penalty", 1d)
 	val learningRate = ParmaConfig.getDouble("inference.ham.learningRate", 1e-2)
+
+	// settings for the streaming (online) trainer, see trainOnline
+	val useOnline = ParmaConfig.getBoolean("inference.ham.online", false)
+	val onlineEpochs = ParmaConfig.getInt("inference.ham.online.epochs", 3)
+	val onlineL2Penalty = ParmaConfig.getDouble("inference.ham.online.L2penalty", 1e-4)
+	val onlineLearningRate = ParmaConfig.getDouble("inference.ham.online.learningRate", 0.1)
+	val onlineAdaGrad = ParmaConfig.getBoolean("inference.ham.online.adagrad", true)
 	val weights = DVec.rep(0d, 9999)	// TODO measure the size needed!
 	val seenInTraining = new java.util.BitSet		// TODO this will help avoid calling featureName on non-existent features
 	var hasPreTrained = false
@@ -153,8 +160,9 @@ class HierarchicalAlignmentModule
 		ps.close
 	}
 
-	def predict(sv: SVec): Double = {
-		val wx = VecOps.dot(weights, sv)
+	def predict(sv: SVec): Double = score(VecOps.dot(weights, sv))
+
+	private def score(wx: Double): Double = {
 		val extreme = 20d
 		if(wx < -extreme || wx > extreme)
 			warning("very extreme probability: " + wx)
@@ -231,6 +239,8 @@ class HierarchicalAlignmentModule
 		val n = apa.size
 		println("[HAM] computeFeatures 1, apa.size = " + n)
 		assert(n > 0)
+		for(ff <- this.features)
+			Profiler.time("prefetch:" + ff.name, Unit => ff.prefetch(apa, report, passage))
 		val alignments = Array.ofDim[Alignment](n)
 		val features = Array.ofDim[SVec](n)
 		val scores = Array.ofDim[Double](n)
@@ -263,6 +273,7 @@ class HierarchicalAlignmentModule
 			if(verbose) log("[HAM] calling setup on "+asf.name)
 			Profiler.time("setup:" + asf.name, Unit => asf.setup(examples))
 		})
+		featureIndexer.stopGrowth
 		
 		// calculate mean and variance for feature normalizer
 		if(shouldNormalize) {
@@ -273,121 +284,199 @@ class HierarchicalAlignmentModule
 
 	private def registerFeatures(examples: Seq[DocAlignmentWithFeatures[HAMFeatureRepresentation]]) {
 		for(e <- examples)
-			for(sv <- e.features.features)
-				sv.rawIndices.foreach(seenInTraining.set(_))
+			registerFeatures(e.features)
 	}
 
-	override def train(examples: Seq[DocAlignmentWithFeatures[HAMFeatureRepresentation]]) {
+	private def registerFeatures(fr: HAMFeatureRepresentation) {
+		for(sv <- fr.features) {
+			val indices = sv.getIndices
+			var i = 0
+			while(i < sv.getTop) {
+				seenInTraining.set(indices(i))
+				i += 1
+			}
+		}
+	}
+
+	private def logHashingStats {
+		for(ff <- features; stats <- ff.hashingStats)
+			log("[HAM train] feature hashing for %s: %s".format(ff.name, stats))
+	}
 
+	/**
+	 * streaming alternative to train: AdaGrad/SGD on one document pair at a time,
+	 * so the training set never needs to be in memory all at once.
+	 * newPass is called once per epoch and should return a fresh iterator
+	 * (e.g. re-reading featurized document pairs from disk).
+	 */
+	def trainOnline(newPass: () => Iterator[HAMFeatureRepresentation], epochs: Int = onlineEpochs) {
 		assert(hasPreTrained, "you need to call preTrainCalibrate before you can do this")
+		val learner = new OnlineLearner(weights, useHinge, onlineL2Penalty, onlineLearningRate, onlineAdaGrad)
+		for(epoch <- 1 to epochs) {
+			Profiler.time("train-online", Unit => {
+				var docPairs = 0
+				for(fr <- newPass()) {
+					if(epoch == 1)
+						registerFeatures(fr)
+					learner.update(fr)
+					docPairs += 1
+				}
+				learner.report("[HAM trainOnline] epoch=%d docPairs=%d".format(epoch, docPairs))
+			})
+		}
+		learner.flush
+		logHashingStats
+		hasTrained = true
+	}
 
-		registerFeatures(examples)
+	/**
+	 * computes features as it goes and throws them away after each update,
+	 * so memory is independent of the number of document pairs
+	 * (features are re-computed on every epoch)
+	 */
+	def trainOnlineFromAlignments(newPass: () => Iterator[DocAlignment], epochs: Int = onlineEpochs) {
+		trainOnline(() => newPass().map(da => computeFeatures(da).features), epochs)
+	}
 
-		val func = new Optimizable.ByGradientValue {
-			private[this] var valueDirty = true
-			private[this] var valueCache = 0d
-			private[this] var gradientDirty = true
-			private[this] var gradientCache = Array.ofDim[Double](weights.dimension)
-			def partialValue(dawf: DocAlignmentWithFeatures[HAMFeatureRepresentation]): Double = {
-				val fr = dawf.features
-				val labels = fr.labels.get
-				var loss = 0d
-				var aIdx = 0
-				val nAlignments = fr.size
-				while(aIdx < nAlignments) {
+	override def train(examples: Seq[DocAlignmentWithFeatures[HAMFeatureRepresentation]]) {
 
-					val wx = VecOps.dot(weights, fr.features(aIdx))
-					val coef = if(labels.get(aIdx)) 1d else -1d
+		assert(hasPreTrained, "you need to call preTrainCalibrate before you can do this")
+
+		if(useOnline) {
+			trainOnline(() => examples.iterator.map(_.features))
+			return
+		}
 
-					if(useHinge)
-						loss = loss + math.max(1d - coef * wx, 0d)
-					else
-						loss = loss + java.lang.Math.log1p( java.lang.Math.exp( coef * -wx ) )
+		registerFeatures(examples)
+		logHashingStats
 
-					aIdx = aIdx + 1
+		val func = new Objective {
+			override def loss: Double = {
+				var loss = 0d
+				for(dawf <- examples) {
+					val fr = dawf.features
+					val labels = fr.labels.get
+					var aIdx = 0
+					val nAlignments = fr.size
+					while(aIdx < nAlignments) {
+						loss = loss + lossOf(VecOps.dot(weights, fr.features(aIdx)), labels.get(aIdx))
+						aIdx = aIdx + 1
+					}
 				}
-				- loss
-			}
-			def regularizerValue: Double = {
-				val l2 = weights.l2
-				- l2 * l2 * l2Penalty / 2d
+				loss
 			}
-			def partialGradient(dawf: DocAlignmentWithFeatures[HAMFeatureRepresentation], gradBuf: Array[Double]) {
-				val fr = dawf.features
-				val labels = fr.labels.get
-				var aIdx = 0
-				val nAlignments = fr.size
-				while(aIdx < nAlignments) {
-					val x = fr.features(aIdx)
-					val wx = VecOps.dot(weights, x)
-
-					if(useHinge) {
-						val coef = if(labels.get(aIdx)) 1d else -1d
-						if(wx * coef < 1d)
+			override def addGradient(gradBuf: Array[Double]) {
+				for(dawf <- examples) {
+					val fr = dawf.features
+					val labels = fr.labels.get
+					var aIdx = 0
+					val nAlignments = fr.size
+					while(aIdx < nAlignments) {
+						val x = fr.features(aIdx)
+						val coef = gradCoef(VecOps.dot(weights, x), labels.get(aIdx))
+						if(coef != 0d)
 							VecOps.addWithScale(x, gradBuf, coef)
-					} else {
-						val p = 1d / (1d + java.lang.Math.exp( -wx ))
-						assert(!java.lang.Double.isInfinite(p) && p > 0d && p < 1d, "wx=%.3g p=%.6f".format(wx, p))
-						val coef = (if(labels.get(aIdx)) 1d else 0d) - p	// actual - expected
-						VecOps.addWithScale(x, gradBuf, coef)
+						aIdx = aIdx + 1
 					}
-
-					aIdx = aIdx + 1
-				}
-			}
-			def regularizerGradient(gradBuf: Array[Double]) {
-				var i = 0
-				val n = gradBuf.length
-				assert(n == weights.dimension)
-				while(i < n) {
-					gradBuf(i) = gradBuf(i) - weights(i) * l2Penalty
-					i = i + 1
-				}
-			}
-			override def getValue: Double = {
-				if(valueDirty) {
-					val value = examples.map(partialValue).sum
-					val reg = regularizerValue
-					println("[HAM train] getValue() called, value = " + value + ", reg = " + reg + ", total = " + (value + reg))
-					valueCache = value + reg
-					valueDirty = false
 				}
-				valueCache
 			}
-			override def getValueGradient(buf: Array[Double]) {
-				if(gradientDirty) {
-					assert(gradientCache.length == buf.length)
-					java.util.Arrays.fill(gradientCache, 0d)
-					examples.foreach(dawf => partialGradient(dawf, gradientCache))
-					val grad = new DVec(gradientCache)
-					grad.scale(1d / examples.size)
-					regularizerGradient(gradientCache)
-					if(learningRate != 1d)
-						grad.scale(learningRate)
-					assert(learningRate != 0d)
-					println("[HAM train] getValueGradient() called, learningRate=%.2g grad.l1=%.1f grad.l2=%.1f"
-						.format(learningRate, grad.l1, grad.l2))
-					gradientDirty = false
-				}
-				java.lang.System.arraycopy(gradientCache, 0, buf, 0, gradientCache.length)
+			override def numExamples: Int = examples.size
+		}
+		runLBFGS(func)
+		hasTrained = true
+	}
+
+
+	/**
+	 * L-BFGS objective (log-likelihood or negative hinge loss, minus L2),
+	 * subclasses say how to iterate over the training data
+	 */
+	private abstract class Objective extends Optimizable.ByGradientValue {
+		private[this] var valueDirty = true
+		private[this] var valueCache = 0d
+		private[this] var gradientDirty = true
+		private[this] var gradientCache = Array.ofDim[Double](weights.dimension)
+
+		/** sum of the loss over every alignment */
+		def loss: Double
+		/** gradBuf += sum of gradCoef * x over every alignment x */
+		def addGradient(gradBuf: Array[Double])
+		/** number of document pairs */
+		def numExamples: Int
+
+		def lossOf(wx: Double, label: Boolean): Double = {
+			val coef = if(label) 1d else -1d
+			if(useHinge) math.max(1d - coef * wx, 0d)
+			else java.lang.Math.log1p( java.lang.Math.exp( coef * -wx ) )
+		}
+		def gradCoef(wx: Double, label: Boolean): Double = {
+			if(useHinge) {
+				val coef = if(label) 1d else -1d
+				if(wx * coef < 1d) coef else 0d
+			} else {
+				val p = 1d / (1d + java.lang.Math.exp( -wx ))
+				assert(!java.lang.Double.isInfinite(p) && p > 0d && p < 1d, "wx=%.3g p=%.6f".format(wx, p))
+				(if(label) 1d else 0d) - p	// actual - expected
 			}
-			override def getNumParameters: Int = weights.dimension
-			override def getParameter(idx: Int): Double = weights(idx)
-			override def getParameters(buf: Array[Double]) {
-				weights.copyTo(buf)
+		}
+		def regularizerValue: Double = {
+			val l2 = weights.l2
+			- l2 * l2 * l2Penalty / 2d
+		}
+		def regularizerGradient(gradBuf: Array[Double]) {
+			var i = 0
+			val n = gradBuf.length
+			assert(n == weights.dimension)
+			while(i < n) {
+				gradBuf(i) = gradBuf(i) - weights(i) * l2Penalty
+				i = i + 1
 			}
-			override def setParameter(idx: Int, value: Double) {
-				valueDirty = true
-				gradientDirty = true
-				weights(idx) = value
+		}
+		override def getValue: Double = {
+			if(valueDirty) {
+				val value = -loss
+				val reg = regularizerValue
+				println("[HAM train] getValue() called, value = " + value + ", reg = " + reg + ", total = " + (value + reg))
+				valueCache = value + reg
+				valueDirty = false
 			}
-			override def setParameters(buf: Array[Double]) {
-				valueDirty = true
-				gradientDirty = true
-				weights.setBacking(buf)
+			valueCache
+		}
+		override def getValueGradient(buf: Array[Double]) {
+			if(gradientDirty) {
+				assert(gradientCache.length == buf.length)
+				java.util.Arrays.fill(gradientCache, 0d)
+				addGradient(gradientCache)
+				val grad = new DVec(gradientCache)
+				grad.scale(1d / numExamples)
+				regularizerGradient(gradientCache)
+				if(learningRate != 1d)
+					grad.scale(learningRate)
+				assert(learningRate != 0d)
+				println("[HAM train] getValueGradient() called, learningRate=%.2g grad.l1=%.1f grad.l2=%.1f"
+					.format(learningRate, grad.l1, grad.l2))
+				gradientDirty = false
 			}
+			java.lang.System.arraycopy(gradientCache, 0, buf, 0, gradientCache.length)
 		}
-		
+		override def getNumParameters: Int = weights.dimension
+		override def getParameter(idx: Int): Double = weights(idx)
+		override def getParameters(buf: Array[Double]) {
+			weights.copyTo(buf)
+		}
+		override def setParameter(idx: Int, value: Double) {
+			valueDirty = true
+			gradientDirty = true
+			weights(idx) = value
+		}
+		override def setParameters(buf: Array[Double]) {
+			valueDirty = true
+			gradientDirty = true
+			weights.setBacking(buf)
+		}
+	}
+
+	private def runLBFGS(func: Optimizable.ByGradientValue) {
 		Profiler.time("train-lbfgs", Unit => {
 			val lbfgs = new LimitedMemoryBFGS(func)
 			lbfgs.setTolerance(1e-9)
@@ -401,9 +490,154 @@ class HierarchicalAlignmentModule
 					println("OHNOz!! LBFGS CAN NOT CONVERGE!!")
 			}
 		})
+	}
+
+	/**
+	 * same as train, but reads features straight out of a memory-mapped
+	 * FeatureMatrix (see writeFeatureMatrix) instead of SVecs on the heap
+	 */
+	def train(matrix: FeatureMatrix) {
+		assert(hasPreTrained, "you need to call preTrainCalibrate before you can do this")
+		if(useOnline) trainOnline(matrix, onlineEpochs)
+		else {
+			registerFeatures(matrix)
+			logHashingStats
+			val func = new Objective {
+				override def loss: Double = {
+					val w = weights.getArray
+					var loss = 0d
+					var row = 0L
+					while(row < matrix.numRows) {
+						loss = loss + lossOf(matrix.dot(row, w), matrix.label(row))
+						row = row + 1
+					}
+					loss
+				}
+				override def addGradient(gradBuf: Array[Double]) {
+					val w = weights.getArray
+					var row = 0L
+					while(row < matrix.numRows) {
+						val coef = gradCoef(matrix.dot(row, w), matrix.label(row))
+						if(coef != 0d)
+							matrix.addRowTo(row, gradBuf, coef)
+						row = row + 1
+					}
+				}
+				override def numExamples: Int = matrix.numDocPairs.toInt
+			}
+			runLBFGS(func)
+		}
 		hasTrained = true
 	}
 
+	private def registerFeatures(matrix: FeatureMatrix) {
+		var k = 0L
+		while(k < matrix.nnz) {
+			seenInTraining.set(matrix.index(k))
+			k += 1
+		}
+	}
+
+	def trainOnline(matrix: FeatureMatrix, epochs: Int) {
+		assert(hasPreTrained, "you need to call preTrainCalibrate before you can do this")
+		registerFeatures(matrix)
+		logHashingStats
+		val learner = new OnlineLearner(weights, useHinge, onlineL2Penalty, onlineLearningRate, onlineAdaGrad)
+		val idxBuf = Array.ofDim[Int](matrix.maxRowNnz)
+		val valBuf = Array.ofDim[Double](matrix.maxRowNnz)
+		for(epoch <- 1 to epochs) {
+			Profiler.time("train-online", Unit => {
+				var row = 0L
+				while(row < matrix.numRows) {
+					val n = matrix.copyRow(row, idxBuf, valBuf)
+					learner.update(idxBuf, valBuf, 0, n, matrix.label(row))
+					row += 1
+				}
+				learner.report("[HAM trainOnline] epoch=%d %s".format(epoch, matrix))
+			})
+		}
+		learner.flush
+		hasTrained = true
+	}
+
+	/**
+	 * computes features for one document pair at a time and streams them
+	 * to disk, so the featurized corpus never has to fit in memory.
+	 * the order of examples is the order of document pairs in the matrix.
+	 */
+	def writeFeatureMatrix(f: File, examples: Iterator[DocAlignment]): FeatureMatrix = {
+		assert(hasPreTrained, "you need to call preTrainCalibrate before you can do this")
+		val w = new FeatureMatrixWriter(f)
+		for(da <- examples) {
+			val fr = computeFeatures(da).features
+			w.addDocPair(fr.features, fr.labels.get)
+		}
+		w.close
+		new FeatureMatrix(f)
+	}
+
+	/**
+	 * align the d-th document pair in a FeatureMatrix.
+	 * report and passage must be the documents the row was computed from.
+	 */
+	def align(matrix: FeatureMatrix, d: Int, report: Document, passage: Document, thresh: Double): DocAlignment = {
+		val apa = DocMetaAligner.allPossibleAlignments(report, passage)
+		if(apa.size != matrix.docSize(d)) {
+			throw new RuntimeException("document pair %d has %d rows but %d possible alignments"
+				.format(d, matrix.docSize(d), apa.size))
+		}
+		val start = matrix.docStart(d)
+		val w = weights.getArray
+		val alignments = new ArrayBuffer[Alignment]
+		for((a, i) <- apa.zipWithIndex) {
+			if(score(matrix.dot(start + i, w)) >= thresh)
+				alignments += a
+		}
+		makeDocAlignment(report, passage, alignments)
+	}
+
+	def align(matrix: FeatureMatrix, d: Int, report: Document, passage: Document): DocAlignment =
+		align(matrix, d, report, passage, threshold)
+
+	/**
+	 * tune the threshold on document pairs in a FeatureMatrix,
+	 * gold(d) is the gold alignment for the d-th document pair
+	 */
+	def postTrainCalibrate(matrix: FeatureMatrix, gold: IndexedSeq[DocAlignment],
+			loss: LossFunction, thresholdsToTry: Seq[Double]) {
+		assert(hasPreTrained, "you need to call preTrainCalibrate before you can do this")
+		assert(gold.size == matrix.numDocPairs)
+		log("calculating losses for %d parameter settings...".format(thresholdsToTry.size))
+		// score every row once (per document pair, rows are indexed by a long),
+		// then sweep thresholds over the scores
+		val w = weights.getArray
+		val apas = gold.map(da => DocMetaAligner.allPossibleAlignments(da.report, da.passage))
+		val scores = gold.indices.map(d => {
+			if(apas(d).size != matrix.docSize(d)) {
+				throw new RuntimeException("document pair %d has %d rows but %d possible alignments"
+					.format(d, matrix.docSize(d), apas(d).size))
+			}
+			val start = matrix.docStart(d)
+			Array.tabulate(apas(d).size)(i => score(matrix.dot(start + i, w)))
+		})
+		val losses = thresholdsToTry.map(t => {
+			val instances = gold.indices.map(d => {
+				val alignments = new ArrayBuffer[Alignment]
+				for((a, i) <- apas(d).zipWithIndex)
+					if(scores(d)(i) >= t) alignments += a
+				val hyp = makeDocAlignment(gold(d).report, gold(d).passage, alignments)
+				new Instance(hyp, gold(d))
+			})
+			(t, loss(instances))
+		})
+		val best = losses.minBy(_._2)._1
+		log("after tuning on dev set: threshold %.2f => %.2f".format(threshold, best))
+		threshold = best
+	}
+
+	def postTrainCalibrate(matrix: FeatureMatrix, gold: IndexedSeq[DocAlignment], loss: LossFunction) {
+		postTrainCalibrate(matrix, gold, loss, defaultThresholds)
+	}
 
 	// TODO move this out to a trait in edu.jhu.hlt.parma.evaluation
 	type LossFunction = (Seq[Instance[DocAlignment]]) => Double	// (hypothesis, gold) => loss
@@ -438,11 +672,12 @@ class HierarchicalAlignmentModule
 	}
 	
 	override def postTrainCalibrate(examples: Seq[DocAlignmentWithFeatures[HAMFeatureRepresentation]], loss: Seq[Instance[DocAlignment]] => Double) {
-		val thresholds =
-			if(useHinge) (-3d to 2d by 0.07d)
-			else (0.01 to 0.99 by 0.04)
-		postTrainCalibrate(examples, loss, thresholds)
+		postTrainCalibrate(examples, loss, defaultThresholds)
 	}
+
+	private def defaultThresholds: Seq[Double] =
+		if(useHinge) (-3d to 2d by 0.07d)
+		else (0.01 to 0.99 by 0.04)
 	
 	
 	override def align(daf: HAMFeatureRepresentation): DocAlignment = align(daf, threshold)
@@ -467,13 +702,17 @@ class HierarchicalAlignmentModule
 		// update this feature representation's scores
 		fr.scores = Some(scores)
 
-		val id = "r%s_p%s".format(fr.report.id, fr.passage.id)
+		makeDocAlignment(fr.report, fr.passage, alignments)
+	}
+
+	private def makeDocAlignment(report: Document, passage: Document, alignments: Seq[Alignment]): DocAlignment = {
+		val id = "r%s_p%s".format(report.id, passage.id)
 		val domain = Some("HAM")
-		val da = new DocAlignment(id, domain, fr.report, fr.passage, alignments.toSet, Set())
+		val da = new DocAlignment(id, domain, report, passage, alignments.toSet, Set())
 		assert(da.exactlyPossibleAlignments.size == 0)
 		GeneralDiagnostics.checkDocAlignment(da)
 		da
-	}	
+	}
 
 	// for trait AlignmentScorer in TurkerScorer
 	override def score(a: Alignment, report: Document, passage: Document, domain: Option[String]): Double =
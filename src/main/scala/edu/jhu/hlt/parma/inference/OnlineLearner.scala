@@ -0,0 +1,139 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.inference
+
+import edu.jhu.hlt.parma.types._
+import edu.jhu.hlt.parma.util._
+
+/**
+ * online (one example at a time) learner for a linear model with
+ * hinge or logistic loss and L2 regularization.
+ *
+ * only the weight vector and per-feature AdaGrad state are kept around,
+ * so memory does not depend on how many examples you stream through.
+ *
+ * L2 is applied lazily: a weight is only shrunk when its feature fires
+ * (catching up on every step it missed), so an update costs O(nnz(x))
+ * rather than O(dimension). call flush before reading weights.
+ *
+ * with adagrad=false this is plain SGD with a constant learning rate.
+ */
+class OnlineLearner(
+		val weights: DVec,
+		val useHinge: Boolean,
+		val l2Penalty: Double,		// per-example, not per-corpus like HAM's L2 penalty
+		val learningRate: Double,
+		val adagrad: Boolean = true)
+		extends Logging {
+
+	private[this] val w = weights.getArray
+	private[this] val sumSqGrad = Array.ofDim[Double](w.length)
+	private[this] val lastStep = Array.ofDim[Int](w.length)
+	private[this] var step = 0
+
+	var examplesSeen = 0L
+	var lossSinceReport = 0d
+	var examplesSinceReport = 0L
+
+	private def rate(i: Int): Double = {
+		if(!adagrad) learningRate
+		else if(sumSqGrad(i) == 0d) learningRate
+		else learningRate / math.sqrt(sumSqGrad(i))
+	}
+
+	/** apply the L2 shrinkage that feature i missed while it wasn't firing */
+	private def catchUp(i: Int) {
+		val missed = step - lastStep(i)
+		if(missed > 0 && l2Penalty > 0d && w(i) != 0d) {
+			val shrink = 1d - rate(i) * l2Penalty
+			w(i) *= (if(shrink <= 0d) 0d else math.pow(shrink, missed))
+		}
+		lastStep(i) = step
+	}
+
+	def score(indices: Array[Int], values: Array[Double], from: Int, until: Int): Double = {
+		var wx = 0d
+		var k = from
+		while(k < until) {
+			val i = indices(k)
+			catchUp(i)
+			wx += w(i) * values(k)
+			k += 1
+		}
+		wx
+	}
+
+	/**
+	 * one stochastic gradient step on the example x = (indices, values)[from, until)
+	 * returns the loss on this example before the update
+	 */
+	def update(indices: Array[Int], values: Array[Double], from: Int, until: Int, label: Boolean): Double = {
+		val wx = score(indices, values, from, until)
+		val (loss, dLoss) =
+			if(useHinge) {
+				val y = if(label) 1d else -1d
+				if(y * wx < 1d) (1d - y * wx, -y)
+				else (0d, 0d)
+			} else {
+				val p = 1d / (1d + java.lang.Math.exp(-wx))
+				val y = if(label) 1d else 0d
+				val l = if(label) java.lang.Math.log1p(java.lang.Math.exp(-wx))
+					else java.lang.Math.log1p(java.lang.Math.exp(wx))
+				(l, p - y)
+			}
+		if(dLoss != 0d) {
+			var k = from
+			while(k < until) {
+				val i = indices(k)
+				val g = dLoss * values(k)
+				if(adagrad) sumSqGrad(i) += g * g
+				w(i) -= rate(i) * g
+				k += 1
+			}
+		}
+		step += 1
+		examplesSeen += 1
+		lossSinceReport += loss
+		examplesSinceReport += 1
+		loss
+	}
+
+	def update(x: SVec, label: Boolean): Double =
+		update(x.getIndices, x.getValues, 0, x.getTop, label)
+
+	/**
+	 * one pass over every alignment in a document pair
+	 */
+	def update(fr: HAMFeatureRepresentation) {
+		val labels = fr.labels.getOrElse(throw new RuntimeException("need labels to train"))
+		var i = 0
+		val n = fr.size
+		while(i < n) {
+			update(fr.features(i), labels.get(i))
+			i += 1
+		}
+	}
+
+	/**
+	 * bring every weight up to date w.r.t. lazy L2,
+	 * call this before reading weights
+	 */
+	def flush {
+		var i = 0
+		while(i < w.length) {
+			catchUp(i)
+			i += 1
+		}
+	}
+
+	def report(prefix: String) {
+		val avg = if(examplesSinceReport == 0) 0d else lossSinceReport / examplesSinceReport
+		log("%s examplesSeen=%d avgLoss=%.4f".format(prefix, examplesSeen, avg))
+		lossSinceReport = 0d
+		examplesSinceReport = 0
+	}
+}
@@ -9,6 +9,7 @@ package edu.jhu.hlt.parma.inference.topics
 import scala.collection.immutable
 import scala.collection.mutable
 
+import edu.jhu.hlt.parma.util.Alphabet
 import java.io._
 
 class Document(doc: Map[Int,Int]) {
@@ -36,50 +37,65 @@ class Document(doc: Map[Int,Int]) {
 }
 
 object Document {
-  var wordMap : immutable.Map[String,Int] = Map.empty
-  var keyMap : immutable.Map[Int,String] = Map.empty
+
+  // word <=> index, safe to grow from many threads (e.g. featurizing in
+  // parallel).  after freezeVocab lookups go through Alphabet's read-only
+  // open-addressing table and unseen words are dropped from documents.
+  @volatile private var vocab = new Alphabet[String]
+
+  def vocabulary: Alphabet[String] = vocab
+
+  def resetVocab {
+    vocab = new Alphabet[String]
+  }
+
+  def freezeVocab {
+    vocab.stopGrowth
+  }
 
   def hasIndex(w: String) = {
-    wordMap contains w
+    vocab contains w
   }
 
   def getIndex(w: String) : Int = {
-    if(wordMap contains w) {
-      wordMap(w)
-    } else {
-      val key = wordMap.keys.size
-      wordMap += (w -> key)
-      keyMap  += (key -> w)
-      key
-    }
+    vocab.lookupIndex(w, addIfNotPresent = true)
   }
 
   def getWord(i: Int) : String = {
-    keyMap(i)
+    vocab.lookupObject(i)
   }
 
   def writeWordMap(filename: String) {
     val fw = new FileWriter(filename)
-    for((key,value) <- wordMap) {
-      fw.write(key + "\t" + value + "\n")
+    val words = vocab.keys
+    var i = 0
+    while(i < words.size) {
+      fw.write(words(i) + "\t" + i + "\n")
+      i += 1
     }
     fw.close
   }
 
+  // indices in the file must be 0 until (number of words), in any order
   def readWordMap(filename: String) {
+    val entries = mutable.ArrayBuffer[(String, Int)]()
     for( ln <- io.Source.fromFile(filename).getLines.map(_.trim) ) {
       val tokens = ln.split("\t")
       if(tokens.size != 2) {
         println("malformed line: " + ln)
       }
-      wordMap += tokens(0) -> tokens(1).toInt
-      keyMap  += tokens(1).toInt -> tokens(0)
+      else entries += tokens(0) -> tokens(1).toInt
+    }
+    val v = new Alphabet[String]
+    for((w, i) <- entries.sortBy(_._2)) {
+      if(v.lookupIndex(w, addIfNotPresent = true) != i)
+        throw new RuntimeException("word indices in %s are not 0 until %d: %s -> %d".format(filename, entries.size, w, i))
     }
+    vocab = v
   }
 
-
   def getVocabSize() : Int = {
-    wordMap.size
+    vocab.size
   }
 
   def splitLine(line: String) : Array[String] = {
@@ -97,12 +113,23 @@ object Document {
     list
   }
 
-  def fromRawString(s: String) = {
+  def tokenize(s: String) = {
     val lines = s.split("\n")
-    val words = normalizeAndFilter(lines.flatMap(splitLine(_)))
+    normalizeAndFilter(lines.flatMap(splitLine(_)))
+  }
+
+  def fromRawString(s: String) = {
+    fromWords(tokenize(s))
+  }
+
+  // once the vocabulary is frozen, words that are not in it are skipped
+  def fromWords(words: Seq[String]) = {
+    val v = vocab
+    val frozen = v.isGrowthStopped
     var accum = mutable.Map[Int, Int]().withDefault(x=>0)
     for(w <- words) {
-      accum(Document.getIndex(w)) += 1
+      if(!frozen) accum(v.lookupIndex(w, addIfNotPresent = true)) += 1
+      else if(v contains w) accum(v.lookupIndex(w)) += 1
     }
     var counts = immutable.Map[Int, Int]()
     for((key,value) <- accum) {
@@ -0,0 +1,99 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.inference.topics
+
+import java.io._
+import java.util.concurrent.{Callable, ExecutionException, Executors, Future}
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * a corpus that LDATrainer can read as many times as it needs to
+ * (once per EM iteration), a chunk of documents at a time.
+ * every pass must give the same documents in the same order.
+ */
+trait DocumentSource {
+
+  def foreachChunk(f: IndexedSeq[Document] => Unit)
+
+  // the first n documents (or all of them, if there are fewer)
+  def take(n: Int) : IndexedSeq[Document]
+}
+
+class DocumentBuffer(docs: IndexedSeq[Document], chunkSize: Int = 1024) extends DocumentSource {
+
+  def foreachChunk(f: IndexedSeq[Document] => Unit) {
+    var start = 0
+    while(start < docs.size) {
+      f(docs.slice(start, math.min(docs.size, start + chunkSize)))
+      start += chunkSize
+    }
+  }
+
+  def take(n: Int) = docs.take(n)
+}
+
+/**
+ * raw text files under a directory (see DirectoryIterator and
+ * Document.fromRawFile), read from disk on every pass so that only
+ * chunkSize documents are in memory at a time.
+ *
+ * the files in a chunk are tokenized on several threads, but their words
+ * are looked up in Document's vocabulary in file order, so word indices
+ * come out the same as reading the files one at a time.
+ * call buildVocab before making an LDATrainer, which needs the vocab size.
+ */
+class DirectoryDocuments(dir: File, chunkSize: Int = 1024,
+    numThreads: Int = Runtime.getRuntime.availableProcessors) extends DocumentSource {
+
+  val files : Array[File] = new DirectoryIterator(dir).filter(_.isFile).toList.sorted.toArray
+
+  def size = files.length
+
+  // one pass over the corpus to add every word to the vocabulary,
+  // which is then frozen; returns the vocab size
+  def buildVocab : Int = {
+    foreachChunk(chunk => ())
+    Document.freezeVocab
+    Document.getVocabSize
+  }
+
+  def foreachChunk(f: IndexedSeq[Document] => Unit) {
+    read(files.length, f)
+  }
+
+  def take(n: Int) = {
+    val docs = new ArrayBuffer[Document]
+    read(n, chunk => docs ++= chunk)
+    docs
+  }
+
+  private def read(n: Int, f: IndexedSeq[Document] => Unit) {
+    val end = math.min(n, files.length)
+    val pool = Executors.newFixedThreadPool(math.max(1, numThreads))
+    try {
+      var start = 0
+      while(start < end) {
+        val jobs : Array[Future[Seq[String]]] = files.slice(start, math.min(end, start + chunkSize)).map(file =>
+          pool.submit(new Callable[Seq[String]] {
+            def call = {
+              val source = scala.io.Source.fromFile(file)
+              try { Document.tokenize(source.mkString) }
+              finally { source.close }
+            }
+          }))
+        val chunk = jobs.map(j => {
+          try { Document.fromWords(j.get) }
+          catch { case e: ExecutionException => throw new RuntimeException(e.getCause) }
+        })
+        f(chunk)
+        start += chunkSize
+      }
+    } finally {
+      pool.shutdown
+    }
+  }
+}
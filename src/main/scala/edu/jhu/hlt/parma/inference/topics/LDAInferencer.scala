@@ -6,31 +6,88 @@
 
 package edu.jhu.hlt.parma.inference.topics
 
+import edu.jhu.hlt.parma.math.Functions
 import org.apache.commons.math3.special.Gamma
 
+/**
+ * scratch space for LDAInferencer.infer, so inference does not allocate.
+ * phi is flat: phi(n * numTopics + k), and grows to the longest document.
+ * digamma(k) is kept equal to digamma(var_gamma(k)) during inference.
+ */
+class LDAWorkspace(val numTopics: Int) {
+  var phi = new Array[Double](0)
+  val oldPhi  = new Array[Double](numTopics)
+  val digamma = new Array[Double](numTopics)
+
+  def ensure(length: Int) {
+    if(length * numTopics > phi.length)
+      phi = new Array[Double](length * numTopics)
+  }
+}
+
+// the serialVersionUID is the one computed for the original class, so that
+// saved models (lda.model) still load
+@SerialVersionUID(8684561176157720842L)
 class LDAInferencer(_converged: Double, max_iter: Int) extends Serializable {
 
   val VAR_CONVERGED = _converged
   var VAR_MAX_ITER  = max_iter
 
+  // compute the likelihood (and check for convergence) only every this many
+  // iterations; not saved with the model
+  @transient private var checkEvery = 1
+
+  @transient private lazy val workspaces = new ThreadLocal[LDAWorkspace]
+
+  def setCheckEvery(n: Int) {
+    checkEvery = n
+  }
+
+  def getCheckEvery: Int = Math.max(1, checkEvery)
+
+  // this thread's workspace
+  def workspace(numTopics: Int) : LDAWorkspace = {
+    var ws = workspaces.get
+    if(ws == null || ws.numTopics != numTopics) {
+      ws = new LDAWorkspace(numTopics)
+      workspaces.set(ws)
+    }
+    ws
+  }
+
+  def infer(doc: Document, model: LDA, var_gamma: Array[Double]) : Double =
+    infer(doc, model, var_gamma, workspace(model.num_topics))
+
   def infer(doc: Document, model: LDA, var_gamma: Array[Double], phi: Array[Array[Double]]) : Double = {
-    
-    val old_phi     = Array.ofDim[Double](model.num_topics)
-    val digamma_gam = Array.ofDim[Double](model.num_topics)
+    val ws = workspace(model.num_topics)
+    val likelihood = infer(doc, model, var_gamma, ws)
+    var n = 0
+    while(n < doc.length) {
+      System.arraycopy(ws.phi, n * model.num_topics, phi(n), 0, model.num_topics)
+      n += 1
+    }
+    likelihood
+  }
+
+  // on return ws.phi holds the variational multinomials for doc
+  def infer(doc: Document, model: LDA, var_gamma: Array[Double], ws: LDAWorkspace) : Double = {
+
+    val K = model.num_topics
+    ws.ensure(doc.length)
+    val phi         = ws.phi
+    val old_phi     = ws.oldPhi
+    val digamma_gam = ws.digamma
 
     // compute posterior Dirichlet
     var k = 0
-    while(k < model.num_topics) {
-      var_gamma(k) = model.alpha + (doc.total.toDouble / model.num_topics)
-      digamma_gam(k) = Gamma.digamma(var_gamma(k))
-      var n = 0
-      while(n < doc.length) {
-        phi(n)(k) = 1.0 / model.num_topics
-        n += 1
-      }
+    while(k < K) {
+      var_gamma(k) = model.alpha + (doc.total.toDouble / K)
+      digamma_gam(k) = Functions.digamma(var_gamma(k))
       k += 1
     }
+    java.util.Arrays.fill(phi, 0, doc.length * K, 1.0 / K)
 
+    val check = getCheckEvery
     var var_iter = 0;
     var converged = 1.0;
     var likelihood = 0.0
@@ -40,49 +97,45 @@ class LDAInferencer(_converged: Double, max_iter: Int) extends Serializable {
       var_iter += 1
       var n = 0
       while(n < doc.length) {
-        var phi_sum = 0.0
-        var k = 0
-        while(k < model.num_topics) {
-          old_phi(k) = phi(n)(k)
-          phi(n)(k) = digamma_gam(k) + model.log_prob_w(k)(doc.words(n))
-
-          if(k > 0) {
-            phi_sum = logSum(phi_sum, phi(n)(k))
-          } else {
-            phi_sum = phi(n)(k) // phi is in log space
-          }
-
-  //        println("phi_sum = " + phi_sum)
+        val base = n * K
+        val w = doc.words(n)
 
+        // phi is in log space until it is normalized
+        var phi_max = Double.NegativeInfinity
+        var k = 0
+        while(k < K) {
+          old_phi(k) = phi(base + k)
+          val p = digamma_gam(k) + model.log_prob_w(k)(w)
+          phi(base + k) = p
+          if(p > phi_max) phi_max = p
+          k += 1
+        }
+        var phi_sum = 0.0
+        k = 0
+        while(k < K) {
+          val p = Math.exp(phi(base + k) - phi_max)
+          phi(base + k) = p
+          phi_sum += p
           k += 1
         }
 
-//        println("doc counts = " + doc.counts(n))
         k = 0
-        while(k < model.num_topics) {
-          phi(n)(k) = Math.exp(phi(n)(k) - phi_sum)
-          var_gamma(k) += doc.counts(n) * (phi(n)(k) - old_phi(k))
-//          println("phi = " + phi(n)(k) + ", old_phi = " + old_phi(k) + ", var gamma = " + var_gamma(k)) // XXX
-          digamma_gam(k) = Gamma.digamma(var_gamma(k))
+        while(k < K) {
+          val p = phi(base + k) / phi_sum
+          phi(base + k) = p
+          var_gamma(k) += doc.counts(n) * (p - old_phi(k))
+          digamma_gam(k) = Functions.digamma(var_gamma(k))
           k += 1
         }
-        // XXX Debug
-  //       k = 0
-  //       while(k < model.num_topics) {
-  // //        println("digamma_gam = " + digamma_gam(k))
-  //         k += 1
-  //       }
-  //       exit(1)
-        // XXX
 
         n += 1
       }
 
-      likelihood     = computeLikelihood(doc, model, phi, var_gamma)
-//      println("[LDA INF] likelihood = " + likelihood)
-//      exit(1)
-      converged      = (likelihood_old - likelihood) / likelihood_old
-      likelihood_old = likelihood
+      if(var_iter % check == 0 || var_iter == VAR_MAX_ITER) {
+        likelihood     = computeLikelihood(doc, model, var_gamma, ws)
+        converged      = (likelihood_old - likelihood) / likelihood_old
+        likelihood_old = likelihood
+      }
     }
 
     likelihood
@@ -96,29 +149,31 @@ class LDAInferencer(_converged: Double, max_iter: Int) extends Serializable {
     }
   }
 
-  def computeLikelihood(doc: Document, model: LDA, phi: Array[Array[Double]], var_gamma: Array[Double]) : Double = {
-    val dig = Array.ofDim[Double](model.num_topics)
+  // uses ws.digamma, which infer keeps equal to digamma(var_gamma).
+  // this only adds up the terms the old version did: it continued its sums
+  // on new lines starting with + and -, which scala reads as separate
+  // statements.  they are still left out so that convergence is unchanged.
+  private def computeLikelihood(doc: Document, model: LDA, var_gamma: Array[Double], ws: LDAWorkspace) : Double = {
+    val K = model.num_topics
+    val dig = ws.digamma
+    val phi = ws.phi
     var k = 0
     var var_gamma_sum = 0.0
-    while(k < model.num_topics) {
-      dig(k) = Gamma.digamma(var_gamma(k))
+    while(k < K) {
       var_gamma_sum += var_gamma(k)
       k += 1
     }
-    val digsum = Gamma.digamma(var_gamma_sum)
-    var likelihood = Gamma.logGamma(model.alpha * model.num_topics)
-                     - model.num_topics * Gamma.logGamma(model.alpha)
-                     - Gamma.logGamma(var_gamma_sum)
+    val digsum = Functions.digamma(var_gamma_sum)
+    var likelihood = Gamma.logGamma(model.alpha * K)
 
     k = 0
-    while(k < model.num_topics) {
-      likelihood += (model.alpha-1.0)*(dig(k)-digsum) 
-                 +  Gamma.logGamma(var_gamma(k))
-                 -  (var_gamma(k)-1.0)*(dig(k)-digsum)
+    while(k < K) {
+      likelihood += (model.alpha-1.0)*(dig(k)-digsum)
       var n = 0
       while(n < doc.length) {
-        if(phi(n)(k) > 0) {
-          likelihood += doc.counts(n) * (phi(n)(k)*((dig(k) - digsum) - Math.log(phi(n)(k))
+        val p = phi(n * K + k)
+        if(p > 0) {
+          likelihood += doc.counts(n) * (p*((dig(k) - digsum) - Math.log(p)
                                          + model.log_prob_w(k)(doc.words(n))))
         }
         n += 1
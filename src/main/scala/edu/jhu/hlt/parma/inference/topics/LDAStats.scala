@@ -6,6 +6,9 @@
 
 package edu.jhu.hlt.parma.inference.topics
 
+// the serialVersionUID is the one computed for the original class, so that
+// saved models (lda.model) still load
+@SerialVersionUID(-4884531470276234788L)
 class LDAStats(numTopics : Int, vocabSize : Int) extends Serializable {
 
   var alpha_suffstats = 0.0
@@ -13,4 +16,32 @@ class LDAStats(numTopics : Int, vocabSize : Int) extends Serializable {
   val class_total     = Array.ofDim[Double](numTopics)
   var num_docs        = 0
 
+  def zero {
+    alpha_suffstats = 0.0
+    var k = 0
+    while(k < numTopics) {
+      java.util.Arrays.fill(class_word(k), 0.0)
+      class_total(k) = 0.0
+      k += 1
+    }
+    num_docs = 0
+  }
+
+  def add(other: LDAStats) {
+    alpha_suffstats += other.alpha_suffstats
+    var k = 0
+    while(k < numTopics) {
+      val cw = class_word(k)
+      val ocw = other.class_word(k)
+      var w = 0
+      while(w < vocabSize) {
+        cw(w) += ocw(w)
+        w += 1
+      }
+      class_total(k) += other.class_total(k)
+      k += 1
+    }
+    num_docs += other.num_docs
+  }
+
 }
@@ -6,11 +6,24 @@
 
 package edu.jhu.hlt.parma.inference.topics
 
-import org.apache.commons.math3.special.Gamma
+import edu.jhu.hlt.parma.math.Functions
+import java.util.concurrent.{Callable, ExecutionException, ExecutorService, Executors}
+import java.util.concurrent.atomic.AtomicInteger
 import scala.collection.mutable.ArrayBuffer
 import scala.math._
 
-class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Document]) extends Serializable {
+object LDATrainer {
+  // documents a worker takes at a time in the E-step
+  val E_STEP_CHUNK = 16
+}
+
+// the serialVersionUID is the one computed for the original class, so that
+// saved models (lda.model) still load
+@SerialVersionUID(2028101531499086189L)
+class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: DocumentSource) extends Serializable with TopicModel {
+
+  def this(numTopics: Int, vocabSize: Int, docs: ArrayBuffer[Document]) =
+    this(numTopics, vocabSize, new DocumentBuffer(docs))
 
   // Trainer settings
   val NUM_INIT = 1
@@ -20,6 +33,9 @@ class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Do
   val EM_CONVERGED = 1e-4
   val ESTIMATE_ALPHA = false
 
+  // E-step threads (not saved with the model), see eStep
+  @transient private var numThreads = 1
+
   // val rnd = new scala.util.Random(12345)
   // val docs = corpus
   val model = new LDA(numTopics, vocabSize)
@@ -38,6 +54,12 @@ class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Do
     EM_MAX_ITER = iter
   }
 
+  def setNumThreads(n: Int) {
+    numThreads = n
+  }
+
+  def getNumThreads: Int = max(1, numThreads)
+
   def zeroInitialize {
     var k = 0
     var w = 0
@@ -55,9 +77,7 @@ class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Do
   // Infer a particular document's 
   def getDocumentTopicDist(doc: Document) : Array[Double] = {
     val gamma  = Array.ofDim[Double](numTopics)
-    val l = doc.length
-    val phi   = Array.ofDim[Double](l, numTopics)
-    inferencer.infer(doc, model, gamma, phi)
+    inferencer.infer(doc, model, gamma)
     gamma
   }
 
@@ -73,49 +93,48 @@ class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Do
   def runEM {
 
     // 1. Initialize variational parameters
-    val var_gamma = Array.ofDim[Double](docs.size, model.num_topics)
-    val max_length = maxCorpusLength(docs)
-
-    println("max length = " + max_length)
+    // (the E-step only needs them for one document at a time, see EStepWorker)
+    val workers =
+      if(getNumThreads == 1) Array(new EStepWorker(stats))
+      else Array.fill(getNumThreads)(new EStepWorker(new LDAStats(numTopics, vocabSize)))
+    val pool = if(workers.length == 1) null else Executors.newFixedThreadPool(workers.length)
+    try {
+
+      // 2. Initialize the model
+      init
+      maximize
 
-    val phi = Array.ofDim[Double](max_length, model.num_topics)
+      println("model alpha = " + model.alpha)
 
-    // 2. Initialize the model
-    init
-    maximize
+      // 3. Run EM
+      var iter = 0
+      var likelihood = 0.0
+      var likelihood_old = 0.0
+      var converged = 1.0
+      while (((converged < 0) || (converged > EM_CONVERGED) || (iter <= 2)) && (iter <= EM_MAX_ITER)) {
+        iter += 1
+        println("**** em iteration " + iter + " ****\n")
+        likelihood = 0.0
 
-    println("model alpha = " + model.alpha)
+        zeroInitialize
 
-    // 3. Run EM
-    var iter = 0
-    var likelihood = 0.0
-    var likelihood_old = 0.0
-    var converged = 1.0
-    while (((converged < 0) || (converged > EM_CONVERGED) || (iter <= 2)) && (iter <= EM_MAX_ITER)) {
-      iter += 1
-      println("**** em iteration " + iter + " ****\n")
-      likelihood = 0.0
-
-      zeroInitialize
-
-      // E-Step
-      println("e-step...")
-      var d = 0
-      while(d < docs.size) {
-        likelihood += docEStep(docs(d), var_gamma(d), phi)
-        d += 1
-      }
+        // E-Step
+        println("e-step...")
+        likelihood = eStep(workers, pool)
 
-      println("likelihood: " + likelihood)
+        println("likelihood: " + likelihood)
 
-      // M-Step
-      println("m-step...")
-      maximize
+        // M-Step
+        println("m-step...")
+        maximize
 
-      // Check for convergence
-      converged = (likelihood_old - likelihood) / (likelihood_old)
-      if(converged < 0) VAR_MAX_ITER = VAR_MAX_ITER * 2
-      likelihood_old = likelihood
+        // Check for convergence
+        converged = (likelihood_old - likelihood) / (likelihood_old)
+        if(converged < 0) VAR_MAX_ITER = VAR_MAX_ITER * 2
+        likelihood_old = likelihood
+      }
+    } finally {
+      if(pool != null) pool.shutdown
     }
   }
 
@@ -123,13 +142,14 @@ class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Do
     var k = 0
     var i = 0
     var n = 0
+    val first = docs.take(model.num_topics)
     while(k < model.num_topics) {
       i = 0
       while(i < NUM_INIT) {
         // val d = floor(rnd.nextDouble * docs.size)
         val d = k
         //println("initialized with document " + d)
-        val doc = docs(d)
+        val doc = first(d)
         n = 0
         while(n < doc.length) {
           stats.class_word(k)(doc.words(n)) += doc.counts(n)
@@ -154,27 +174,94 @@ class LDATrainer(numTopics: Int, vocabSize: Int, @transient docs: ArrayBuffer[Do
     // }
   }
 
-  def docEStep(doc: Document, gamma: Array[Double], phi: Array[Array[Double]]) : Double = {
+  // One thread's share of the E-step: its own sufficient statistics,
+  // gamma and workspace, so workers never write to the same arrays.  A
+  // lone worker writes straight into the trainer's stats.
+  private class EStepWorker(val stats: LDAStats) {
+    val gamma = Array.ofDim[Double](numTopics)
+    val ws = new LDAWorkspace(numTopics)
+    var likelihood = 0.0
+
+    def run(doc: Document) {
+      likelihood += docEStep(doc, gamma, ws, stats)
+    }
+  }
+
+  // Runs docEStep on every document, a chunk of docs at a time.  With
+  // more than one worker, the workers share each chunk, taking
+  // E_STEP_CHUNK documents at a time on the pool's threads.  Their
+  // statistics are added into stats at the end, so the likelihood only
+  // differs from the serial E-step by the order of additions.
+  private def eStep(workers: Array[EStepWorker], pool: ExecutorService) : Double = {
+    import LDATrainer.E_STEP_CHUNK
+    docs.foreachChunk(chunk => {
+      if(workers.length == 1) {
+        var d = 0
+        while(d < chunk.size) {
+          workers(0).run(chunk(d))
+          d += 1
+        }
+      }
+      else {
+        val next = new AtomicInteger
+        val jobs = workers.map(w => pool.submit(new Callable[Unit] {
+          def call {
+            var start = next.getAndAdd(E_STEP_CHUNK)
+            while(start < chunk.size) {
+              var d = start
+              while(d < min(chunk.size, start + E_STEP_CHUNK)) {
+                w.run(chunk(d))
+                d += 1
+              }
+              start = next.getAndAdd(E_STEP_CHUNK)
+            }
+          }
+        }))
+        for(j <- jobs) {
+          try { j.get }
+          catch { case e: ExecutionException => throw new RuntimeException(e.getCause) }
+        }
+      }
+    })
+    var likelihood = 0.0
+    for(w <- workers) {
+      if(w.stats ne stats) {
+        stats.add(w.stats)
+        w.stats.zero
+      }
+      likelihood += w.likelihood
+      w.likelihood = 0.0
+    }
+    likelihood
+  }
+
+  def docEStep(doc: Document, gamma: Array[Double], ws: LDAWorkspace) : Double =
+    docEStep(doc, gamma, ws, stats)
+
+  def docEStep(doc: Document, gamma: Array[Double], ws: LDAWorkspace, stats: LDAStats) : Double = {
 
     // Posterior inference
-    val likelihood = inferencer.infer(doc, model, gamma, phi)
+    val likelihood = inferencer.infer(doc, model, gamma, ws)
+    val phi = ws.phi
 
     // Update sufficient statistics
+    // (ws.digamma(k) is digamma(gamma(k)) after infer)
     var gamma_sum = 0.0
     var k = 0
     while(k < model.num_topics) {
       gamma_sum += gamma(k)
-      stats.alpha_suffstats += Gamma.digamma(gamma(k))
+      stats.alpha_suffstats += ws.digamma(k)
       k += 1
     }
-    stats.alpha_suffstats -= model.num_topics * Gamma.digamma(gamma_sum)
+    stats.alpha_suffstats -= model.num_topics * Functions.digamma(gamma_sum)
 
     var n = 0
     while(n < doc.length) {
+      val base = n * model.num_topics
       var k = 0
       while(k < model.num_topics) {
-        stats.class_word(k)(doc.words(n)) += doc.counts(n) * phi(n)(k)
-        stats.class_total(k)              += doc.counts(n) * phi(n)(k)
+        stats.class_word(k)(doc.words(n)) += doc.counts(n) * phi(base + k)
+        stats.class_total(k)              += doc.counts(n) * phi(base + k)
         k += 1
       }
       n += 1
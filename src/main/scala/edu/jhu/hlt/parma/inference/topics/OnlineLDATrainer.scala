@@ -0,0 +1,300 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.inference.topics
+
+import edu.jhu.hlt.parma.math.Functions
+import java.io._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * online variational bayes for LDA (Hoffman, Blei and Bach, 2010).
+ *
+ * documents are read in mini-batches; after each one the topics' variational
+ * dirichlets (lambda) take a step of size rho = (tau0 + t)^-kappa towards
+ * what they would be if the whole corpus (numDocs documents) looked like
+ * that batch.  one pass over a DocumentSource is usually enough, so the
+ * corpus never needs to be in memory.
+ *
+ * lambda is stored as scale * mu + shift, so the decay of every entry is just
+ * a change to scale and shift, and a batch only touches the words in it.
+ *
+ * model holds log E[topic-word probabilities] after finish (or a checkpoint),
+ * and can be used with inferencer like the batch LDATrainer's.
+ */
+@SerialVersionUID(1L)
+class OnlineLDATrainer(numTopics: Int, vocabSize: Int, numDocs: Int) extends Serializable with TopicModel {
+
+  // Trainer settings
+  val VAR_CONVERGED = 1e-6
+  val VAR_MAX_ITER = 20
+  var BATCH_SIZE = 256
+  var TAU0 = 1024.0
+  var KAPPA = 0.7
+  var ETA = 0.01 // topic-word dirichlet prior
+  var SEED = 12345L
+
+  val model = new LDA(numTopics, vocabSize)
+  val inferencer = new LDAInferencer(VAR_CONVERGED, VAR_MAX_ITER)
+  model.alpha = 1.0 / numTopics
+
+  // lambda(k)(w) = scale * mu(k)(w) + shift
+  private val mu = Array.ofDim[Double](numTopics, vocabSize)
+  private val muSum = Array.ofDim[Double](numTopics)
+  private var scale = 1.0
+  private var shift = 0.0
+  private var initialized = false
+  // mini-batches and documents seen
+  var updates = 0
+  var docsSeen = 0L
+
+  // per batch: slot(w) is 1 + w's index in batchWords, or 0
+  @transient private var slot : Array[Int] = null
+  @transient private var batchWords : Array[Int] = null
+  @transient private var sstats : Array[Array[Double]] = null
+
+  def getNumTopics : Int = numTopics
+
+  def lambda(k: Int, w: Int) : Double = scale * mu(k)(w) + shift
+
+  // lambda starts near 1, like a Gamma(100, 1/100) draw for each entry
+  private def initialize {
+    val rnd = new scala.util.Random(SEED)
+    var k = 0
+    while(k < numTopics) {
+      var w = 0
+      while(w < vocabSize) {
+        mu(k)(w) = Math.max(1e-3, 1.0 + 0.1 * rnd.nextGaussian)
+        muSum(k) += mu(k)(w)
+        w += 1
+      }
+      k += 1
+    }
+    initialized = true
+  }
+
+  /**
+   * one pass over docs (in batches of BATCH_SIZE), writing this trainer
+   * to checkpoint (if not null) every checkpointEvery batches.
+   * the first skip documents are passed over, e.g. to pick up a pass
+   * where a checkpoint left off.
+   */
+  def train(docs: DocumentSource, checkpoint: File = null, checkpointEvery: Int = 100, skip: Long = 0L) {
+    if(checkpointEvery <= 0) throw new RuntimeException("checkpointEvery must be positive: " + checkpointEvery)
+    val batch = new ArrayBuffer[Document]
+    def step {
+      update(batch)
+      batch.clear
+      if(checkpoint != null && updates % checkpointEvery == 0)
+        save(checkpoint)
+    }
+    var seen = 0L
+    docs.foreachChunk(chunk => {
+      for(doc <- chunk) {
+        seen += 1
+        if(seen > skip) {
+          batch += doc
+          if(batch.size == BATCH_SIZE) step
+        }
+      }
+    })
+    if(batch.size > 0) step
+    finish
+  }
+
+  /**
+   * one step on a mini-batch, returns the sum of the documents' likelihoods
+   */
+  def update(batch: IndexedSeq[Document]) : Double = {
+    if(!initialized) initialize
+    if(TAU0 <= 0.0) throw new RuntimeException("TAU0 must be positive: " + TAU0)
+    if(slot == null) {
+      slot = Array.ofDim[Int](vocabSize)
+      batchWords = Array.ofDim[Int](1024)
+    }
+
+    // the distinct words in this batch
+    var numWords = 0
+    for(doc <- batch) {
+      var n = 0
+      while(n < doc.length) {
+        if(slot(doc.words(n)) == 0) {
+          if(numWords == batchWords.length)
+            batchWords = java.util.Arrays.copyOf(batchWords, numWords * 2)
+          batchWords(numWords) = doc.words(n)
+          numWords += 1
+          slot(doc.words(n)) = numWords
+        }
+        n += 1
+      }
+    }
+    if(sstats == null || sstats(0).length < numWords)
+      sstats = Array.ofDim[Double](numTopics, Math.max(1024, numWords * 2))
+
+    // E[log beta] for these words, where the inferencer will look for it
+    var k = 0
+    while(k < numTopics) {
+      val dig_sum = Functions.digamma(scale * muSum(k) + shift * vocabSize)
+      var i = 0
+      while(i < numWords) {
+        model.log_prob_w(k)(batchWords(i)) = Functions.digamma(lambda(k, batchWords(i))) - dig_sum
+        sstats(k)(i) = 0.0
+        i += 1
+      }
+      k += 1
+    }
+
+    // E-step
+    val gamma = Array.ofDim[Double](numTopics)
+    val ws = inferencer.workspace(numTopics)
+    var likelihood = 0.0
+    for(doc <- batch) {
+      likelihood += inferencer.infer(doc, model, gamma, ws)
+      var n = 0
+      while(n < doc.length) {
+        val i = slot(doc.words(n)) - 1
+        val base = n * numTopics
+        var k = 0
+        while(k < numTopics) {
+          sstats(k)(i) += doc.counts(n) * ws.phi(base + k)
+          k += 1
+        }
+        n += 1
+      }
+    }
+
+    // lambda <- (1 - rho) * lambda + rho * (eta + numDocs / batch.size * sstats)
+    updates += 1
+    docsSeen += batch.size
+    val rho = Math.pow(TAU0 + updates, -KAPPA)
+    scale *= 1.0 - rho
+    shift = (1.0 - rho) * shift + rho * ETA
+    if(scale < 1e-100) rescale
+    val weight = rho * numDocs / batch.size / scale
+    k = 0
+    while(k < numTopics) {
+      var i = 0
+      while(i < numWords) {
+        val d = weight * sstats(k)(i)
+        mu(k)(batchWords(i)) += d
+        muSum(k) += d
+        i += 1
+      }
+      k += 1
+    }
+
+    var i = 0
+    while(i < numWords) {
+      slot(batchWords(i)) = 0
+      i += 1
+    }
+    println("batch " + updates + ", rho = " + rho + ", likelihood = " + likelihood)
+    likelihood
+  }
+
+  // folds scale into mu so it does not underflow (and re-adds muSum)
+  private def rescale {
+    var k = 0
+    while(k < numTopics) {
+      muSum(k) = 0.0
+      var w = 0
+      while(w < vocabSize) {
+        mu(k)(w) *= scale
+        muSum(k) += mu(k)(w)
+        w += 1
+      }
+      k += 1
+    }
+    scale = 1.0
+  }
+
+  /**
+   * sets model's word probabilities to the normalized lambdas
+   */
+  def finish {
+    var k = 0
+    while(k < numTopics) {
+      val log_total = Math.log(scale * muSum(k) + shift * vocabSize)
+      var w = 0
+      while(w < vocabSize) {
+        model.log_prob_w(k)(w) = Math.log(lambda(k, w)) - log_total
+        w += 1
+      }
+      k += 1
+    }
+  }
+
+  /**
+   * writes a usable model (see finish); the file is replaced in one step,
+   * so a crash never leaves a partial checkpoint
+   */
+  def save(f: File) {
+    finish
+    val tmp = new File(f.getPath + ".tmp")
+    val oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))
+    oos.writeObject(this)
+    oos.close
+    if(!tmp.renameTo(f)) {
+      f.delete
+      if(!tmp.renameTo(f))
+        throw new RuntimeException("could not move " + tmp.getPath + " to " + f.getPath)
+    }
+    println("wrote checkpoint after " + updates + " batches to " + f.getPath)
+  }
+}
+
+/**
+ * trains on the raw text files under a directory, writing the model
+ * (which TopicJSFeaturizer can read) and its vocabulary.
+ * if the model and vocab files exist, training picks up from that
+ * checkpoint, finishing the pass it was in.
+ */
+object OnlineLDATrainer {
+
+  val usage = "usage: OnlineLDATrainer corpus_dir model_file vocab_file [num_topics, default 32]"
+
+  def main(args: Array[String]) {
+    if(args.length < 3 || args.length > 4) {
+      println(usage)
+      sys.exit(1)
+    }
+    val modelFile = new File(args(1))
+    val vocabFile = new File(args(2))
+    val numTopics = if(args.length == 4) args(3).toInt else 32
+
+    // a resumed run must see exactly the checkpoint's vocabulary, and never rewrites it
+    val resumed = modelFile.exists && vocabFile.exists
+    val checkpoint =
+      if(resumed) {
+        val ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(modelFile)))
+        val t = ois.readObject.asInstanceOf[OnlineLDATrainer]
+        ois.close
+        Document.readWordMap(vocabFile.getPath)
+        if(t.model.vocab_size != Document.getVocabSize)
+          throw new RuntimeException("%s has %d words but %s was trained on %d"
+            .format(vocabFile.getPath, Document.getVocabSize, modelFile.getPath, t.model.vocab_size))
+        t
+      }
+      else null
+    val docs = new DirectoryDocuments(new File(args(0)))
+    val vocabSize = docs.buildVocab
+    println(docs.size + " documents, " + vocabSize + " words")
+
+    val trainer =
+      if(resumed) {
+        if(checkpoint.model.vocab_size != vocabSize)
+          throw new RuntimeException("the corpus has words that are not in " + vocabFile.getPath)
+        println("resuming after " + checkpoint.updates + " batches")
+        checkpoint
+      }
+      else {
+        Document.writeWordMap(vocabFile.getPath)
+        new OnlineLDATrainer(numTopics, vocabSize, docs.size)
+      }
+    trainer.train(docs, modelFile, skip = trainer.docsSeen % docs.size)
+    trainer.save(modelFile)
+  }
+}
@@ -59,21 +59,22 @@ object Runner {
 
     println("path as string: " + pathname.asInstanceOf[String])
 
-    var docs = scala.collection.mutable.ArrayBuffer.empty[Document]
-    format match {
+    // raw files are streamed from disk on every EM iteration
+    val docs : DocumentSource = format match {
       case "pre" => {
         val vocab_path = new File(vocab.asInstanceOf[String])
-        docs = Document.fromPreprocessedFile(path, vocab_path)
+        val loaded = Document.fromPreprocessedFile(path, vocab_path)
+        println(loaded.size + " documents loaded")
+        new DocumentBuffer(loaded)
       }
       case "raw" => {
-        val iter = new DirectoryIterator(path)
-        for(f <- iter.filter(_.isFile).toList.sorted) {
-          docs += Document.fromRawFile(f)
-        }
+        val files = new DirectoryDocuments(path)
+        files.buildVocab
+        println(files.size + " documents found")
+        files
       }
     }
 
-    println(docs.size + " documents loaded")
     println(Document.getVocabSize + " vocabulary words")
 
     // Train the model
@@ -97,8 +98,7 @@ object Runner {
     Document.writeWordMap("myvocab.txt")
 
     // Read the vocab
-    Document.wordMap = Map.empty
-    Document.keyMap  = Map.empty
+    Document.resetVocab
 
     Document.readWordMap("myvocab.txt")
 
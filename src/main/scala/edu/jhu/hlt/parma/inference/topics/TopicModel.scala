@@ -0,0 +1,16 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.inference.topics
+
+/**
+ * a trained topic model: what TopicJSFeaturizer needs to infer
+ * a document's topic distribution (see LDATrainer and OnlineLDATrainer)
+ */
+trait TopicModel {
+  def model : LDA
+  def inferencer : LDAInferencer
+}
@@ -12,5 +12,24 @@ object Functions {
 		else if(y == java.lang.Double.NEGATIVE_INFINITY) x
 		else math.max(x, y) + math.log1p(math.exp( -math.abs(x - y) ))
 	}
+
+	/**
+	 * digamma function for x > 0: steps x up past 10 with the recurrence, then
+	 * uses the asymptotic series (to x^-14), accurate to ~1e-15.  commons-math
+	 * 3.0's Gamma.digamma recurses all the way up to 49 and is off by ~3e-9
+	 * (a sign error in its series), so the two differ by that much.
+	 */
+	def digamma(x: Double): Double = {
+		if(!(x > 0d)) return org.apache.commons.math3.special.Gamma.digamma(x)
+		var y = x
+		var r = 0d
+		while(y < 10d) {
+			r -= 1d / y
+			y += 1d
+		}
+		val inv = 1d / (y * y)
+		r + math.log(y) - 0.5d / y -
+			inv * (1d/12 - inv * (1d/120 - inv * (1d/252 - inv * (1d/240 - inv * (1d/132 - inv * (691d/32760 - inv/12))))))
+	}
 }
 
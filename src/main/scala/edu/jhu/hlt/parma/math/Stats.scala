@@ -117,4 +117,221 @@ object Stats {
 		return jsd
 	}
 
+	/*
+	 * divergences on primitive arrays, without building any vectors.
+	 * the dense versions take two arrays of the same length, the sparse versions
+	 * take (indices, values, size) with indices strictly increasing.
+	 * inputs do not need to be normalized (like klDivergence and JSDistance above),
+	 * and KL and JS are in bits.
+	 */
+
+	def sum(p: Array[Double]): Double = sum(p, p.length)
+
+	def sum(p: Array[Double], n: Int): Double = {
+		var s = 0d
+		var i = 0
+		while(i < n) {
+			s += p(i)
+			i += 1
+		}
+		s
+	}
+
+	private def checkLengths(p: Array[Double], q: Array[Double]) {
+		if(p.length != q.length)
+			throw new RuntimeException("distributions have different sizes: %d vs %d".format(p.length, q.length))
+	}
+
+	/** KL(p || q), infinite if q is 0 where p is not */
+	def klDivergence(p: Array[Double], q: Array[Double]): Double = {
+		checkLengths(p, q)
+		val pt = sum(p)
+		val qt = sum(q)
+		var result = 0d
+		var i = 0
+		while(i < p.length) {
+			if(p(i) > 0d) {
+				val pi = p(i) / pt
+				result += pi * (Math.log(pi / (q(i) / qt)) / LOG_E_2)
+			}
+			i += 1
+		}
+		result
+	}
+
+	/** the same as JSDistance on SparseVectors: sqrt(KL(p || m) + KL(q || m)), m = (p + q) / 2 */
+	def JSDistance(p: Array[Double], q: Array[Double]): Double = {
+		checkLengths(p, q)
+		val pt = sum(p)
+		val qt = sum(q)
+		var mt = 0d
+		var i = 0
+		while(i < p.length) {
+			mt += (p(i) / pt + q(i) / qt) * 0.5
+			i += 1
+		}
+		var kl1 = 0d
+		var kl2 = 0d
+		i = 0
+		while(i < p.length) {
+			val pi = p(i) / pt
+			val qi = q(i) / qt
+			val mi = ((pi + qi) * 0.5) / mt
+			if(pi > 0d) kl1 += pi * (Math.log(pi / mi) / LOG_E_2)
+			if(qi > 0d) kl2 += qi * (Math.log(qi / mi) / LOG_E_2)
+			i += 1
+		}
+		jsFromKL(kl1, kl2)
+	}
+
+	// the KL divergence can get very small, clamp it to zero below a threshold.
+	// see Endres and Schindelin (2003) for why we use this formula for the final computation.
+	private def jsFromKL(kl1: Double, kl2: Double): Double = {
+		val k1 = if(Math.abs(kl1) < 1.0e-14) 0d else kl1
+		val k2 = if(Math.abs(kl2) < 1.0e-14) 0d else kl2
+		Math.sqrt(k1 + k2)
+	}
+
+	/** Hellinger distance, in [0, 1] */
+	def hellinger(p: Array[Double], q: Array[Double]): Double = {
+		checkLengths(p, q)
+		val pt = sum(p)
+		val qt = sum(q)
+		var bc = 0d
+		var i = 0
+		while(i < p.length) {
+			bc += Math.sqrt((p(i) / pt) * (q(i) / qt))
+			i += 1
+		}
+		Math.sqrt(Math.max(0d, 1d - bc))
+	}
+
+	/** cosine similarity (0 if either vector is all zeros) */
+	def cosine(p: Array[Double], q: Array[Double]): Double = {
+		checkLengths(p, q)
+		var pq = 0d
+		var pp = 0d
+		var qq = 0d
+		var i = 0
+		while(i < p.length) {
+			pq += p(i) * q(i)
+			pp += p(i) * p(i)
+			qq += q(i) * q(i)
+			i += 1
+		}
+		if(pp == 0d || qq == 0d) 0d
+		else pq / (Math.sqrt(pp) * Math.sqrt(qq))
+	}
+
+	/** KL(p || q), infinite if q is missing an index of p */
+	def klDivergence(pi: Array[Int], pv: Array[Double], pn: Int,
+			qi: Array[Int], qv: Array[Double], qn: Int): Double = {
+		val pt = sum(pv, pn)
+		val qt = sum(qv, qn)
+		var result = 0d
+		var a = 0
+		var b = 0
+		while(a < pn) {
+			while(b < qn && qi(b) < pi(a)) b += 1
+			if(pv(a) > 0d) {
+				val p = pv(a) / pt
+				val q = if(b < qn && qi(b) == pi(a)) qv(b) / qt else 0d
+				result += p * (Math.log(p / q) / LOG_E_2)
+			}
+			a += 1
+		}
+		result
+	}
+
+	/** JSDistance on sorted sparse vectors (see the dense version) */
+	def JSDistance(pi: Array[Int], pv: Array[Double], pn: Int,
+			qi: Array[Int], qv: Array[Double], qn: Int): Double = {
+		val pt = sum(pv, pn)
+		val qt = sum(qv, qn)
+		// two merges: the first for m's total, the second for the divergences
+		var mt = 0d
+		var kl1 = 0d
+		var kl2 = 0d
+		var pass = 0
+		while(pass < 2) {
+			var a = 0
+			var b = 0
+			while(a < pn || b < qn) {
+				var p = 0d
+				var q = 0d
+				if(b >= qn || (a < pn && pi(a) < qi(b))) {
+					p = pv(a) / pt
+					a += 1
+				} else if(a >= pn || qi(b) < pi(a)) {
+					q = qv(b) / qt
+					b += 1
+				} else {
+					p = pv(a) / pt
+					q = qv(b) / qt
+					a += 1
+					b += 1
+				}
+				if(pass == 0) mt += (p + q) * 0.5
+				else {
+					val m = ((p + q) * 0.5) / mt
+					if(p > 0d) kl1 += p * (Math.log(p / m) / LOG_E_2)
+					if(q > 0d) kl2 += q * (Math.log(q / m) / LOG_E_2)
+				}
+			}
+			pass += 1
+		}
+		jsFromKL(kl1, kl2)
+	}
+
+	/** Hellinger distance on sorted sparse vectors, in [0, 1] */
+	def hellinger(pi: Array[Int], pv: Array[Double], pn: Int,
+			qi: Array[Int], qv: Array[Double], qn: Int): Double = {
+		val pt = sum(pv, pn)
+		val qt = sum(qv, qn)
+		var bc = 0d
+		var a = 0
+		var b = 0
+		while(a < pn && b < qn) {
+			if(pi(a) < qi(b)) a += 1
+			else if(qi(b) < pi(a)) b += 1
+			else {
+				bc += Math.sqrt((pv(a) / pt) * (qv(b) / qt))
+				a += 1
+				b += 1
+			}
+		}
+		Math.sqrt(Math.max(0d, 1d - bc))
+	}
+
+	/** cosine similarity of sorted sparse vectors (0 if either is empty) */
+	def cosine(pi: Array[Int], pv: Array[Double], pn: Int,
+			qi: Array[Int], qv: Array[Double], qn: Int): Double = {
+		var pq = 0d
+		var a = 0
+		var b = 0
+		while(a < pn && b < qn) {
+			if(pi(a) < qi(b)) a += 1
+			else if(qi(b) < pi(a)) b += 1
+			else {
+				pq += pv(a) * qv(b)
+				a += 1
+				b += 1
+			}
+		}
+		var pp = 0d
+		a = 0
+		while(a < pn) {
+			pp += pv(a) * pv(a)
+			a += 1
+		}
+		var qq = 0d
+		b = 0
+		while(b < qn) {
+			qq += qv(b) * qv(b)
+			b += 1
+		}
+		if(pp == 0d || qq == 0d) 0d
+		else pq / (Math.sqrt(pp) * Math.sqrt(qq))
+	}
+
 }
@@ -6,10 +6,61 @@
 
 package edu.jhu.hlt.parma.types
 
-import edu.jhu.hlt.parma.util.Binarizer
+import edu.jhu.hlt.parma.util.{Binarizer, ParmaConfig}
 import cc.mallet.types.Alphabet
 import scala.collection.mutable.ArrayBuffer
 
+object FeatureIndexer {
+
+	/**
+	 * number of buckets that unstable keys are hashed into,
+	 * 0 (default) means use an alphabet instead of hashing
+	 */
+	val HASH_BUCKETS = "features.hashing.buckets"
+
+	/**
+	 * if true, keep a name for every hash bucket (the first key that
+	 * landed in it) so that featureName still works. names are only
+	 * built the first time a bucket is used.
+	 */
+	val HASH_KEEP_NAMES = "features.hashing.names"
+
+	def defaultHashBuckets: Int = ParmaConfig.getInt(HASH_BUCKETS, 0)
+	def defaultKeepNames: Boolean = ParmaConfig.getBoolean(HASH_KEEP_NAMES, true)
+
+	/** murmur3 finalizer, spreads out String.hashCode-style hashes */
+	def mix(h: Int): Int = {
+		var x = h
+		x ^= x >>> 16
+		x *= 0x85ebca6b
+		x ^= x >>> 13
+		x *= 0xc2b2ae35
+		x ^= x >>> 16
+		x
+	}
+
+	/**
+	 * returns the same value as (prefix + suffix.toString).hashCode
+	 * without building the string, where prefixHash = prefix.hashCode
+	 */
+	def hashWithSuffix(prefixHash: Int, suffix: Int): Int = {
+		var h = prefixHash
+		var n = suffix.toLong
+		if(n < 0) {
+			h = 31 * h + '-'
+			n = -n
+		}
+		var p = 1L
+		while(p * 10 <= n) p *= 10
+		while(p > 0) {
+			h = 31 * h + ('0' + (n / p).toInt)
+			n = n % p
+			p /= 10
+		}
+		h
+	}
+}
+
 /**
  * this class maintains an index between named features (values, not functions)
  * and a dense/sparse index. this utilizes mallet's alphabets, but is more efficient
@@ -34,8 +85,18 @@ import scala.collection.mutable.ArrayBuffer
  *
  * use maxIdx so that compound indices know how many bits to allocate for the
  * low-order bits.
+ *
+ * if hashBuckets > 0, addUnstable uses the hashing trick instead of an alphabet:
+ * keys are hashed straight into [0, hashBuckets) and nothing is stored per key
+ * except (optionally) a name for each bucket, for featureName/diagnostics.
+ * use the addUnstable(prefix, suffix, value) overload to avoid building strings
+ * like "hits-sum"+i at all. collisions are counted, see hashingStats.
  */
-sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
+sealed class FeatureIndexer[K](
+		val maxIdx: Int = 1024,
+		val hashBuckets: Int = FeatureIndexer.defaultHashBuckets,
+		val keepHashedNames: Boolean = FeatureIndexer.defaultKeepNames)
+		extends Serializable {
 
 	private[this] var curSV: SVec = null
 	private[this] var starts = 0
@@ -51,6 +112,15 @@ sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
 
 	private[this] var numStableKeys = -99999	// set after first run
 
+	// only used when hashing
+	val hashing = hashBuckets > 0
+	private[this] val bucketOwner = if(hashing) Array.ofDim[Int](hashBuckets) else null
+	private[this] val bucketUsed = if(hashing) new java.util.BitSet(hashBuckets) else null
+	private[this] val bucketCollided = if(hashing) new java.util.BitSet(hashBuckets) else null
+	private[this] val bucketNames = if(hashing && keepHashedNames) Array.ofDim[String](hashBuckets) else null
+	private[this] var hashedAdds = 0L
+	private[this] var collisions = 0L
+
 	def start(sv: SVec) {
 		stableIdx = 0
 		curSV = sv
@@ -83,7 +153,28 @@ sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
 	def addUnstable(key: K, value: Double) {
 		if(value.isNaN || value.isInfinite)
 			throw new RuntimeException("%s = %.3f".format(key, value))
-		val idx = unstableAlph.lookupIndex(key, true)
+		val idx =
+			if(hashing) hashedIndex(key.hashCode, key, false, 0)
+			else unstableAlph.lookupIndex(key, true)
+		addUnstableIdx(idx, value)
+	}
+
+	/**
+	 * same as addUnstable(prefix + suffix, value), but when hashing
+	 * the string is never built (only for String keyed indexers)
+	 */
+	def addUnstable(prefix: String, suffix: Int, value: Double)(implicit ev: String <:< K) {
+		if(!hashing)
+			addUnstable(ev(prefix + suffix.toString), value)
+		else {
+			if(value.isNaN || value.isInfinite)
+				throw new RuntimeException("%s%d = %.3f".format(prefix, suffix, value))
+			val h = FeatureIndexer.hashWithSuffix(prefix.hashCode, suffix)
+			addUnstableIdx(hashedIndex(h, prefix, true, suffix), value)
+		}
+	}
+
+	private def addUnstableIdx(idx: Int, value: Double) {
 		if(starts > 1) {
 			assert(numStableKeys >= 0, "start=%d numStableKeys=%d".format(starts, numStableKeys))
 			curSV.add(idx + numStableKeys, value)
@@ -91,10 +182,46 @@ sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
 		else firstPassUnstableSV.add(idx, value)
 	}
 
+	/**
+	 * maps a key hash to a bucket and does the collision bookkeeping.
+	 * key and suffix are only used to name a bucket the first time it is
+	 * used (suffix is only part of the name if hasSuffix, it may be negative)
+	 */
+	private def hashedIndex(keyHash: Int, key: Any, hasSuffix: Boolean, suffix: Int): Int = {
+		val h = FeatureIndexer.mix(keyHash)
+		val bucket = (h & Int.MaxValue) % hashBuckets
+		hashedAdds += 1
+		if(!bucketUsed.get(bucket)) {
+			bucketUsed.set(bucket)
+			bucketOwner(bucket) = h
+			if(bucketNames != null)
+				bucketNames(bucket) = if(hasSuffix) key + suffix.toString else String.valueOf(key)
+		}
+		else if(bucketOwner(bucket) != h) {
+			collisions += 1
+			bucketCollided.set(bucket)
+		}
+		bucket
+	}
+
+	/**
+	 * collision statistics, None if this indexer doesn't hash
+	 */
+	def hashingStats: Option[String] = {
+		if(!hashing) None
+		else Some("buckets=%d used=%d collidedBuckets=%d adds=%d collisions=%d (%.2f%%)"
+			.format(hashBuckets, bucketUsed.cardinality, bucketCollided.cardinality, hashedAdds,
+				collisions, if(hashedAdds == 0) 0d else 100d * collisions / hashedAdds))
+	}
+
 	def commit {
 		if(starts == 1) {
 			numStableKeys = stableAlph.size
 			stableAlph.stopGrowth
+			if(hashing && numStableKeys + hashBuckets > maxIdx) {
+				throw new RuntimeException("hashBuckets=%d plus numStableKeys=%d is more than maxIdx=%d"
+					.format(hashBuckets, numStableKeys, maxIdx))
+			}
 			//curSV.addWithOffset(firstPassUnstableSV, stableIdx)
 			firstPassUnstableSV.items.foreach(iv => curSV.add(iv._1 + stableIdx, iv._2))
 			firstPassUnstableSV = null
@@ -111,6 +238,10 @@ sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
 		if(i >= 0) {
 			assert(unstableAlph.lookupIndex(key) < 0, "ambiguous key: " + key)
 			return i
+		} else if(hashing) {
+			val bucket = (FeatureIndexer.mix(key.hashCode) & Int.MaxValue) % hashBuckets
+			if(!bucketUsed.get(bucket)) throw new RuntimeException("key not found: " + key)
+			return bucket + numStableKeys
 		} else {
 			val j = unstableAlph.lookupIndex(key)
 			if(j < 0) throw new RuntimeException("key not found: " + key)
@@ -120,6 +251,8 @@ sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
 
 	def lookupObject(index: Int): K = {
 		assert(starts > 0)
+		if(hashing && index >= numStableKeys)
+			return hashedName(index - numStableKeys).asInstanceOf[K]
 		assert(index >= 0 && index < numStableKeys + unstableAlph.size,
 			"index=%d numStableKeys=%d unstableAlph.size=%d".format(index, numStableKeys, unstableAlph.size))
 		val x = 
@@ -130,7 +263,14 @@ sealed class FeatureIndexer[K](val maxIdx: Int = 1024) extends Serializable {
 		x.asInstanceOf[K]
 	}
 
-}
-
-
+	private def hashedName(bucket: Int): String = {
+		assert(bucket >= 0 && bucket < hashBuckets, "bucket=%d hashBuckets=%d".format(bucket, hashBuckets))
+		if(!bucketUsed.get(bucket)) null
+		else {
+			val name = if(bucketNames == null) "hash" + bucket else bucketNames(bucket)
+			if(bucketCollided.get(bucket)) name + "+collisions"
+			else name
+		}
+	}
 
+}
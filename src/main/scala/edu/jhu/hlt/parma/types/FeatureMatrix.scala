@@ -0,0 +1,269 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.types
+
+import java.io._
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * a read-only, memory-mapped sparse matrix of feature vectors (CSR),
+ * one row per alignment, with a label per row and document pair boundaries.
+ * nothing is read onto the heap except the header, so the matrix can be much
+ * bigger than the heap, and every JVM that opens the same file shares it
+ * through the page cache.
+ *
+ * rows for a document pair are in the order that HAM computes features in
+ * (DocMetaAligner.allPossibleAlignments), so alignments are not stored.
+ *
+ * file layout (big-endian, every section starts on an 8 byte boundary):
+ *   header: magic, version, numRows, numDocPairs, nnz, maxRowNnz
+ *   rowStarts: long[numRows+1] (offsets into indices/values)
+ *   docStarts: long[numDocPairs+1] (offsets into rows)
+ *   labels: byte[numRows]
+ *   indices: int[nnz]
+ *   values: double[nnz]
+ *
+ * see FeatureMatrixWriter for how to build one
+ */
+class FeatureMatrix(val file: File) {
+
+	private[this] val raf = new RandomAccessFile(file, "r")
+	private[this] val channel = raf.getChannel
+
+	val (numRows, numDocPairs, nnz, maxRowNnz) = {
+		val h = channel.map(FileChannel.MapMode.READ_ONLY, 0, FeatureMatrix.HEADER_BYTES)
+		if(h.getInt != FeatureMatrix.MAGIC)
+			throw new RuntimeException(file.getPath + " is not a feature matrix")
+		val version = h.getInt
+		if(version != FeatureMatrix.VERSION)
+			throw new RuntimeException("%s has version %d, expected %d".format(file.getPath, version, FeatureMatrix.VERSION))
+		(h.getLong, h.getLong, h.getLong, h.getInt)
+	}
+
+	private[this] val rowStarts = new MappedSection(channel, FeatureMatrix.HEADER_BYTES, (numRows + 1) * 8)
+	private[this] val docStarts = new MappedSection(channel, rowStarts.end, (numDocPairs + 1) * 8)
+	private[this] val labels = new MappedSection(channel, docStarts.end, numRows)
+	private[this] val indices = new MappedSection(channel, labels.end, nnz * 4)
+	private[this] val values = new MappedSection(channel, indices.end, nnz * 8)
+
+	def rowStart(row: Long): Long = rowStarts.getLong(row * 8)
+	def rowEnd(row: Long): Long = rowStarts.getLong((row + 1) * 8)
+	def label(row: Long): Boolean = labels.getByte(row) != 0
+
+	/** first row of document pair d */
+	def docStart(d: Int): Long = docStarts.getLong(d.toLong * 8)
+	/** one past the last row of document pair d */
+	def docEnd(d: Int): Long = docStarts.getLong((d + 1).toLong * 8)
+	def docSize(d: Int): Int = (docEnd(d) - docStart(d)).toInt
+
+	def index(k: Long): Int = indices.getInt(k * 4)
+	def value(k: Long): Double = values.getDouble(k * 8)
+
+	/**
+	 * dot product of a row with dense weights, reads the row in place
+	 */
+	def dot(row: Long, weights: Array[Double]): Double = {
+		var k = rowStart(row)
+		val end = rowEnd(row)
+		var dot = 0d
+		while(k < end) {
+			dot += weights(index(k)) * value(k)
+			k += 1
+		}
+		dot
+	}
+
+	/**
+	 * dest += row * scale
+	 */
+	def addRowTo(row: Long, dest: Array[Double], scale: Double) {
+		var k = rowStart(row)
+		val end = rowEnd(row)
+		while(k < end) {
+			dest(index(k)) += value(k) * scale
+			k += 1
+		}
+	}
+
+	/**
+	 * copies a row into buffers (at least maxRowNnz long),
+	 * returns the number of non-zeros copied
+	 */
+	def copyRow(row: Long, idxBuf: Array[Int], valBuf: Array[Double]): Int = {
+		val start = rowStart(row)
+		val n = (rowEnd(row) - start).toInt
+		var i = 0
+		while(i < n) {
+			idxBuf(i) = index(start + i)
+			valBuf(i) = value(start + i)
+			i += 1
+		}
+		n
+	}
+
+	/**
+	 * materializes one document pair's rows as SVecs
+	 * (only use for one document pair at a time)
+	 */
+	def docFeatures(d: Int): Array[SVec] = {
+		val start = docStart(d)
+		val n = docSize(d)
+		val svs = Array.ofDim[SVec](n)
+		var i = 0
+		while(i < n) {
+			val row = start + i
+			val sv = new SVec(math.max(1, (rowEnd(row) - rowStart(row)).toInt))
+			var k = rowStart(row)
+			while(k < rowEnd(row)) {
+				sv.add(index(k), value(k))
+				k += 1
+			}
+			svs(i) = sv
+			i += 1
+		}
+		svs
+	}
+
+	def docLabels(d: Int): java.util.BitSet = {
+		val start = docStart(d)
+		val n = docSize(d)
+		val bs = new java.util.BitSet(n)
+		var i = 0
+		while(i < n) {
+			if(label(start + i)) bs.set(i)
+			i += 1
+		}
+		bs
+	}
+
+	def close { raf.close }
+
+	override def toString: String = "(FeatureMatrix %s rows=%d docPairs=%d nnz=%d)"
+		.format(file.getPath, numRows, numDocPairs, nnz)
+}
+
+object FeatureMatrix {
+	val MAGIC = 0x50464d31	// "PFM1"
+	val VERSION = 1
+	val HEADER_BYTES = 64
+
+	def align8(bytes: Long): Long = (bytes + 7) & ~7L
+}
+
+/**
+ * a read-only mapping of [offset, offset+bytes) in a file.
+ * MappedByteBuffers are limited to 2GB, so big sections are
+ * mapped as several chunks (chunk size is a multiple of 8,
+ * so ints/longs/doubles never straddle two chunks)
+ */
+private[parma] class MappedSection(channel: FileChannel, val offset: Long, val bytes: Long) {
+
+	private[this] val chunkBits = 30
+	private[this] val chunkMask = (1L << chunkBits) - 1
+	private[this] val chunks: Array[MappedByteBuffer] = {
+		val n = ((bytes + chunkMask) >>> chunkBits).toInt
+		Array.tabulate(n)(i => {
+			val start = i.toLong << chunkBits
+			val len = math.min(bytes - start, 1L << chunkBits)
+			channel.map(FileChannel.MapMode.READ_ONLY, offset + start, len)
+		})
+	}
+
+	/** where the next section starts */
+	def end: Long = FeatureMatrix.align8(offset + bytes)
+
+	def getByte(pos: Long): Byte = chunks((pos >>> chunkBits).toInt).get((pos & chunkMask).toInt)
+	def getInt(pos: Long): Int = chunks((pos >>> chunkBits).toInt).getInt((pos & chunkMask).toInt)
+	def getLong(pos: Long): Long = chunks((pos >>> chunkBits).toInt).getLong((pos & chunkMask).toInt)
+	def getDouble(pos: Long): Double = chunks((pos >>> chunkBits).toInt).getDouble((pos & chunkMask).toInt)
+}
+
+/**
+ * streams document pairs into a FeatureMatrix file.
+ * sections are written to temporary files as they come in
+ * (nothing is kept on the heap) and stitched together in close.
+ */
+class FeatureMatrixWriter(val file: File) {
+
+	private[this] val tmpDir = file.getAbsoluteFile.getParentFile
+	private[this] val tmpFiles = Array("rows", "docs", "labels", "indices", "values")
+		.map(s => File.createTempFile(file.getName + "." + s, ".tmp", tmpDir))
+	private[this] val outs = tmpFiles.map(f => new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16)))
+	private[this] val rowOut = outs(0)
+	private[this] val docOut = outs(1)
+	private[this] val labelOut = outs(2)
+	private[this] val idxOut = outs(3)
+	private[this] val valOut = outs(4)
+
+	private[this] var numRows = 0L
+	private[this] var numDocPairs = 0L
+	private[this] var nnz = 0L
+	private[this] var maxRowNnz = 0
+	private[this] var closed = false
+
+	rowOut.writeLong(0L)
+	docOut.writeLong(0L)
+
+	/**
+	 * features(i) is the feature vector for the i-th alignment in this document pair,
+	 * labels.get(i) says whether it is a positive alignment.
+	 * SVecs are compacted (duplicate indices summed) as they are written.
+	 */
+	def addDocPair(features: Array[SVec], labels: java.util.BitSet) {
+		if(closed) throw new IllegalStateException("already closed: " + file.getPath)
+		var i = 0
+		while(i < features.length) {
+			val (is, vs) = features(i).uniqItems
+			var k = 0
+			while(k < is.length) {
+				idxOut.writeInt(is(k))
+				valOut.writeDouble(vs(k))
+				k += 1
+			}
+			nnz += is.length
+			maxRowNnz = math.max(maxRowNnz, is.length)
+			rowOut.writeLong(nnz)
+			labelOut.writeByte(if(labels.get(i)) 1 else 0)
+			numRows += 1
+			i += 1
+		}
+		docOut.writeLong(numRows)
+		numDocPairs += 1
+	}
+
+	def close {
+		if(closed) return
+		closed = true
+		outs.foreach(_.close)
+		val raf = new RandomAccessFile(file, "rw")
+		raf.setLength(0)
+		val out = raf.getChannel
+		val header = java.nio.ByteBuffer.allocate(FeatureMatrix.HEADER_BYTES)
+		header.putInt(FeatureMatrix.MAGIC)
+		header.putInt(FeatureMatrix.VERSION)
+		header.putLong(numRows)
+		header.putLong(numDocPairs)
+		header.putLong(nnz)
+		header.putInt(maxRowNnz)
+		header.rewind
+		out.write(header, 0)
+		var pos = FeatureMatrix.HEADER_BYTES.toLong
+		for(f <- tmpFiles) {
+			if(pos > raf.length) raf.setLength(pos)	// padding, transferFrom won't write past the end
+			val in = new FileInputStream(f).getChannel
+			var copied = 0L
+			while(copied < in.size)
+				copied += out.transferFrom(in, pos + copied, in.size - copied)
+			in.close
+			pos = FeatureMatrix.align8(pos + copied)
+			f.delete
+		}
+		raf.setLength(pos)
+		raf.close
+	}
+}
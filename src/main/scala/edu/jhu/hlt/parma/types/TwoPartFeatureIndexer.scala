@@ -94,5 +94,11 @@ class TwoPartFeatureIndexer[K](val maxOuterKeys: Int, val maxInnerKeys: Int) ext
 	}
 
 	def numOuterKeys: Int = outerAlph.size
+
+	/**
+	 * call once all outer keys are registered, after which
+	 * outer key lookups (one per reindex) use a read-only table
+	 */
+	def stopGrowth { outerAlph.stopGrowth }
 }
 
@@ -6,52 +6,187 @@
 
 package edu.jhu.hlt.parma.util
 
-import collection.JavaConversions._
+import java.io.{ObjectInputStream, ObjectOutputStream}
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * an Object<=>Index bijection that is safe to use from many threads.
+ *
+ * lookups of keys that are already in the alphabet never lock.
+ * adding a new key takes a lock, but only for the first time that key is seen.
+ * after stopGrowth, lookups go through an immutable open-addressing table
+ * (parallel key/index arrays) instead of the ConcurrentHashMap.
+ *
+ * the serialized form is the same as the old HashMap/ArrayList version
+ * (t2i, i2t, growthStopped), so old models (e.g. transducer alphabets) still load.
+ */
+@SerialVersionUID(-1773443786776745217L)
 class Alphabet[T] extends Serializable {
-    private[this] val t2i = new java.util.HashMap[T, Integer]
-    private[this] val i2t = new java.util.ArrayList[T]
-    private[this] var growthStopped = false
-	def keys = i2t.toSeq
+
+	// only used for serialization, see writeObject/readObject
+	private[this] var t2i: java.util.HashMap[T, Integer] = null
+	private[this] var i2t: java.util.ArrayList[T] = null
+	@volatile private[this] var growthStopped = false
+
+	@transient private[this] var index: ConcurrentHashMap[T, Integer] = new ConcurrentHashMap[T, Integer]
+	@transient @volatile private[this] var objects: Array[AnyRef] = new Array[AnyRef](16)
+	@transient @volatile private[this] var n = 0
+	@transient @volatile private[this] var frozen: FrozenIndex = null
+	@transient private[this] var lock: AnyRef = new Object
+
+	def keys: Seq[T] = {
+		val sz = n
+		val objs = objects
+		(0 until sz).map(i => objs(i).asInstanceOf[T])
+	}
 	def indices = (0 until size)
 	def apply(t: T) = lookupIndex(t)
 	def apply(i: Int) = lookupObject(i)
-	def contains(t: T) = t2i.containsKey(t)
-    def lookupObject(i: Int): T = {
-        if(i < 0) throw new RuntimeException("need non-negative indices: " + i)
-        if(i >= i2t.size) throw new RuntimeException("that index hasn't been assigned: " + i)
-        return i2t.get(i)
-    }
-    def lookupIndex(t: T): Int = {
-      val i = t2i.get(t)
-      if(i == null) {
-        if( ! growthStopped ) {
-	 	  i2t.add(t)
-          t2i.put(t, t2i.size)
-          return t2i.size - 1
-        }
-        else throw new RuntimeException(t + " does not exist!")
-      }
-        else return i
-    }
-    def lookupIndex(t: T, addIfNotPresent: Boolean = false): Int = {
-        val i = t2i.get(t)
-        if(i == null) {
-            if(addIfNotPresent) {
+	def contains(t: T) = find(t) >= 0
+
+	def lookupObject(i: Int): T = {
+		if(i < 0) throw new RuntimeException("need non-negative indices: " + i)
+		if(i >= n) throw new RuntimeException("that index hasn't been assigned: " + i)
+		objects(i).asInstanceOf[T]
+	}
+
+	def lookupIndex(t: T): Int = {
+		val i = find(t)
+		if(i >= 0) i
+		else if(!growthStopped) add(t)
+		else throw new RuntimeException(t + " does not exist!")
+	}
+
+	def lookupIndex(t: T, addIfNotPresent: Boolean = false): Int = {
+		val i = find(t)
+		if(i >= 0) i
+		else if(addIfNotPresent) add(t)
+		else throw new RuntimeException(t + " does not exist!")
+	}
+
+	/**
+	 * after this, lookupIndex(t) will throw on new keys
+	 * and lookups use the frozen (read-only) table
+	 */
+	def stopGrowth = {
+		lock.synchronized {
+			growthStopped = true
+			frozen = new FrozenIndex(objects, n)
+		}
+	}
+
+	def size = n
+
+	def isGrowthStopped = growthStopped
+
+	/** returns -1 if t is not in the alphabet */
+	private def find(t: T): Int = {
+		val f = frozen
+		if(f != null) f.find(t)
+		else {
+			val i = index.get(t)
+			if(i == null) -1 else i.intValue
+		}
+	}
+
+	private def add(t: T): Int = lock.synchronized {
+		val existing = index.get(t)
+		if(existing != null) existing.intValue
+		else {
+			val i = n
+			if(i == objects.length)
+				objects = java.util.Arrays.copyOf(objects, i * 2)
+			objects(i) = t.asInstanceOf[AnyRef]
+			// lookupIndex(t, addIfNotPresent=true) is allowed after stopGrowth,
+			// so the frozen table no longer covers every key
+			frozen = null
+			n = i + 1	// publish after the object is in place
+			// only now can other threads find i, so lookupObject(i) works for them
+			// (until then they miss, and wait on the lock in add)
+			index.put(t, i)
+			i
+		}
+	}
+
+	private def writeObject(out: ObjectOutputStream) {
+		lock.synchronized {
+			val sz = n
+			t2i = new java.util.HashMap[T, Integer](sz * 2)
+			i2t = new java.util.ArrayList[T](sz)
+			var i = 0
+			while(i < sz) {
+				val t = objects(i).asInstanceOf[T]
 				i2t.add(t)
-                t2i.put(t, t2i.size)
-                return t2i.size - 1
-            }
-            else throw new RuntimeException(t + " does not exist!")
-        }
-        else return i
-    }
-    def stopGrowth = {
-      growthStopped = true
-    }
-    def size = {
-		assert(i2t.size == t2i.size)
-		i2t.size
+				t2i.put(t, i)
+				i += 1
+			}
+			out.defaultWriteObject
+			t2i = null
+			i2t = null
+		}
+	}
+
+	private def readObject(in: ObjectInputStream) {
+		in.defaultReadObject
+		lock = new Object
+		index = new ConcurrentHashMap[T, Integer](math.max(16, i2t.size * 2))
+		objects = new Array[AnyRef](math.max(16, i2t.size))
+		var i = 0
+		while(i < i2t.size) {
+			objects(i) = i2t.get(i).asInstanceOf[AnyRef]
+			index.put(i2t.get(i), i)
+			i += 1
+		}
+		n = i2t.size
+		assert(t2i.size == n)
+		t2i = null
+		i2t = null
+		if(growthStopped)
+			frozen = new FrozenIndex(objects, n)
 	}
 }
 
+/**
+ * immutable open-addressing (linear probing) table from key to index
+ */
+private[util] class FrozenIndex(objects: Array[AnyRef], n: Int) {
+
+	private[this] val mask = {
+		var cap = 16
+		while(cap < n * 2) cap *= 2
+		cap - 1
+	}
+	private[this] val keys = new Array[AnyRef](mask + 1)
+	private[this] val values = new Array[Int](mask + 1)
+
+	private def slot(key: AnyRef): Int = {
+		var h = key.hashCode
+		h ^= h >>> 16
+		h *= 0x85ebca6b
+		h ^= h >>> 13
+		h & mask
+	}
+
+	{
+		var i = 0
+		while(i < n) {
+			var s = slot(objects(i))
+			while(keys(s) != null) s = (s + 1) & mask
+			keys(s) = objects(i)
+			values(s) = i
+			i += 1
+		}
+	}
+
+	def find(key: Any): Int = {
+		val k = key.asInstanceOf[AnyRef]
+		var s = slot(k)
+		while(true) {
+			val ks = keys(s)
+			if(ks == null) return -1
+			if((ks eq k) || ks.equals(k)) return values(s)
+			s = (s + 1) & mask
+		}
+		-1
+	}
+}
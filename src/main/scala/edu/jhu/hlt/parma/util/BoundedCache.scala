@@ -0,0 +1,200 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.util
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * computes a value on a cache miss (implement this from java)
+ */
+trait CacheLoader[K, V] {
+	def load(key: K): V
+}
+
+/**
+ * a concurrent cache with a bound on total weight (by default every entry weighs 1),
+ * for putting slow lookups (redis, WordNet, FrameNet, ...) behind.
+ *
+ * keys are spread over segments, each a LinkedHashMap under its own lock,
+ * and each segment evicts on its own once it is over maxWeight/segments.
+ * eviction is LRU or FIFO (see Caches for how to configure this).
+ *
+ * hits, misses, evictions, and the time spent computing misses are counted
+ * so cache sizes can be tuned, see Caches.report
+ */
+class BoundedCache[K, V <: AnyRef](
+		val name: String,
+		val maxWeight: Long,
+		val lru: Boolean = true,
+		val weigher: (K, V) => Long = (k: K, v: V) => 1L,
+		numSegments: Int = 16) {
+
+	private class Segment(val maxWeight: Long) extends java.util.LinkedHashMap[K, V](64, 0.75f, lru) {
+		val lock = new ReentrantLock
+		var weight = 0L
+		def add(k: K, v: V) {
+			val old = put(k, v)
+			if(old != null) weight -= weigher(k, old)
+			weight += weigher(k, v)
+			// always keep the newest entry, even if it alone is over budget
+			val iter = entrySet.iterator
+			while(weight > maxWeight && size > 1) {
+				val e = iter.next
+				weight -= weigher(e.getKey, e.getValue)
+				iter.remove
+				evictions.incrementAndGet
+			}
+		}
+	}
+
+	private[this] val hits = new AtomicLong
+	private[this] val misses = new AtomicLong
+	private[this] val evictions = new AtomicLong
+	private[this] val loadNanos = new AtomicLong
+	private[this] val segments = Array.fill(numSegments)(new Segment(math.max(1L, maxWeight / numSegments)))
+
+	private def segment(k: K): Segment = {
+		var h = k.hashCode
+		h ^= (h >>> 16)
+		segments((h & Int.MaxValue) % numSegments)
+	}
+
+	/** returns null if k is not cached (and counts a miss) */
+	def get(k: K): V = {
+		val s = segment(k)
+		s.lock.lock
+		val v = try { s.get(k) } finally { s.lock.unlock }
+		if(v == null) misses.incrementAndGet
+		else hits.incrementAndGet
+		v
+	}
+
+	def put(k: K, v: V) {
+		if(maxWeight <= 0) return
+		val s = segment(k)
+		s.lock.lock
+		try { s.add(k, v) } finally { s.lock.unlock }
+	}
+
+	/**
+	 * the cached value, or compute it (outside of any lock, so two threads
+	 * may both compute a value for the same key)
+	 */
+	def getOrElseUpdate(k: K, compute: => V): V = {
+		val v = get(k)
+		if(v != null) v
+		else {
+			val start = System.nanoTime
+			val nv = compute
+			loadNanos.addAndGet(System.nanoTime - start)
+			put(k, nv)
+			nv
+		}
+	}
+
+	def get(k: K, loader: CacheLoader[K, V]): V = getOrElseUpdate(k, loader.load(k))
+
+	/** counts time spent computing values that were put (rather than getOrElseUpdate'd) */
+	def recordLoad(nanos: Long) { loadNanos.addAndGet(nanos) }
+
+	def size: Int = segments.map(s => { s.lock.lock; try { s.size } finally { s.lock.unlock } }).sum
+	def weight: Long = segments.map(s => { s.lock.lock; try { s.weight } finally { s.lock.unlock } }).sum
+
+	def clear {
+		for(s <- segments) {
+			s.lock.lock
+			try {
+				s.clear
+				s.weight = 0
+			} finally { s.lock.unlock }
+		}
+	}
+
+	def hitRate: Double = {
+		val h = hits.get
+		val n = h + misses.get
+		if(n == 0) 0d else h.toDouble / n
+	}
+
+	def stats: String = {
+		val m = misses.get
+		"%-24s size=%d weight=%d/%d hits=%d misses=%d hitRate=%.3f evictions=%d avgMissMs=%.3f totalMissSec=%.1f"
+			.format(name, size, weight, maxWeight, hits.get, m, hitRate, evictions.get,
+				if(m == 0) 0d else loadNanos.get / 1e6 / m, loadNanos.get / 1e9)
+	}
+
+	override def toString: String = "(BoundedCache %s)".format(stats)
+}
+
+/**
+ * every BoundedCache in this JVM, by name.
+ * each cache is configured in parma.config with
+ *   cache.<name>.size = max weight (0 turns the cache off)
+ *   cache.<name>.eviction = lru or fifo
+ */
+object Caches {
+
+	private[this] val caches = new ArrayBuffer[BoundedCache[_, _ <: AnyRef]]
+
+	def get[K, V <: AnyRef](name: String, defaultSize: Long): BoundedCache[K, V] =
+		get[K, V](name, defaultSize, (k: K, v: V) => 1L)
+
+	def get[K, V <: AnyRef](name: String, defaultSize: Long, weigher: (K, V) => Long): BoundedCache[K, V] = synchronized {
+		caches.find(_.name == name) match {
+			case Some(c) => c.asInstanceOf[BoundedCache[K, V]]
+			case None => make(name, name, defaultSize, weigher)
+		}
+	}
+
+	/**
+	 * a new cache that get never returns, for a cache that belongs to one object.
+	 * it is configured by cache.<name>.*, like get(name, ...), but if name is
+	 * taken it is called name#2, name#3, ... in report
+	 */
+	def create[K, V <: AnyRef](name: String, defaultSize: Long): BoundedCache[K, V] = synchronized {
+		var unique = name
+		var i = 1
+		while(caches.exists(_.name == unique)) {
+			i += 1
+			unique = name + "#" + i
+		}
+		make(unique, name, defaultSize, (k: K, v: V) => 1L)
+	}
+
+	/**
+	 * takes c out of report (and lets create reuse its name), for a cache made
+	 * by create whose owner is done with it; c keeps working, unregistered
+	 */
+	def remove(c: BoundedCache[_, _ <: AnyRef]) {
+		synchronized {
+			val i = caches.indexWhere(_ eq c)
+			if(i >= 0) caches.remove(i)
+		}
+	}
+
+	private def make[K, V <: AnyRef](name: String, configName: String, defaultSize: Long, weigher: (K, V) => Long): BoundedCache[K, V] = {
+		val size = ParmaConfig.getLong("cache." + configName + ".size", defaultSize)
+		val lru = ParmaConfig.getString("cache." + configName + ".eviction", "lru") match {
+			case "lru" => true
+			case "fifo" => false
+			case e => throw new RuntimeException("unknown eviction policy for cache %s: %s".format(configName, e))
+		}
+		val c = new BoundedCache[K, V](name, size, lru, weigher)
+		caches += c
+		c
+	}
+
+	/** java friendly version of get */
+	def getCache[K, V <: AnyRef](name: String, defaultSize: Long): BoundedCache[K, V] = get[K, V](name, defaultSize)
+
+	def all: Seq[BoundedCache[_, _ <: AnyRef]] = synchronized { caches.toList }
+
+	def report: Seq[String] = all.map(_.stats)
+}
+
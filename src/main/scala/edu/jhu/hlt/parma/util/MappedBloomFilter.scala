@@ -0,0 +1,191 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.util
+
+import edu.jhu.hlt.parma.types.MappedSection
+import java.io._
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * a read-only Bloom filter over strings, memory-mapped from a file written by
+ * BloomFilterBuilder. opening one only reads the header, the bits stay off-heap
+ * (shared through the page cache), and lookups never write so they are safe
+ * from any number of threads.
+ *
+ * file layout (big-endian):
+ *   header: magic, version, numBits, numHashes, numKeys
+ *   bits: long[numBits/64]
+ */
+class MappedBloomFilter(val file: File) {
+
+	private[this] val raf = new RandomAccessFile(file, "r")
+	private[this] val channel = raf.getChannel
+
+	val (numBits, numHashes, numKeys) = {
+		val h = channel.map(FileChannel.MapMode.READ_ONLY, 0, BloomFilters.HEADER_BYTES)
+		if(h.getInt != BloomFilters.MAGIC)
+			throw new RuntimeException(file.getPath + " is not a Bloom filter")
+		val version = h.getInt
+		if(version != BloomFilters.VERSION)
+			throw new RuntimeException("%s has version %d, expected %d".format(file.getPath, version, BloomFilters.VERSION))
+		(h.getLong, h.getInt, h.getLong)
+	}
+
+	private[this] val bits = new MappedSection(channel, BloomFilters.HEADER_BYTES, numBits / 8)
+
+	def in(key: String): Boolean = {
+		val h1 = BloomFilters.hash1(key)
+		val h2 = BloomFilters.hash2(h1)
+		var i = 0
+		while(i < numHashes) {
+			val b = BloomFilters.bit(h1, h2, i, numBits)
+			if((bits.getLong((b >>> 6) * 8) & (1L << (b & 63))) == 0L)
+				return false
+			i += 1
+		}
+		true
+	}
+
+	def close { raf.close }
+
+	override def toString: String = "(MappedBloomFilter %s bits=%d hashes=%d keys=%d)"
+		.format(file.getPath, numBits, numHashes, numKeys)
+}
+
+/**
+ * builds a Bloom filter on the heap (set is safe from many threads),
+ * then writes it out for MappedBloomFilter to read
+ */
+class BloomFilterBuilder(val numBits: Long, val numHashes: Int) {
+
+	if(numBits % 64 != 0 || numBits / 64 > Int.MaxValue)
+		throw new IllegalArgumentException("bad numBits: " + numBits)
+
+	private[this] val words = new AtomicLongArray((numBits / 64).toInt)
+	private[this] val numKeys = new java.util.concurrent.atomic.AtomicLong
+
+	def set(key: String) {
+		val h1 = BloomFilters.hash1(key)
+		val h2 = BloomFilters.hash2(h1)
+		var i = 0
+		while(i < numHashes) {
+			val b = BloomFilters.bit(h1, h2, i, numBits)
+			val w = (b >>> 6).toInt
+			val mask = 1L << (b & 63)
+			var old = words.get(w)
+			while((old & mask) == 0L && !words.compareAndSet(w, old, old | mask))
+				old = words.get(w)
+			i += 1
+		}
+		numKeys.incrementAndGet
+	}
+
+	def in(key: String): Boolean = {
+		val h1 = BloomFilters.hash1(key)
+		val h2 = BloomFilters.hash2(h1)
+		var i = 0
+		while(i < numHashes) {
+			val b = BloomFilters.bit(h1, h2, i, numBits)
+			if((words.get((b >>> 6).toInt) & (1L << (b & 63))) == 0L)
+				return false
+			i += 1
+		}
+		true
+	}
+
+	/** writes to a temp file and renames it, so readers never see a partial file */
+	def write(f: File) {
+		val tmp = new File(f.getPath + ".tmp")
+		val dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+		dos.writeInt(BloomFilters.MAGIC)
+		dos.writeInt(BloomFilters.VERSION)
+		dos.writeLong(numBits)
+		dos.writeInt(numHashes)
+		dos.writeLong(numKeys.get)
+		for(i <- 0 until BloomFilters.HEADER_BYTES - 28) dos.writeByte(0)
+		var i = 0
+		while(i < words.length) {
+			dos.writeLong(words.get(i))
+			i += 1
+		}
+		dos.close
+		if(!tmp.renameTo(f)) {
+			f.delete
+			if(!tmp.renameTo(f))
+				throw new RuntimeException("could not write " + f.getPath)
+		}
+	}
+
+	/** ORs in every bit from an existing filter of the same shape */
+	def addAll(other: MappedBloomFilter) {
+		if(other.numBits != numBits || other.numHashes != numHashes)
+			throw new RuntimeException("can't merge %s into a filter with bits=%d hashes=%d".format(other, numBits, numHashes))
+		val in = new DataInputStream(new BufferedInputStream(new FileInputStream(other.file), 1 << 16))
+		in.skipBytes(BloomFilters.HEADER_BYTES)
+		var i = 0
+		while(i < words.length) {
+			val v = in.readLong
+			var old = words.get(i)
+			while(!words.compareAndSet(i, old, old | v))
+				old = words.get(i)
+			i += 1
+		}
+		in.close
+		numKeys.addAndGet(other.numKeys)
+	}
+}
+
+object BloomFilters {
+	val MAGIC = 0x50424631	// "PBF1"
+	val VERSION = 1
+	val HEADER_BYTES = 64
+
+	/** bits for n keys with false positive rate p, rounded up to a multiple of 64 */
+	def bitsNeeded(n: Long, p: Double): Long = {
+		val m = math.ceil(-n * math.log(p) / (math.log(2) * math.log(2))).toLong
+		((m + 63) / 64) * 64
+	}
+
+	def hashesNeeded(n: Long, numBits: Long): Int =
+		math.max(1, math.round(numBits.toDouble / n * math.log(2)).toInt)
+
+	def builder(n: Long, p: Double): BloomFilterBuilder = {
+		val m = bitsNeeded(n, p)
+		new BloomFilterBuilder(m, hashesNeeded(n, m))
+	}
+
+	/** 64-bit FNV-1a over the chars of s */
+	def hash1(s: String): Long = {
+		var h = 0xcbf29ce484222325L
+		var i = 0
+		val n = s.length
+		while(i < n) {
+			h ^= s.charAt(i)
+			h *= 0x100000001b3L
+			i += 1
+		}
+		h
+	}
+
+	/** murmur3's 64-bit finalizer, used as the second hash for double hashing */
+	def hash2(h1: Long): Long = {
+		var h = h1
+		h ^= h >>> 33
+		h *= 0xff51afd7ed558ccdL
+		h ^= h >>> 33
+		h *= 0xc4ceb9fe1a85ec53L
+		h ^= h >>> 33
+		h | 1L
+	}
+
+	def bit(h1: Long, h2: Long, i: Int, numBits: Long): Long = {
+		val h = h1 + i * h2
+		(h & Long.MaxValue) % numBits
+	}
+}
+
@@ -94,6 +94,11 @@ object Profiler {
 	bw.newLine
     for((task, stats) <- totals.toList.sortBy(_._2.seconds).reverse)
       bw.write("%-60s %-10s %.1f seconds\n".format(task, stats.count, stats.seconds))
+    if(Caches.all.nonEmpty) {
+      bw.newLine
+      for(line <- Caches.report)
+        bw.write(line + "\n")
+    }
     bw.close
   }
   
@@ -0,0 +1,346 @@
+// Copyright (c) 2013, Johns Hopkins University. All rights reserved.
+// This software is released under the 2-clause BSD license.
+// See /LICENSE.txt
+
+// Travis Wolfe, twolfe18@gmail.com, 30 July 2013
+
+package edu.jhu.hlt.parma.util
+
+import java.io._
+import java.nio._
+import java.nio.channels.FileChannel
+import java.util.Arrays
+import scala.collection.mutable.{ArrayBuffer, HashMap}
+import scala.collection.JavaConversions._
+
+/**
+ * one memory-mapped file holding compiled lexical resources (WordNet, FrameNet,
+ * verb/phrase entailments, the phonetic dictionary, ...), see ResourcePackBuilder.
+ *
+ * opening a pack only reads its directory. every section is mapped read-only
+ * when asked for, so pages are loaded on first touch and shared between
+ * every JVM using the same file. nothing here writes, so sections can be
+ * read from any number of threads (use absolute gets on the buffers).
+ *
+ * file layout (big-endian):
+ *   header: magic, version, number of sections, offset of the directory
+ *   sections: each starts on an 8 byte boundary
+ *   directory: (name, offset, bytes) for every section
+ */
+class ResourcePack(val file: File) {
+
+	private[this] val raf = new RandomAccessFile(file, "r")
+	private[this] val channel = raf.getChannel
+	private[this] val sections = new HashMap[String, (Long, Long)]
+
+	{
+		val h = channel.map(FileChannel.MapMode.READ_ONLY, 0, ResourcePack.HEADER_BYTES)
+		if(h.getInt != ResourcePack.MAGIC)
+			throw new RuntimeException(file.getPath + " is not a resource pack")
+		val version = h.getInt
+		if(version != ResourcePack.VERSION)
+			throw new RuntimeException("%s has version %d, expected %d (rebuild it with ResourcePackBuilder)"
+				.format(file.getPath, version, ResourcePack.VERSION))
+		val n = h.getInt
+		val dirOffset = h.getLong
+		val dir = new DataInputStream(new BufferedInputStream(Channels.in(channel, dirOffset)))
+		for(i <- 0 until n) {
+			val name = dir.readUTF
+			sections(name) = (dir.readLong, dir.readLong)
+		}
+		dir.close
+	}
+
+	def has(name: String): Boolean = sections.contains(name)
+	def names: Seq[String] = sections.keys.toSeq.sorted
+
+	def bytes(name: String): ByteBuffer = {
+		val (offset, length) = sections.getOrElse(name,
+			throw new RuntimeException("no section %s in %s".format(name, file.getPath)))
+		if(length > Int.MaxValue)
+			throw new RuntimeException("section %s is too big to map: %d bytes".format(name, length))
+		channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+	}
+
+	def ints(name: String): IntBuffer = bytes(name).asIntBuffer
+	def doubles(name: String): DoubleBuffer = bytes(name).asDoubleBuffer
+	def strings(name: String): PackedStrings = new PackedStrings(bytes(name))
+	def multiMap(name: String): PackedMultiMap =
+		new PackedMultiMap(strings(name + ".keys"), ints(name + ".offsets"), ints(name + ".values"))
+
+	def text(name: String): String = {
+		val b = bytes(name)
+		val a = new Array[Byte](b.remaining)
+		b.get(a)
+		new String(a, "UTF-8")
+	}
+
+	def close { raf.close }
+
+	override def toString: String = "(ResourcePack %s %d sections)".format(file.getPath, sections.size)
+}
+
+/**
+ * sorted strings (by UTF-8 bytes), each one's index is its id.
+ * layout: n, offsets: int[n+1] into the blob, blob
+ */
+class PackedStrings(private val buf: ByteBuffer) {
+	val size = buf.getInt(0)
+	private[this] val blobStart = 4 * (size + 2)
+
+	private def start(i: Int) = blobStart + buf.getInt(4 * (i + 1))
+	private def end(i: Int) = blobStart + buf.getInt(4 * (i + 2))
+
+	def get(i: Int): String = {
+		val s = start(i)
+		val a = new Array[Byte](end(i) - s)
+		var j = 0
+		while(j < a.length) { a(j) = buf.get(s + j); j += 1 }
+		new String(a, "UTF-8")
+	}
+
+	/** the id of s, or -1 */
+	def indexOf(s: String): Int = {
+		var lo = 0
+		var hi = size - 1
+		while(lo <= hi) {
+			val mid = (lo + hi) >>> 1
+			val c = compare(mid, s)
+			if(c < 0) lo = mid + 1
+			else if(c > 0) hi = mid - 1
+			else return mid
+		}
+		-1
+	}
+
+	def contains(s: String): Boolean = indexOf(s) >= 0
+
+	/**
+	 * compares the i'th string to key as unsigned UTF-8 bytes,
+	 * encoding key as it goes (so lookups don't allocate)
+	 */
+	private def compare(i: Int, key: String): Int = {
+		var p = start(i)
+		val e = end(i)
+		var k = 0
+		while(k < key.length) {
+			val cp = key.codePointAt(k)
+			k += Character.charCount(cp)
+			val n = if(cp < 0x80) 1 else if(cp < 0x800) 2 else if(cp < 0x10000) 3 else 4
+			var b = 0
+			while(b < n) {
+				if(p == e) return -1
+				val kb =
+					if(n == 1) cp
+					else if(b == 0) (0xf00 >> n) & 0xff | (cp >> (6 * (n - 1)))
+					else 0x80 | ((cp >> (6 * (n - 1 - b))) & 0x3f)
+				val c = (buf.get(p) & 0xff) - kb
+				if(c != 0) return c
+				p += 1
+				b += 1
+			}
+		}
+		if(p == e) 0 else 1
+	}
+}
+
+object PackedStrings {
+	/** strings must be sorted by ResourcePack.sort and unique */
+	def encode(strings: Array[String]): Array[Byte] = {
+		val encoded = strings.map(_.getBytes("UTF-8"))
+		for(i <- 1 until encoded.length)
+			if(ResourcePack.compareBytes(encoded(i-1), encoded(i)) >= 0)
+				throw new RuntimeException("strings are not sorted and unique at %d: %s %s"
+					.format(i, strings(i-1), strings(i)))
+		val bos = new ByteArrayOutputStream
+		val o = new DataOutputStream(bos)
+		o.writeInt(encoded.length)
+		var offset = 0
+		o.writeInt(offset)
+		for(e <- encoded) {
+			offset += e.length
+			o.writeInt(offset)
+		}
+		encoded.foreach(o.write)
+		o.close
+		bos.toByteArray
+	}
+
+	/** an on-heap table, for resources that were not read from a pack */
+	def apply(sorted: Array[String]): PackedStrings = new PackedStrings(ByteBuffer.wrap(encode(sorted)))
+}
+
+/**
+ * string -> int[], keys are PackedStrings and values are in CSR form
+ */
+class PackedMultiMap(val keys: PackedStrings, offsets: IntBuffer, values: IntBuffer) {
+	/** null if key is not in the map */
+	def get(key: String): Array[Int] = {
+		val i = keys.indexOf(key)
+		if(i < 0) null
+		else {
+			val s = offsets.get(i)
+			val a = new Array[Int](offsets.get(i + 1) - s)
+			var j = 0
+			while(j < a.length) { a(j) = values.get(s + j); j += 1 }
+			a
+		}
+	}
+}
+
+/**
+ * writes sections one after another (to a temp file that is renamed on close)
+ */
+class ResourcePackWriter(val file: File) {
+
+	private[this] val tmp = new File(file.getPath + ".tmp")
+	// counts above the buffer, so offsets are exact without flushing
+	private[this] val counter = new Channels.CountingOutputStream(
+		new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+	private[this] val out = new DataOutputStream(counter)
+	private def pos: Long = counter.count	// DataOutputStream.size is an int, it stops counting at 2GB
+	private[this] val directory = new ArrayBuffer[(String, Long, Long)]
+
+	out.write(new Array[Byte](ResourcePack.HEADER_BYTES))
+
+	private def section(name: String)(write: DataOutputStream => Unit) {
+		if(directory.exists(_._1 == name))
+			throw new RuntimeException("section written twice: " + name)
+		align
+		val start = pos
+		write(out)
+		directory += ((name, start, pos - start))
+	}
+
+	private def align {
+		while(pos % 8 != 0) out.writeByte(0)
+	}
+
+	def bytes(name: String, a: Array[Byte]) { section(name)(_.write(a)) }
+	def ints(name: String, a: Array[Int]) { section(name)(o => a.foreach(o.writeInt)) }
+	def doubles(name: String, a: Array[Double]) { section(name)(o => a.foreach(o.writeDouble)) }
+	def text(name: String, s: String) { bytes(name, s.getBytes("UTF-8")) }
+
+	/** strings must be sorted by ResourcePack.sort and unique */
+	def strings(name: String, strings: Array[String]) {
+		bytes(name, PackedStrings.encode(strings))
+	}
+
+	def multiMap(name: String, m: java.util.Map[String, Array[Int]]) {
+		val keys = ResourcePack.sort(m.keySet.toArray(new Array[String](0)))
+		val offsets = new Array[Int](keys.length + 1)
+		for(i <- 0 until keys.length)
+			offsets(i + 1) = offsets(i) + m.get(keys(i)).length
+		strings(name + ".keys", keys)
+		ints(name + ".offsets", offsets)
+		ints(name + ".values", keys.flatMap(k => m.get(k)))
+	}
+
+	def close {
+		align
+		val dirOffset = pos
+		for((name, offset, bytes) <- directory) {
+			out.writeUTF(name)
+			out.writeLong(offset)
+			out.writeLong(bytes)
+		}
+		out.close
+		val raf = new RandomAccessFile(tmp, "rw")
+		raf.writeInt(ResourcePack.MAGIC)
+		raf.writeInt(ResourcePack.VERSION)
+		raf.writeInt(directory.size)
+		raf.writeLong(dirOffset)
+		raf.close
+		if(!tmp.renameTo(file)) {
+			file.delete
+			if(!tmp.renameTo(file))
+				throw new RuntimeException("could not write " + file.getPath)
+		}
+	}
+}
+
+object ResourcePack {
+	val MAGIC = 0x50525031	// "PRP1"
+	val VERSION = 1
+	val HEADER_BYTES = 64
+
+	/** if set, resources are read from this pack rather than their text files */
+	val FILE = "resources.pack"
+
+	private[this] var _shared: ResourcePack = null
+	private[this] var checked = false
+
+	/**
+	 * the pack named in parma.config, or null if there isn't one
+	 */
+	def shared: ResourcePack = synchronized {
+		if(!checked) {
+			checked = true
+			val f = ParmaConfig.getFile(FILE, null)
+			if(f != null) {
+				if(!f.isFile)
+					throw new RuntimeException("%s = %s, but that file doesn't exist, build it with ResourcePackBuilder".format(FILE, f.getPath))
+				_shared = new ResourcePack(f)
+				println("[ResourcePack] opened " + _shared)
+			}
+		}
+		_shared
+	}
+
+	/** the shared pack, if it has a section with this name */
+	def sharedWith(section: String): ResourcePack = {
+		val p = shared
+		if(p != null && p.has(section)) p else null
+	}
+
+	def isPack(f: File): Boolean = {
+		if(!f.isFile || f.length < HEADER_BYTES) return false
+		val in = new DataInputStream(new FileInputStream(f))
+		try { in.readInt == MAGIC } finally { in.close }
+	}
+
+	def compareBytes(a: Array[Byte], b: Array[Byte]): Int = {
+		var i = 0
+		while(i < a.length && i < b.length) {
+			val c = (a(i) & 0xff) - (b(i) & 0xff)
+			if(c != 0) return c
+			i += 1
+		}
+		a.length - b.length
+	}
+
+	/** sorts in the order that PackedStrings needs, dropping duplicates */
+	def sort(strings: Array[String]): Array[String] = {
+		val e = strings.distinct.map(s => (s.getBytes("UTF-8"), s))
+		Arrays.sort(e, new java.util.Comparator[(Array[Byte], String)] {
+			override def compare(a: (Array[Byte], String), b: (Array[Byte], String)) = compareBytes(a._1, b._1)
+		})
+		e.map(_._2)
+	}
+}
+
+private[util] object Channels {
+	class CountingOutputStream(os: OutputStream) extends OutputStream {
+		var count = 0L
+		override def write(b: Int) { os.write(b); count += 1 }
+		override def write(b: Array[Byte], off: Int, len: Int) { os.write(b, off, len); count += len }
+		override def flush { os.flush }
+		override def close { os.close }
+	}
+
+	/** reads a channel from offset, without moving its position */
+	def in(channel: FileChannel, offset: Long): InputStream = new InputStream {
+		private[this] var pos = offset
+		private[this] val one = ByteBuffer.allocate(1)
+		override def read: Int = {
+			one.clear
+			if(channel.read(one, pos) <= 0) -1
+			else { pos += 1; one.get(0) & 0xff }
+		}
+		override def read(b: Array[Byte], off: Int, len: Int): Int = {
+			val n = channel.read(ByteBuffer.wrap(b, off, len), pos)
+			if(n > 0) pos += n
+			n
+		}
+	}
+}
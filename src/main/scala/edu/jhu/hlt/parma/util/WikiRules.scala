@@ -64,18 +64,59 @@ class WikiRule[T](val lhs: T, val rhs: T,
 	def condOnRHS = jointCount / rhsCount.toDouble
 }
 
+/**
+ * wikipedia rules indexed by LHS, in primitive arrays.
+ *
+ * terms are the distinct strings in the terms file (several wiki ids can
+ * share a string), and term ids are their sorted order. rules with lhs term t
+ * are [start(t), start(t+1)), sorted by rhs term, with their counts, ranks, and
+ * types (a bit mask over RULE_TYPES) in parallel arrays.
+ *
+ * the arrays are built on the heap from the text files, or mapped from a
+ * ResourcePack (see writeTo and ResourcePackBuilder), in which case they take
+ * no heap and lookups don't allocate. rule paths are not kept.
+ */
 object WikiRuleStore {
-	import java.util.HashMap
-	val lhsIndex = new HashMap[Int, Buffer[WikiRule[Int]]]
-	val rhsIndex = new HashMap[Int, Buffer[WikiRule[Int]]]
-	val term2ids = new HashMap[String, Buffer[Int]]
-	val id2term = new ArrayBuffer[String]
+	import java.nio._
+	import java.util.Arrays
 
+	val PACK_PREFIX = "wikirules."
+	val RULE_TYPES = Array("Redirect", "BeComplement", "Parenthesis", "Link", "AllNouns")
+
+	private var terms: PackedStrings = null
+	private var start: IntBuffer = null
+	private var rhs: IntBuffer = null
+	private var lhsCounts: IntBuffer = null
+	private var rhsCounts: IntBuffer = null
+	private var jointCounts: IntBuffer = null
+	private var ranks: DoubleBuffer = null
+	private var types: ByteBuffer = null
+
+	def isSetup: Boolean = terms != null
+
+	/** reads the ResourcePack if it has wiki rules, otherwise the text files */
 	def setup {
-		val terms = ParmaConfig.getFile("features.wikirules.terms")
-		val rules = ParmaConfig.getFile("features.wikirules.rules")
-		val ruleCounts = ParmaConfig.getFile("features.wikirules.ruleCounts")
-		setup(terms, rules, ruleCounts)
+		if(isSetup) return
+		val pack = ResourcePack.sharedWith(PACK_PREFIX + "terms")
+		if(pack != null) setup(pack)
+		else {
+			val terms = ParmaConfig.getFile("features.wikirules.terms")
+			val rules = ParmaConfig.getFile("features.wikirules.rules")
+			val ruleCounts = ParmaConfig.getFile("features.wikirules.ruleCounts")
+			setup(terms, rules, ruleCounts)
+		}
+	}
+
+	def setup(pack: ResourcePack) {
+		println("[WikiRuleStore] mapping rules from " + pack.file.getPath)
+		terms = pack.strings(PACK_PREFIX + "terms")
+		start = pack.ints(PACK_PREFIX + "start")
+		rhs = pack.ints(PACK_PREFIX + "rhs")
+		lhsCounts = pack.ints(PACK_PREFIX + "lhsCounts")
+		rhsCounts = pack.ints(PACK_PREFIX + "rhsCounts")
+		jointCounts = pack.ints(PACK_PREFIX + "jointCounts")
+		ranks = pack.doubles(PACK_PREFIX + "ranks")
+		types = pack.bytes(PACK_PREFIX + "types")
 	}
 
 	def setup(termsFile: File, rulesFile: File, ruleCountsFile: File) {
@@ -84,157 +125,194 @@ object WikiRuleStore {
 
 		// read in terms
 		println("[WikiRuleStore] reading terms...")
+		val id2term = new ArrayBuffer[String]
 		val tr = FileUtils.getReader(termsFile)
 		while(tr.ready) {
 			val ar = tr.readLine.trim.split(",", 2)
 			if(ar.length == 2) {
 				val idx = Integer.parseInt(ar(0))
-				if(idx >= id2term.size) {
-					(id2term.size to idx).foreach(i => id2term += null)
-					assert(idx < id2term.size)
-				}
+				while(idx >= id2term.size) id2term += null
 				id2term(idx) = ar(1)
-
-				var i = term2ids.get(ar(1))
-				val u = (i==null)
-				if(u) i = new ArrayBuffer[Int]
-				i += idx
-				if(u) term2ids.put(ar(1), i)
 			}
-			//else println("skipping " + ar.mkString(","))
 		}
 		tr.close
+		val sorted = ResourcePack.sort(id2term.filter(_ != null).toArray)
+		val termIds = new java.util.HashMap[String, Integer]
+		for(i <- 0 until sorted.length) termIds.put(sorted(i), i)
+		val id2sid = id2term.map(t => if(t == null) -1 else termIds.get(t).intValue).toArray
+		def sid(id: Int) = if(id < id2sid.length) id2sid(id) else -1
 
-		// read in rules
+		// read in rules, keyed on (lhs wiki id, rhs wiki id), later lines replace earlier ones
 		println("[WikiRuleStore] reading rules...")
-		var added = 0
-		val tempIdx = new HashMap[(Int, Int), WikiRule[Int]]
+		val ruleIdx = new scala.collection.mutable.HashMap[Long, Int]
+		val ruleTypes = new ArrayBuffer[Byte]
+		val ruleRanks = new ArrayBuffer[Double]
 		val rr = FileUtils.getReader(rulesFile)
 		while(rr.ready) {
 			val ar = rr.readLine.trim.split(",")
 			if(ar.length != 5 && ar.length != 4)
 				println("ar = " + ar.mkString(", "))
-			val lhs = Integer.parseInt(ar(0))
-			val rhs = Integer.parseInt(ar(1))
-			val ruleTypes = ar(2).split("@")
-								.map(x => Map("1" -> "Redirect",
-			                                  "2" -> "BeComplement",
-			                                  "3" -> "Parenthesis",
-			                                  "4" -> "Link",
-			                                  "5" -> "AllNouns")(x))
-			val ruleRank = ar(3).toDouble
-			val paths = if(ar.length == 5) ar(4).split(":") else new Array[String](0)
-
-			added += 1
-			val rule = new WikiRule(lhs, rhs, ruleTypes, ruleRank, paths, -1, -1, -1)	// set counts later
-			val before = tempIdx.put((lhs,rhs), rule)
-			if(before != null)
-				println("lhs=%s, rhs=%s, before=%s, after=%s, added=%d, line=[%s]".format(lhs, rhs, before, rule, added, ar.mkString(", ")))
+			val key = (ar(0).toLong << 32) | (ar(1).toLong & 0xffffffffL)
+			var mask = 0
+			for(t <- ar(2).split("@")) {
+				val i = t.toInt - 1
+				if(i < 0 || i >= RULE_TYPES.length)
+					throw new RuntimeException("unknown rule type: " + t)
+				mask |= 1 << i
+			}
+			ruleIdx.get(key) match {
+				case Some(i) =>
+					ruleTypes(i) = mask.toByte
+					ruleRanks(i) = ar(3).toDouble
+				case None =>
+					ruleIdx(key) = ruleTypes.size
+					ruleTypes += mask.toByte
+					ruleRanks += ar(3).toDouble
+			}
 		}
 		rr.close
-		println("after reading rules, tempIdx.size=%d, added=%d".format(tempIdx.size, added))
+		println("after reading rules, %d unique rules".format(ruleTypes.size))
 
-		// read in the counts
+		// read in the counts, every rule with counts (and known terms) goes in the index
 		println("[WikiRuleStore] adding counts...")
-		added = 0
+		val lhsBuf, rhsBuf, lcBuf, rcBuf, jcBuf, ruleBuf = new ArrayBuffer[Int]
 		val cr = FileUtils.getReader(ruleCountsFile)
 		while(cr.ready) {
-			var ar = cr.readLine.trim.split(",")
+			val ar = cr.readLine.trim.split(",")
 			val lhs = Integer.parseInt(ar(0))
 			val rhs = Integer.parseInt(ar(1))
-			val lhsCount = Integer.parseInt(ar(2))
-			val rhsCount = Integer.parseInt(ar(3))
-			val jointCount = Integer.parseInt(ar(4))
 			// last one is dice, not needed
-			
-			// update counts, move from tempIdx to lhs/rhsIndex
-			val oldRule = tempIdx.get((lhs, rhs))
-			if(oldRule != null) {
-				val rule = new WikiRule(oldRule.lhs, oldRule.rhs, oldRule.ruleTypes, oldRule.ruleRank, oldRule.paths, lhsCount, rhsCount, jointCount)
-				//println("lhs=%s, rhs=%s, rule=%s".format(lhs, rhs, rule))
-
-				var l = lhsIndex.get(lhs)
-				var u = (l==null)
-				if(u) l = new ArrayBuffer[WikiRule[Int]]
-				l += rule
-				if(u) lhsIndex.put(lhs, l)
-
-				var r = rhsIndex.get(rhs)
-				u = (r==null)
-				if(u) r = new ArrayBuffer[WikiRule[Int]]
-				r += rule
-				if(u) rhsIndex.put(rhs, r)
-
-				added += 1
+			ruleIdx.get((lhs.toLong << 32) | (rhs.toLong & 0xffffffffL)) match {
+				case Some(i) if sid(lhs) >= 0 && sid(rhs) >= 0 =>
+					lhsBuf += sid(lhs)
+					rhsBuf += sid(rhs)
+					lcBuf += Integer.parseInt(ar(2))
+					rcBuf += Integer.parseInt(ar(3))
+					jcBuf += Integer.parseInt(ar(4))
+					ruleBuf += i
+				case _ =>
 			}
 		}
 		cr.close
+
+		// CSR by lhs (stable), then sort each row by rhs
+		val n = lhsBuf.size
+		val st = new Array[Int](sorted.length + 1)
+		lhsBuf.foreach(l => st(l + 1) += 1)
+		for(i <- 0 until sorted.length) st(i + 1) += st(i)
+		val fill = st.clone
+		val order = new Array[Int](n)
+		for(j <- 0 until n) {
+			order(fill(lhsBuf(j))) = j
+			fill(lhsBuf(j)) += 1
+		}
+		for(t <- 0 until sorted.length if st(t + 1) - st(t) > 1) {
+			val keys = (st(t) until st(t + 1)).map(k => (rhsBuf(order(k)).toLong << 32) | order(k)).toArray
+			Arrays.sort(keys)
+			for(k <- 0 until keys.length) order(st(t) + k) = keys(k).toInt
+		}
+		terms = PackedStrings(sorted)
+		start = IntBuffer.wrap(st)
+		rhs = IntBuffer.wrap(order.map(rhsBuf))
+		lhsCounts = IntBuffer.wrap(order.map(lcBuf))
+		rhsCounts = IntBuffer.wrap(order.map(rcBuf))
+		jointCounts = IntBuffer.wrap(order.map(jcBuf))
+		ranks = DoubleBuffer.wrap(order.map(j => ruleRanks(ruleBuf(j))))
+		types = ByteBuffer.wrap(order.map(j => ruleTypes(ruleBuf(j))))
+
 		val time = Profiler.endTask("wikiRulesIO")
-		println("read in %d rules and found %d with counts in %.1f seconds".format(tempIdx.size, added, time/1000d))
+		println("read in %d rules and found %d with counts in %.1f seconds".format(ruleTypes.size, n, time/1000d))
 	}
 
-	def lookup(idx: Int): Option[String] = {
-		val t = id2term(idx)
-		if(t == null) None
-		else Some(t)
+	/** only for a store that was read from text files */
+	def writeTo(w: ResourcePackWriter) {
+		if(!isSetup || !start.hasArray)
+			throw new RuntimeException("call setup(terms, rules, ruleCounts) before writeTo")
+		w.strings(PACK_PREFIX + "terms", (0 until terms.size).map(terms.get).toArray)
+		w.ints(PACK_PREFIX + "start", start.array)
+		w.ints(PACK_PREFIX + "rhs", rhs.array)
+		w.ints(PACK_PREFIX + "lhsCounts", lhsCounts.array)
+		w.ints(PACK_PREFIX + "rhsCounts", rhsCounts.array)
+		w.ints(PACK_PREFIX + "jointCounts", jointCounts.array)
+		w.doubles(PACK_PREFIX + "ranks", ranks.array)
+		w.bytes(PACK_PREFIX + "types", types.array)
 	}
 
-	def lhsMatches(s: String): Seq[WikiRule[Int]] = {
-		val ids = term2ids.get(s)
-		if(ids == null) Seq()
-		else ids.flatMap(id => lhsIndex.get(id))
+	def numTerms: Int = if(isSetup) terms.size else 0
+	def numRules: Int = if(isSetup) rhs.limit else 0
+
+	/** the id of a term, or -1 */
+	def termId(s: String): Int = if(isSetup) terms.indexOf(s) else -1
+
+	def lookup(termId: Int): Option[String] =
+		if(termId < 0 || termId >= numTerms) None
+		else Some(terms.get(termId))
+
+	/** first rule in [from, until) with rhs >= r */
+	private def lowerBound(r: Int, from: Int, until: Int): Int = {
+		var lo = from
+		var hi = until
+		while(lo < hi) {
+			val mid = (lo + hi) >>> 1
+			if(rhs.get(mid) < r) lo = mid + 1
+			else hi = mid
+		}
+		lo
 	}
-	
-	def rhsMatches(s: String): Seq[WikiRule[Int]] = {
-		val ids = term2ids.get(s)
-		if(ids == null) Seq()
-		else ids.flatMap(id => rhsIndex.get(id))
+
+	/** how many rules rewrite lhs as rhs (one per pair of wiki ids with these titles) */
+	def countRules(lhs: String, rhs: String): Int = {
+		val l = termId(lhs)
+		if(l < 0) return 0
+		val r = termId(rhs)
+		if(r < 0) return 0
+		val end = start.get(l + 1)
+		val first = lowerBound(r, start.get(l), end)
+		var i = first
+		while(i < end && this.rhs.get(i) == r) i += 1
+		i - first
 	}
 
 	/**
-	 * if there are two rules:
-	 * lhs=(42,   "foo")
-	 * lhs=(8734, "foo")
-	 * with associated RHS rules and types,
-	 * combine them to one rule with string LHS/RHS
-	 * merge counts too
-	 *
-	 * scrubWikiTitles makes lhs="George Washington (president)" go to "George Washington"
+	 * the number of distinct rhs terms that both lhs1 and lhs2 have rules to,
+	 * counting stops at max
 	 */
-	def mergeRules(rules: Seq[WikiRule[Int]], lhs: Boolean = true, rhs: Boolean = false, scrubWikiTitles: Boolean = true): Seq[WikiRule[String]] = {
-		var uniq = 0
-		val r2k = (rule: WikiRule[Int]) => {
-			val lhsStr = lookup(rule.lhs).get
-			val rhsStr = lookup(rule.rhs).get
-			val l = if(scrubWikiTitles) scrubWikiTitle(lhsStr) else lhsStr
-			val r = if(scrubWikiTitles) scrubWikiTitle(rhsStr) else rhsStr
-			if(lhs && rhs)
-				(l, r)
-			else if(lhs && !rhs) {
-				uniq += 1
-				(l, "UNIQ-"+uniq)
+	def sharedRhs(lhs1: String, lhs2: String, max: Int = Int.MaxValue): Int = {
+		val a = termId(lhs1)
+		if(a < 0) return 0
+		val b = termId(lhs2)
+		if(b < 0) return 0
+		var i = start.get(a)
+		val iEnd = start.get(a + 1)
+		var j = start.get(b)
+		val jEnd = start.get(b + 1)
+		var shared = 0
+		while(i < iEnd && j < jEnd && shared < max) {
+			val ri = rhs.get(i)
+			val rj = rhs.get(j)
+			if(ri < rj) i += 1
+			else if(rj < ri) j += 1
+			else {
+				shared += 1
+				while(i < iEnd && rhs.get(i) == ri) i += 1
+				while(j < jEnd && rhs.get(j) == rj) j += 1
 			}
-			else if(!lhs && rhs) {
-				uniq += 1
-				("UNIQ-"+uniq, r)
-			}
-			else throw new RuntimeException
-		}
-		val collapsed = new ArrayBuffer[WikiRule[String]]
-		for((k, lr) <- rules.groupBy(r2k)) {
-			val ruleRank = lr.map(_.ruleRank).sum / lr.size	// TODO think about alternatives
-			val ruleTypes = lr.flatMap(_.ruleTypes).toSet.toSeq
-			val paths = lr.flatMap(_.paths).toSet.toSeq
-			val lhsCounts = lr.map(_.lhsCount).sum
-			val rhsCounts = lr.map(_.rhsCount).sum
-			val jointCounts = lr.map(_.jointCount).sum
-			collapsed ++= lr.map(r => {
-				val lh = lookup(r.lhs).get
-				val rh = lookup(r.rhs).get
-				new WikiRule[String](lh, rh, ruleTypes, ruleRank, paths, lhsCounts, rhsCounts, jointCounts)
-			})
 		}
-		collapsed
+		shared
+	}
+
+	def rule(lhsTerm: Int, i: Int): WikiRule[String] = {
+		val mask = types.get(i)
+		val ruleTypes = RULE_TYPES.indices.filter(t => (mask & (1 << t)) != 0).map(RULE_TYPES)
+		new WikiRule(terms.get(lhsTerm), terms.get(rhs.get(i)), ruleTypes, ranks.get(i), Seq(),
+			lhsCounts.get(i), rhsCounts.get(i), jointCounts.get(i))
+	}
+
+	/** every rule with lhs s (this allocates, use countRules/sharedRhs in features) */
+	def lhsMatches(s: String): Seq[WikiRule[String]] = {
+		val l = termId(s)
+		if(l < 0) Seq()
+		else (start.get(l) until start.get(l + 1)).map(i => rule(l, i))
 	}
 
 	def scrubWikiTitle(s: String): String = {